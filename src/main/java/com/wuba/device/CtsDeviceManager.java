@@ -22,13 +22,27 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -49,7 +63,9 @@ import com.wuba.utils.IRunUtil;
 import com.wuba.utils.RunUtil;
 import com.wuba.utils.StreamUtil;
 import com.wuba.utils.TableFormatter;
-import com.wuba.utils.ConditionPriorityBlockingQueue.IMatcher;
+import com.wuba.utils.ConditionPriorityBlockingQueue.IHandoffListener;
+import com.wuba.utils.ConditionPriorityBlockingQueue.IIndexedMatcher;
+import com.wuba.utils.ConditionPriorityBlockingQueue.IPendingPoll;
 
 /**
  * {@inheritDoc}
@@ -59,13 +75,33 @@ public class CtsDeviceManager implements IDeviceManager {
 
 	/** max wait time in ms for fastboot devices command to complete */
 	private static final long FASTBOOT_CMD_TIMEOUT = 1 * 60 * 1000;
-	/** time to wait in ms between fastboot devices requests */
+	/** max time to wait in ms between fastboot devices requests */
 	private static final long FASTBOOT_POLL_WAIT_TIME = 5 * 1000;
+	/**
+	 * time to wait in ms between fastboot devices requests while a device is
+	 * expected to transition
+	 */
+	private static final long FASTBOOT_POLL_MIN_WAIT_TIME = 500;
 	/**
 	 * time to wait for device adb shell responsive connection before declaring
 	 * it unavailable for testing
 	 */
 	private static final int CHECK_WAIT_DEVICE_AVAIL_MS = 30 * 1000;
+	/** default max number of new device responsiveness checks run at once */
+	private static final int DEFAULT_MAX_CONCURRENT_CHECKS = 4;
+	/** time to wait in ms between available device attribute refreshes */
+	private static final long ATTRIBUTE_REFRESH_TIME = 60 * 1000;
+	/**
+	 * age in ms after which displayed {@link DeviceAttributes} are flagged as
+	 * stale
+	 */
+	private static final long ATTRIBUTE_STALE_TIME = 2 * ATTRIBUTE_REFRESH_TIME;
+	/** the number of threads completing asynchronous allocations */
+	private static final int ASYNC_ALLOCATION_THREADS = 2;
+	/** time to wait in ms between expired lease checks */
+	private static final long LEASE_REAP_POLL_TIME = 10 * 1000;
+	/** time to wait in ms between probes of the quarantined devices */
+	private static final long QUARANTINE_PROBE_TIME = 30 * 1000;
 
 	/**
 	 * a {@link DeviceSelectionOptions} that matches any device. Visible for
@@ -77,23 +113,39 @@ public class CtsDeviceManager implements IDeviceManager {
 
 	private final IDeviceMonitor mDvcMon;
 
-	private boolean mIsInitialized = false;
+	private volatile boolean mIsInitialized = false;
 	/**
 	 * A thread-safe map that tracks the devices currently allocated for
 	 * testing.
 	 */
-	private Map<String, IManagedTestDevice> mAllocatedDeviceMap;
+	private ConcurrentMap<String, IManagedTestDevice> mAllocatedDeviceMap;
 	/**
 	 * A FIFO, thread-safe queue for holding devices visible on adb available
-	 * for testing
+	 * for testing. Indexed by serial number, product and device kind.
 	 */
 	private ConditionPriorityBlockingQueue<IDevice> mAvailableDeviceQueue;
+	/**
+	 * The {@link DeviceAttributes} snapshots used to match available devices,
+	 * by serial. Captured when a device is admitted, and refreshed in the
+	 * background.
+	 */
+	private Map<String, DeviceAttributes> mDeviceAttributes;
+	private DeviceAttributesRefresher mAttributesRefresher;
+	/** completes asynchronous allocations, off the thread that freed the device */
+	private ExecutorService mAllocationExecutor;
+	/** the asynchronous allocations that are not done yet */
+	private final Set<AsyncAllocation> mAsyncAllocations = Collections
+			.newSetFromMap(new ConcurrentHashMap<AsyncAllocation, Boolean>());
 	private IAndroidDebugBridge mAdbBridge;
 	private ManagedDeviceListener mManagedDeviceListener;
 	private boolean mFastbootEnabled;
 	private Set<IFastbootListener> mFastbootListeners;
 	private FastbootMonitor mFastbootMonitor;
 	private Map<String, IDeviceStateMonitor> mCheckDeviceMap;
+	/** runs the new device responsiveness checks, in priority order */
+	private ThreadPoolExecutor mCheckDeviceExecutor;
+	/** the admission order of the next device check */
+	private final AtomicLong mNextCheckSequence = new AtomicLong();
 	private boolean mEnableLogcat = true;
 	private boolean mIsTerminated = false;
 	private IDeviceSelection mGlobalDeviceFilter;
@@ -104,6 +156,29 @@ public class CtsDeviceManager implements IDeviceManager {
 
 	private boolean mSynchronousMode = false;
 
+	/**
+	 * the policy used to choose among matching available devices, or
+	 * <code>null</code> to allocate in FIFO order. Disabled by default.
+	 */
+	private IAllocationScorer mAllocationScorer = null;
+	/** applies the tenant quotas and priorities to allocation requests */
+	private final TenantAllocationScheduler mTenantScheduler = new TenantAllocationScheduler();
+	/** the leases on the allocated devices */
+	private final DeviceLeaseTracker mLeaseTracker = new DeviceLeaseTracker();
+	private LeaseReaper mLeaseReaper;
+	/** the health scores used to quarantine flaky devices */
+	private final DeviceHealthTracker mHealthTracker = new DeviceHealthTracker();
+	/**
+	 * the devices held out of the available pool until they are healthy
+	 * again, by serial
+	 */
+	private final Map<String, IDevice> mQuarantinedDevices =
+			new ConcurrentHashMap<String, IDevice>();
+	private QuarantineProber mQuarantineProber;
+	private DeviceRecoveryCoordinator mRecoveryCoordinator;
+	/** the tenants of the allocated devices, by serial */
+	private final Map<String, String> mAllocatedTenants = new ConcurrentHashMap<String, String>();
+
 	/**
 	 * Package-private constructor, should only be used by this class and its
 	 * associated unit test. Use {@link #getInstance()} instead.
@@ -133,8 +208,23 @@ public class CtsDeviceManager implements IDeviceManager {
 		// Using ConcurrentHashMap for thread safety: handles concurrent
 		// modification and iteration
 		mAllocatedDeviceMap = new ConcurrentHashMap<String, IManagedTestDevice>();
-		mAvailableDeviceQueue = new ConditionPriorityBlockingQueue<IDevice>();
+		mDeviceAttributes = new ConcurrentHashMap<String, DeviceAttributes>();
+		mAvailableDeviceQueue = new ConditionPriorityBlockingQueue<IDevice>(
+				null, new DeviceIndexer(mDeviceAttributes));
 		mCheckDeviceMap = new ConcurrentHashMap<String, IDeviceStateMonitor>();
+		mCheckDeviceExecutor = new ThreadPoolExecutor(
+				DEFAULT_MAX_CONCURRENT_CHECKS, DEFAULT_MAX_CONCURRENT_CHECKS,
+				60, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "CheckDevice");
+						// Device checking threads shouldn't hold the JVM open
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		mCheckDeviceExecutor.allowCoreThreadTimeOut(true);
 
 		if (isFastbootAvailable()) {
 			mFastbootListeners = Collections
@@ -155,6 +245,8 @@ public class CtsDeviceManager implements IDeviceManager {
 			mFastbootMonitor = null;
 			mFastbootEnabled = false;
 		}
+		mRecoveryCoordinator = new DeviceRecoveryCoordinator(this,
+				new WaitDeviceRecovery(), mFastbootEnabled);
 
 		// don't start adding devices until fastboot support has been
 		// established
@@ -183,6 +275,21 @@ public class CtsDeviceManager implements IDeviceManager {
 		mAdbBridge.init(false /* client support */, "adb");
 		addEmulators();
 		addNullDevices();
+		mAttributesRefresher = new DeviceAttributesRefresher();
+		mAttributesRefresher.start();
+		mLeaseReaper = new LeaseReaper();
+		mLeaseReaper.start();
+		mQuarantineProber = new QuarantineProber();
+		mQuarantineProber.start();
+		mAllocationExecutor = Executors.newFixedThreadPool(
+				ASYNC_ALLOCATION_THREADS, new ThreadFactory() {
+
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "AsyncDeviceAllocation");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
 	}
 
 	/**
@@ -245,6 +352,97 @@ public class CtsDeviceManager implements IDeviceManager {
 		mEnableLogcat = enableLogcat;
 	}
 
+	/**
+	 * Sets the {@link IAllocationScorer} used to choose among the available
+	 * devices that match an allocation request.
+	 *
+	 * @param scorer
+	 *            the {@link IAllocationScorer}, eg a
+	 *            {@link DefaultAllocationScorer}, or <code>null</code> to
+	 *            allocate matching devices in FIFO order
+	 */
+	public void setAllocationScorer(IAllocationScorer scorer) {
+		mAllocationScorer = scorer;
+	}
+
+	/**
+	 * Gets the {@link TenantAllocationScheduler} used to configure tenant quotas
+	 * and priorities, and to report tenant wait times.
+	 */
+	public TenantAllocationScheduler getTenantScheduler() {
+		return mTenantScheduler;
+	}
+
+	/**
+	 * Sets the max number of new device responsiveness checks to run at once.
+	 * Further checks are queued, and run in admission order, with devices that
+	 * were in the pool before going first.
+	 *
+	 * @param maxChecks
+	 *            the max number of concurrent checks
+	 */
+	public void setMaxConcurrentDeviceChecks(int maxChecks) {
+		checkInit();
+		if (maxChecks > mCheckDeviceExecutor.getMaximumPoolSize()) {
+			mCheckDeviceExecutor.setMaximumPoolSize(maxChecks);
+			mCheckDeviceExecutor.setCorePoolSize(maxChecks);
+		} else {
+			mCheckDeviceExecutor.setCorePoolSize(maxChecks);
+			mCheckDeviceExecutor.setMaximumPoolSize(maxChecks);
+		}
+	}
+
+	/**
+	 * Sets the time to live of the leases on devices allocated from now on.
+	 * Devices whose lease is not renewed in time are reclaimed.
+	 *
+	 * @param ttl
+	 *            the time to live in ms, or 0 if leases never expire
+	 * @see #getLease(ITestDevice)
+	 */
+	public void setLeaseTtl(long ttl) {
+		mLeaseTracker.setTtl(ttl);
+	}
+
+	/**
+	 * Gets the {@link DeviceLeaseTracker}, which reports the lease metrics.
+	 */
+	public DeviceLeaseTracker getLeaseTracker() {
+		return mLeaseTracker;
+	}
+
+	/**
+	 * Gets the {@link DeviceHealthTracker} holding the device health scores.
+	 */
+	public DeviceHealthTracker getHealthTracker() {
+		return mHealthTracker;
+	}
+
+	/**
+	 * Holds a device out of the available pool until the
+	 * {@link QuarantineProber} finds it healthy again.
+	 */
+	private void quarantineDevice(IDevice device) {
+		LOG.warn(String.format(
+				"Device %s health score is %.0f, quarantining it",
+				device.getSerialNumber(),
+				mHealthTracker.getScore(device.getSerialNumber())));
+		mQuarantinedDevices.put(device.getSerialNumber(), device);
+		publishDeviceState(device, IDeviceMonitor.STATE_QUARANTINED);
+	}
+
+	/**
+	 * Sets how long an allocation request must wait to gain one priority
+	 * level, so that low priority requests are not starved.
+	 *
+	 * @param agingTime
+	 *            the time in ms, or 0 to disable aging
+	 */
+	public void setPriorityAging(long agingTime) {
+		checkInit();
+		mAvailableDeviceQueue.setPriorityAging(agingTime, TimeUnit.MILLISECONDS);
+	}
+
 	/**
 	 * Asynchronously checks if device is available, and adds to queue
 	 * 
@@ -257,7 +455,14 @@ public class CtsDeviceManager implements IDeviceManager {
 					device.getSerialNumber()));
 			return;
 		}
-		if (!mGlobalDeviceFilter.matches(device)) {
+		// cheap pre-check on the ddmlib property cache, so that a device the
+		// global filter rejects never takes a check slot. An empty cache can
+		// only decide filters that don't constrain device properties.
+		DeviceAttributes cached = DeviceAttributes.fromCache(device);
+		boolean cacheDecisive = cached.getProductType() != null
+				|| (mGlobalDeviceFilter.getProductTypes().isEmpty() && mGlobalDeviceFilter
+						.getProperties().isEmpty());
+		if (cacheDecisive && !mGlobalDeviceFilter.matches(device, cached)) {
 			LOG.debug(String.format(
 					"New device %s doesn't match global filter, ignoring",
 					device.getSerialNumber()));
@@ -266,40 +471,83 @@ public class CtsDeviceManager implements IDeviceManager {
 		final IDeviceStateMonitor monitor = createStateMonitor(device);
 		mCheckDeviceMap.put(device.getSerialNumber(), monitor);
 
-		final String threadName = String.format("Check device %s",
-				device.getSerialNumber());
-		Runnable checkRunnable = new Runnable() {
+		// devices that were in the pool before are checked first, to restore
+		// capacity quickly after a mass reconnect
+		int priority = mDeviceAttributes.containsKey(device.getSerialNumber()) ? 1
+				: 0;
+		Runnable checkRunnable = new DeviceCheck(priority) {
 
 			public void run() {
 				LOG.debug(String.format(
 						"checking new device %s responsiveness",
 						device.getSerialNumber()));
-				if (monitor.waitForDeviceShell(CHECK_WAIT_DEVICE_AVAIL_MS)) {
-					// CLog.logAndDisplay(LogLevel.INFO,
-					// "DeviceManager",String.format("Detected new device %s",
-					// device.getSerialNumber()));
-					Log.logAndDisplay(
-							LogLevel.INFO,
-							"DeviceManager",
-							String.format("Detected new device %s",
-									device.getSerialNumber()));
-					addAvailableDevice(device);
-				} else {
-					LOG.debug(String.format(
-							"Device %s is not responsive to adb shell command , "
-									+ "skip adding to available pool",
-							device.getSerialNumber()));
+				try {
+					if (monitor.waitForDeviceShell(CHECK_WAIT_DEVICE_AVAIL_MS)) {
+						// capture the attributes now, so allocation never has to
+						// query the device
+						DeviceAttributes attributes = DeviceAttributes
+								.capture(device);
+						mDeviceAttributes.put(device.getSerialNumber(), attributes);
+						if (!mGlobalDeviceFilter.matches(device, attributes)) {
+							LOG.debug(String
+									.format("New device %s doesn't match global filter, ignoring",
+											device.getSerialNumber()));
+							return;
+						}
+						// CLog.logAndDisplay(LogLevel.INFO,
+						// "DeviceManager",String.format("Detected new device %s",
+						// device.getSerialNumber()));
+						Log.logAndDisplay(
+								LogLevel.INFO,
+								"DeviceManager",
+								String.format("Detected new device %s",
+										device.getSerialNumber()));
+						if (mHealthTracker.shouldQuarantine(device
+								.getSerialNumber())) {
+							quarantineDevice(device);
+						} else {
+							addAvailableDevice(device);
+						}
+					} else {
+						LOG.debug(String.format(
+								"Device %s is not responsive to adb shell command , "
+										+ "skip adding to available pool",
+								device.getSerialNumber()));
+						publishDeviceState(device,
+								IDeviceMonitor.STATE_UNAVAILABLE);
+					}
+				} finally {
+					// never leave the device stuck as being checked
+					mCheckDeviceMap.remove(device.getSerialNumber());
 				}
-				mCheckDeviceMap.remove(device.getSerialNumber());
 			}
 		};
 		if (mSynchronousMode) {
 			checkRunnable.run();
 		} else {
-			Thread checkThread = new Thread(checkRunnable, threadName);
-			// Device checking threads shouldn't hold the JVM open
-			checkThread.setDaemon(true);
-			checkThread.start();
+			mCheckDeviceExecutor.execute(checkRunnable);
+		}
+	}
+
+	/**
+	 * A new device responsiveness check, ordered by priority then admission
+	 * order in the check executor queue.
+	 */
+	private abstract class DeviceCheck implements Runnable,
+			Comparable<DeviceCheck> {
+		private final int mPriority;
+		private final long mSequence = mNextCheckSequence.getAndIncrement();
+
+		DeviceCheck(int priority) {
+			mPriority = priority;
+		}
+
+		public int compareTo(DeviceCheck other) {
+			if (mPriority != other.mPriority) {
+				return mPriority > other.mPriority ? -1 : 1;
+			}
+			return mSequence < other.mSequence ? -1
+					: (mSequence == other.mSequence ? 0 : 1);
 		}
 	}
 
@@ -353,18 +601,10 @@ public class CtsDeviceManager implements IDeviceManager {
 	}
 
 	private void addAvailableDevice(final IDevice device) {
-		IMatcher<IDevice> deviceSerialMatcher = new IMatcher<IDevice>() {
-
-			public boolean matches(IDevice element) {
-				return element.getSerialNumber().equals(
-						device.getSerialNumber());
-			}
-
-		};
 		// add IDevice to available queue, replacing any existing IDevice with
 		// same serial
 		IDevice existingObject = mAvailableDeviceQueue.addUnique(
-				deviceSerialMatcher, device);
+				new SerialMatcher(device.getSerialNumber()), device);
 		if (existingObject != null) {
 			// TODO: reduce severity level for this log. Leaving high for now to
 			// understand
@@ -373,9 +613,130 @@ public class CtsDeviceManager implements IDeviceManager {
 					"Found existing device for available device %s",
 					device.getSerialNumber()));
 		}
+		publishDeviceState(device, IDeviceMonitor.STATE_AVAILABLE);
 		updateDeviceMonitor();
 	}
 
+	/**
+	 * Publishes a device transition to the device monitor's event
+	 * subscribers. Placeholder devices are not listed, so not published.
+	 *
+	 * @param state
+	 *            the {@link IDeviceMonitor} state, or <code>null</code> if the
+	 *            device is no longer listed
+	 */
+	private void publishDeviceState(IDevice device, String state) {
+		if (mDvcMon != null && !(device instanceof StubDevice)) {
+			mDvcMon.deviceStateChanged(device.getSerialNumber(), state);
+		}
+	}
+
+	/**
+	 * A {@link IIndexedMatcher} that matches the device with given serial, using
+	 * the available device queue serial index.
+	 */
+	private static class SerialMatcher implements IIndexedMatcher<IDevice> {
+		private final String mSerial;
+
+		SerialMatcher(String serial) {
+			mSerial = serial;
+		}
+
+		public boolean matches(IDevice element) {
+			return element.getSerialNumber().equals(mSerial);
+		}
+
+		public Collection<String> getKeyConstraint() {
+			return Collections.singleton(mSerial);
+		}
+
+		public Map<String, Collection<String>> getAttributeConstraints() {
+			return null;
+		}
+	}
+
+	/**
+	 * A {@link IIndexedMatcher} that matches available devices against a
+	 * {@link IDeviceSelection} using their {@link DeviceAttributes} snapshots,
+	 * so that no adb command is issued with the available device queue lock
+	 * held.
+	 * <p/>
+	 * {@link DeviceSelectionOptions} are compiled when the request is made, so
+	 * the matcher is immutable and requests selecting the same devices can
+	 * share a waiter group. Other selections only equal themselves.
+	 */
+	private class SelectionMatcher implements IIndexedMatcher<IDevice> {
+		private final IDeviceSelection mOptions;
+		/** the compiled options, or <code>null</code> */
+		private final DeviceSelectionOptions.CompiledSelection mCompiled;
+
+		SelectionMatcher(IDeviceSelection options) {
+			mOptions = options;
+			if (options instanceof DeviceSelectionOptions) {
+				mCompiled = ((DeviceSelectionOptions) options).getCompiled();
+			} else {
+				mCompiled = null;
+			}
+		}
+
+		public boolean matches(IDevice element) {
+			if (mCompiled != null) {
+				return mCompiled.matches(element, getDeviceAttributes(element));
+			}
+			return mOptions.matches(element, getDeviceAttributes(element));
+		}
+
+		public Collection<String> getKeyConstraint() {
+			if (mCompiled != null) {
+				return mCompiled.mKeyConstraint;
+			}
+			return mOptions.getKeyConstraint();
+		}
+
+		public Map<String, Collection<String>> getAttributeConstraints() {
+			if (mCompiled != null) {
+				return mCompiled.mAttributeConstraints;
+			}
+			return mOptions.getAttributeConstraints();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof SelectionMatcher)) {
+				return false;
+			}
+			SelectionMatcher other = (SelectionMatcher) obj;
+			if (mCompiled != null) {
+				return mCompiled.equals(other.mCompiled);
+			}
+			return other.mCompiled == null && mOptions == other.mOptions;
+		}
+
+		@Override
+		public int hashCode() {
+			return mCompiled != null ? mCompiled.hashCode() : System
+					.identityHashCode(mOptions);
+		}
+	}
+
+	/**
+	 * Gets the {@link DeviceAttributes} snapshot of given device. Never issues
+	 * an adb command.
+	 *
+	 * @param device
+	 *            the {@link IDevice}
+	 * @return the snapshot captured at admission, or one created from the
+	 *         ddmlib property cache if there is none
+	 */
+	DeviceAttributes getDeviceAttributes(IDevice device) {
+		DeviceAttributes attributes = mDeviceAttributes.get(device
+				.getSerialNumber());
+		if (attributes == null) {
+			attributes = DeviceAttributes.fromCache(device);
+		}
+		return attributes;
+	}
+
 	/**
 	 * Get the available device queue.
 	 * <p/>
@@ -450,12 +811,7 @@ public class CtsDeviceManager implements IDeviceManager {
 	 * @return the {@link IDevice} or <code>null</code> if interrupted
 	 */
 	private IDevice takeAvailableDevice() {
-		try {
-			return mAvailableDeviceQueue.take(ANY_DEVICE_OPTIONS);
-		} catch (InterruptedException e) {
-			LOG.debug(String.format("interrupted while taking device"));
-			return null;
-		}
+		return pollAvailableDevice(Long.MAX_VALUE, ANY_DEVICE_OPTIONS);
 	}
 
 	/**
@@ -485,6 +841,243 @@ public class CtsDeviceManager implements IDeviceManager {
 		return createAllocatedDevice(allocatedDevice);
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+
+	public List<ITestDevice> allocateDevices(int count, long timeout,
+			IDeviceSelection options) {
+		checkInit();
+		List<IDevice> allocatedDevices = pollAvailableDevices(count, timeout,
+				options);
+		if (allocatedDevices == null) {
+			return null;
+		}
+		List<ITestDevice> testDevices = new ArrayList<ITestDevice>(count);
+		for (IDevice allocatedDevice : allocatedDevices) {
+			testDevices.add(createAllocatedDevice(allocatedDevice));
+		}
+		return testDevices;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+
+	public Future<ITestDevice> allocateDeviceAsync(IDeviceSelection options) {
+		checkInit();
+		AsyncAllocation allocation = new AsyncAllocation(options);
+		mAsyncAllocations.add(allocation);
+		allocation.start();
+		return allocation;
+	}
+
+	/**
+	 * A pending asynchronous allocation request.
+	 * <p/>
+	 * The request first waits for its tenant quota, then for a device, without
+	 * holding a thread. The device is turned into an {@link ITestDevice} on the
+	 * allocation executor.
+	 */
+	private class AsyncAllocation implements Future<ITestDevice>,
+			IHandoffListener<IDevice> {
+		private final IDeviceSelection mOptions;
+		private final String mTenant;
+		private final long mStartTime = System.currentTimeMillis();
+		private final CountDownLatch mDoneLatch = new CountDownLatch(1);
+		/** run when the tenant quota has been reserved */
+		private final Runnable mQuotaAcquired = new Runnable() {
+
+			public void run() {
+				pollDevice();
+			}
+		};
+		private IPendingPoll mPendingPoll = null;
+		private boolean mCancelled = false;
+		/** why the request failed, or <code>null</code> if it was cancelled */
+		private Exception mFailure = null;
+		/** set once a device has been handed to the request and kept */
+		private boolean mAllocated = false;
+		private ITestDevice mDevice = null;
+
+		AsyncAllocation(IDeviceSelection options) {
+			mOptions = options;
+			mTenant = mTenantScheduler.getTenant(options);
+		}
+
+		void start() {
+			mTenantScheduler.acquireAsync(mTenant, mQuotaAcquired);
+		}
+
+		private void pollDevice() {
+			synchronized (this) {
+				if (mCancelled) {
+					mTenantScheduler.release(mTenant, 1);
+					return;
+				}
+			}
+			IPendingPoll pendingPoll = mAvailableDeviceQueue.pollAsync(
+					new SelectionMatcher(mOptions),
+					createAllocationComparator(mOptions),
+					mTenantScheduler.getPriority(mOptions), this);
+			boolean cancelled;
+			synchronized (this) {
+				mPendingPoll = pendingPoll;
+				cancelled = mCancelled;
+			}
+			if (cancelled && pendingPoll.cancel()) {
+				mTenantScheduler.release(mTenant, 1);
+			}
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public void elementAvailable(final IDevice device) {
+			try {
+				mAllocationExecutor.execute(new Runnable() {
+
+					public void run() {
+						completeAllocation(device);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// the manager is terminating, don't lose the device
+				LOG.debug(String.format(
+						"Device manager is terminated, returning %s",
+						device.getSerialNumber()));
+				fail(new IllegalStateException("device manager is terminated"));
+				mTenantScheduler.release(mTenant, 1);
+				addAvailableDevice(device);
+			}
+		}
+
+		private void completeAllocation(IDevice device) {
+			synchronized (this) {
+				if (mCancelled) {
+					LOG.debug(String.format(
+							"Allocation of %s was cancelled, returning it",
+							device.getSerialNumber()));
+					mTenantScheduler.release(mTenant, 1);
+					addAvailableDevice(device);
+					return;
+				}
+				mAllocated = true;
+			}
+			mTenantScheduler.recordAllocation(mTenant,
+					System.currentTimeMillis() - mStartTime);
+			mAllocatedTenants.put(device.getSerialNumber(), mTenant);
+			ITestDevice testDevice = createAllocatedDevice(device);
+			synchronized (this) {
+				mDevice = testDevice;
+			}
+			mDoneLatch.countDown();
+			mAsyncAllocations.remove(this);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			if (!abort(null)) {
+				return false;
+			}
+			mTenantScheduler.recordCancellation(mTenant);
+			return true;
+		}
+
+		/**
+		 * Ends the request without a device, making {@link #get()} throw an
+		 * {@link ExecutionException} with given cause.
+		 */
+		void fail(Exception failure) {
+			abort(failure);
+		}
+
+		/**
+		 * Ends the request without a device, unless it already got one.
+		 *
+		 * @param failure
+		 *            the cause of the failure, or <code>null</code> if the
+		 *            request was cancelled
+		 * @return <code>true</code> if the request was ended
+		 */
+		private boolean abort(Exception failure) {
+			IPendingPoll pendingPoll;
+			synchronized (this) {
+				if (mCancelled || mAllocated) {
+					return false;
+				}
+				mCancelled = true;
+				mFailure = failure;
+				pendingPoll = mPendingPoll;
+			}
+			if (pendingPoll == null) {
+				// still waiting for quota; if the quota was just granted,
+				// pollDevice will see the cancellation
+				mTenantScheduler.cancelAcquire(mTenant, mQuotaAcquired);
+			} else if (pendingPoll.cancel()) {
+				mTenantScheduler.release(mTenant, 1);
+			}
+			mDoneLatch.countDown();
+			mAsyncAllocations.remove(this);
+			return true;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public synchronized boolean isCancelled() {
+			return mCancelled && mFailure == null;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public boolean isDone() {
+			return mDoneLatch.getCount() == 0;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public ITestDevice get() throws InterruptedException,
+				ExecutionException {
+			mDoneLatch.await();
+			return getResult();
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public ITestDevice get(long timeout, TimeUnit unit)
+				throws InterruptedException, ExecutionException,
+				TimeoutException {
+			if (!mDoneLatch.await(timeout, unit)) {
+				throw new TimeoutException();
+			}
+			return getResult();
+		}
+
+		private synchronized ITestDevice getResult() throws ExecutionException {
+			if (mFailure != null) {
+				throw new ExecutionException(mFailure);
+			}
+			if (mCancelled) {
+				throw new CancellationException();
+			}
+			return mDevice;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+
+	public DeviceLease getLease(ITestDevice device) {
+		return mLeaseTracker.get(device.getSerialNumber());
+	}
+
 	/**
 	 * Retrieves and removes a IDevice from the available device queue, waiting
 	 * for timeout if necessary until an IDevice becomes available.
@@ -498,13 +1091,95 @@ public class CtsDeviceManager implements IDeviceManager {
 	 * @return the {@link IDevice} or <code>null</code> if interrupted
 	 */
 	private IDevice pollAvailableDevice(long timeout, IDeviceSelection options) {
+		List<IDevice> devices = pollAvailableDevices(1, timeout, options);
+		return devices == null ? null : devices.get(0);
+	}
+
+	/**
+	 * Retrieves and removes <var>count</var> IDevices from the available device
+	 * queue, within the request's tenant quota.
+	 *
+	 * @param count
+	 *            the number of devices
+	 * @param timeout
+	 *            the number of ms to wait for the quota and the devices
+	 * @param options
+	 *            the {@link IDeviceSelection} the returned devices must meet
+	 *
+	 * @return the {@link IDevice}s or <code>null</code> if timed out or
+	 *         interrupted
+	 */
+	private List<IDevice> pollAvailableDevices(int count, long timeout,
+			IDeviceSelection options) {
+		String tenant = mTenantScheduler.getTenant(options);
+		long startTime = System.currentTimeMillis();
+		List<IDevice> devices = null;
 		try {
-			return mAvailableDeviceQueue.poll(timeout, TimeUnit.MILLISECONDS,
-					options);
+			if (!mTenantScheduler.acquire(tenant, count, timeout)) {
+				LOG.debug(String.format(
+						"Tenant %s is over quota, no device allocated", tenant));
+				mTenantScheduler.recordTimeout(tenant);
+				return null;
+			}
+			try {
+				long remainingTime = Math.max(0, timeout
+						- (System.currentTimeMillis() - startTime));
+				SelectionMatcher matcher = new SelectionMatcher(options);
+				Comparator<IDevice> comparator = createAllocationComparator(options);
+				if (count == 1) {
+					IDevice device = mAvailableDeviceQueue.poll(remainingTime,
+							TimeUnit.MILLISECONDS, matcher, comparator,
+							mTenantScheduler.getPriority(options));
+					if (device != null) {
+						devices = Collections.singletonList(device);
+					}
+				} else {
+					devices = mAvailableDeviceQueue.poll(count, remainingTime,
+							TimeUnit.MILLISECONDS, matcher, comparator);
+				}
+			} finally {
+				if (devices == null) {
+					mTenantScheduler.release(tenant, count);
+				}
+			}
 		} catch (InterruptedException e) {
 			LOG.debug(String.format("interrupted while polling for device"));
 			return null;
 		}
+		if (devices == null) {
+			mTenantScheduler.recordTimeout(tenant);
+			return null;
+		}
+		mTenantScheduler.recordAllocation(tenant, System.currentTimeMillis()
+				- startTime);
+		for (IDevice device : devices) {
+			mAllocatedTenants.put(device.getSerialNumber(), tenant);
+		}
+		return devices;
+	}
+
+	/**
+	 * Creates a {@link Comparator} that orders the available devices by
+	 * decreasing {@link IAllocationScorer} score for the given request.
+	 *
+	 * @return the {@link Comparator} or <code>null</code> if no scorer is set
+	 */
+	private Comparator<IDevice> createAllocationComparator(
+			final IDeviceSelection options) {
+		final IAllocationScorer scorer = mAllocationScorer;
+		if (scorer == null) {
+			return null;
+		}
+		return new Comparator<IDevice>() {
+
+			public int compare(IDevice device1, IDevice device2) {
+				int score1 = scorer.score(device1,
+						getDeviceAttributes(device1), options);
+				int score2 = scorer.score(device2,
+						getDeviceAttributes(device2), options);
+				return score1 > score2 ? -1 : (score1 == score2 ? 0 : 1);
+			}
+		};
 	}
 
 	private ITestDevice createAllocatedDevice(IDevice allocatedDevice) {
@@ -513,9 +1188,13 @@ public class CtsDeviceManager implements IDeviceManager {
 		if (mEnableLogcat && !(allocatedDevice instanceof StubDevice)) {
 			testDevice.startLogcat();
 		}
+		// grant the lease first, so the lease reaper never mistakes the new
+		// allocation for the one whose lease expired
+		mLeaseTracker.grant(allocatedDevice.getSerialNumber());
 		mAllocatedDeviceMap.put(allocatedDevice.getSerialNumber(), testDevice);
 		LOG.debug(String.format("Allocated device %s",
 				testDevice.getSerialNumber()));
+		publishDeviceState(allocatedDevice, IDeviceMonitor.STATE_ALLOCATED);
 		updateDeviceMonitor();
 		return testDevice;
 	}
@@ -533,6 +1212,10 @@ public class CtsDeviceManager implements IDeviceManager {
 			IDeviceStateMonitor monitor) {
 		IManagedTestDevice testDevice = new TestDevice(allocatedDevice, monitor);
 		testDevice.setFastbootEnabled(mFastbootEnabled);
+		testDevice.setHealthTracker(mHealthTracker);
+		if (mRecoveryCoordinator != null) {
+			testDevice.setRecovery(mRecoveryCoordinator.getDeviceRecovery());
+		}
 		if (allocatedDevice instanceof FastbootDevice) {
 			testDevice.setDeviceState(TestDeviceState.FASTBOOT);
 		} else if (allocatedDevice instanceof StubDevice) {
@@ -552,6 +1235,23 @@ public class CtsDeviceManager implements IDeviceManager {
 		return new AndroidDebugBridgeWrapper();
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	public void reportRunFailure(ITestDevice device) {
+		checkInit();
+		if (!mAllocatedDeviceMap.containsKey(device.getSerialNumber())) {
+			LOG.warn(String.format(
+					"reportRunFailure called with unallocated device %s",
+					device.getSerialNumber()));
+			return;
+		}
+		if (device.getIDevice() instanceof StubDevice) {
+			return;
+		}
+		mHealthTracker.recordRunFailure(device.getSerialNumber());
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -560,11 +1260,27 @@ public class CtsDeviceManager implements IDeviceManager {
 		checkInit();
 		IManagedTestDevice managedDevice = (IManagedTestDevice) device;
 		managedDevice.stopLogcat();
+		if (mAllocatedDeviceMap.remove(device.getSerialNumber()) == null) {
+			LOG.error(String.format(
+					"freeDevice called with unallocated device %s",
+					device.getSerialNumber()));
+			updateDeviceMonitor();
+			return;
+		}
+		returnDevice(managedDevice, deviceState);
+	}
+
+	/**
+	 * Returns a device that was just removed from the allocated devices, to
+	 * the pool matching given state.
+	 */
+	private void returnDevice(IManagedTestDevice device,
+			FreeDeviceState deviceState) {
 		IDevice ideviceToReturn = device.getIDevice();
 		// don't kill emulator if it wasn't launched by launchEmulator (ie
 		// emulatorProcess is null).
 		if (ideviceToReturn.isEmulator()
-				&& managedDevice.getEmulatorProcess() != null) {
+				&& device.getEmulatorProcess() != null) {
 			try {
 				killEmulator(device);
 				// emulator killed - return a stub device
@@ -579,24 +1295,37 @@ public class CtsDeviceManager implements IDeviceManager {
 				deviceState = FreeDeviceState.UNAVAILABLE;
 			}
 		}
-		if (mAllocatedDeviceMap.remove(device.getSerialNumber()) == null) {
-			LOG.error(String.format(
-					"freeDevice called with unallocated device %s",
-					device.getSerialNumber()));
-		} else if (deviceState == FreeDeviceState.UNRESPONSIVE) {
-			// TODO: add class flag to control if unresponsive device's are
-			// returned to pool
-			// TODO: also consider tracking unresponsive events received per
-			// device - so a
-			// device that is continually unresponsive could be removed from
-			// available queue
-			addAvailableDevice(ideviceToReturn);
-		} else if (deviceState == FreeDeviceState.AVAILABLE) {
-			addAvailableDevice(ideviceToReturn);
-		} else if (deviceState == FreeDeviceState.UNAVAILABLE) {
-			LOG.info(String.format(
-					"Freed device %s is unavailable. Removing from use.",
-					device.getSerialNumber()));
+		mLeaseTracker.release(device.getSerialNumber());
+		String tenant = mAllocatedTenants.remove(device.getSerialNumber());
+		if (tenant != null) {
+			mTenantScheduler.release(tenant, 1);
+		}
+		if (mAllocationScorer != null) {
+			mAllocationScorer.deviceFreed(ideviceToReturn, deviceState);
+		}
+		if (deviceState == FreeDeviceState.UNRESPONSIVE) {
+			mHealthTracker.recordUnresponsive(ideviceToReturn.getSerialNumber());
+		}
+		if (deviceState == FreeDeviceState.UNRESPONSIVE
+				|| deviceState == FreeDeviceState.AVAILABLE) {
+			// a device that keeps failing is held out of the pool
+			if (!(ideviceToReturn instanceof StubDevice)
+					&& mHealthTracker.shouldQuarantine(ideviceToReturn
+							.getSerialNumber())) {
+				quarantineDevice(ideviceToReturn);
+			} else {
+				addAvailableDevice(ideviceToReturn);
+			}
+		} else {
+			if (deviceState == FreeDeviceState.UNAVAILABLE) {
+				LOG.info(String.format(
+						"Freed device %s is unavailable. Removing from use.",
+						device.getSerialNumber()));
+			}
+			// an ignored device is still visible, and listed as unavailable
+			// until it reconnects
+			publishDeviceState(ideviceToReturn,
+					IDeviceMonitor.STATE_UNAVAILABLE);
 		}
 		updateDeviceMonitor();
 	}
@@ -828,6 +1557,31 @@ public class CtsDeviceManager implements IDeviceManager {
 			if (mFastbootMonitor != null) {
 				mFastbootMonitor.terminate();
 			}
+			if (mAttributesRefresher != null) {
+				mAttributesRefresher.terminate();
+			}
+			// fail the pending asynchronous allocations, so no get() hangs
+			for (AsyncAllocation allocation : new ArrayList<AsyncAllocation>(
+					mAsyncAllocations)) {
+				allocation.fail(new IllegalStateException(
+						"device manager is terminated"));
+			}
+			if (mAllocationExecutor != null) {
+				mAllocationExecutor.shutdown();
+			}
+			if (mLeaseReaper != null) {
+				mLeaseReaper.terminate();
+			}
+			if (mQuarantineProber != null) {
+				mQuarantineProber.terminate();
+			}
+			if (mRecoveryCoordinator != null) {
+				mRecoveryCoordinator.terminate();
+			}
+			if (mDvcMon != null) {
+				mDvcMon.terminate();
+			}
+			mCheckDeviceExecutor.shutdownNow();
 		}
 	}
 
@@ -880,7 +1634,7 @@ public class CtsDeviceManager implements IDeviceManager {
 	 * {@inheritDoc}
 	 */
 
-	public synchronized Collection<String> getAllocatedDevices() {
+	public Collection<String> getAllocatedDevices() {
 		checkInit();
 		Collection<String> allocatedDeviceSerials = new ArrayList<String>(
 				mAllocatedDeviceMap.size());
@@ -892,16 +1646,15 @@ public class CtsDeviceManager implements IDeviceManager {
 	 * {@inheritDoc}
 	 */
 
-	public synchronized Collection<String> getAvailableDevices() {
+	public Collection<String> getAvailableDevices() {
 		checkInit();
 		Collection<String> availableDeviceSerials = new ArrayList<String>(
 				mAvailableDeviceQueue.size());
-		synchronized (mAvailableDeviceQueue) {
-			for (IDevice device : mAvailableDeviceQueue) {
-				// don't add placeholder devices to available devices display
-				if (!(device instanceof StubDevice)) {
-					availableDeviceSerials.add(device.getSerialNumber());
-				}
+		// iterates a snapshot of the queue, without blocking allocations
+		for (IDevice device : mAvailableDeviceQueue) {
+			// don't add placeholder devices to available devices display
+			if (!(device instanceof StubDevice)) {
+				availableDeviceSerials.add(device.getSerialNumber());
 			}
 		}
 		return availableDeviceSerials;
@@ -911,12 +1664,10 @@ public class CtsDeviceManager implements IDeviceManager {
 		checkInit();
 		Collection<IDevice> availableDeviceSerials = new ArrayList<IDevice>(
 				mAvailableDeviceQueue.size());
-		synchronized (mAvailableDeviceQueue) {
-			for (IDevice device : mAvailableDeviceQueue) {
-				// don't add placeholder devices to available devices display
-				if (!(device instanceof StubDevice)) {
-					availableDeviceSerials.add(device);
-				}
+		for (IDevice device : mAvailableDeviceQueue) {
+			// don't add placeholder devices to available devices display
+			if (!(device instanceof StubDevice)) {
+				availableDeviceSerials.add(device);
 			}
 		}
 		IDevice[] devices = new IDevice[availableDeviceSerials.size()];
@@ -932,7 +1683,7 @@ public class CtsDeviceManager implements IDeviceManager {
 	 * {@inheritDoc}
 	 */
 
-	public synchronized Collection<String> getUnavailableDevices() {
+	public Collection<String> getUnavailableDevices() {
 		checkInit();
 		IDevice[] visibleDevices = mAdbBridge.getDevices();
 		Collection<String> unavailableSerials = new ArrayList<String>(
@@ -949,12 +1700,10 @@ public class CtsDeviceManager implements IDeviceManager {
 	}
 
 	private Map<IDevice, String> fetchDevicesInfo() {
-		synchronized (this) {
-			checkInit();
-		}
+		checkInit();
 		final Map<IDevice, String> deviceMap = new LinkedHashMap<IDevice, String>();
 
-		// these data structures all have their own locks
+		// these data structures are all safe to read without locking
 		final List<IDevice> allDeviceCopy = ArrayUtil.list(mAdbBridge
 				.getDevices());
 		final List<IDevice> availableDeviceCopy = mAvailableDeviceQueue
@@ -965,27 +1714,35 @@ public class CtsDeviceManager implements IDeviceManager {
 		final Set<IDevice> visibleDeviceSet = new HashSet<IDevice>();
 
 		for (IDevice device : allDeviceCopy) {
-			// ignore devices not matching global filter
-			if (mGlobalDeviceFilter.matches(device)) {
+			// ignore devices not matching global filter. Match against the
+			// admission snapshot, so that listing never queries the devices
+			DeviceAttributes attributes = mDeviceAttributes.get(device
+					.getSerialNumber());
+			if (attributes == null) {
+				attributes = DeviceAttributes.fromCache(device);
+			}
+			if (mGlobalDeviceFilter.matches(device, attributes)) {
 				visibleDeviceSet.add(device);
 			}
 		}
 
 		for (ITestDevice device : allocatedDeviceCopy) {
-			deviceMap.put(device.getIDevice(), "Allocated");
+			deviceMap.put(device.getIDevice(), IDeviceMonitor.STATE_ALLOCATED);
 			visibleDeviceSet.remove(device.getIDevice());
 		}
 
 		for (IDevice device : availableDeviceCopy) {
 			// don't add placeholder devices to available devices display
 			if (!(device instanceof StubDevice)) {
-				deviceMap.put(device, "Available");
+				deviceMap.put(device, IDeviceMonitor.STATE_AVAILABLE);
 				visibleDeviceSet.remove(device);
 			}
 		}
 
 		for (IDevice device : visibleDeviceSet) {
-			deviceMap.put(device, "Unavailable");
+			deviceMap.put(device, mQuarantinedDevices.containsKey(device
+					.getSerialNumber()) ? IDeviceMonitor.STATE_QUARANTINED
+					: IDeviceMonitor.STATE_UNAVAILABLE);
 		}
 
 		return deviceMap;
@@ -994,34 +1751,39 @@ public class CtsDeviceManager implements IDeviceManager {
 	public void displayDevicesInfo(PrintWriter stream) {
 		ArrayList<List<String>> displayRows = new ArrayList<List<String>>();
 		displayRows.add(Arrays.asList("Serial", "State", "Product", "Variant",
-				"Build", "Battery"));
+				"Build", "Battery", "Updated"));
 		Map<IDevice, String> deviceMap = fetchDevicesInfo();
 
-		IDeviceSelection selector = getDeviceSelectionOptions();
-		addDevicesInfo(selector, displayRows, deviceMap);
+		addDevicesInfo(displayRows, deviceMap);
 		new TableFormatter().displayTable(displayRows, stream);
 	}
 
 	/**
-	 * Get the {@link IDeviceSelection} to use to display device info
-	 * <p/>
-	 * Exposed for unit testing.
+	 * Adds a row per device, read from the {@link DeviceAttributes} snapshots
+	 * only so that listing never waits on adb.
 	 */
-	IDeviceSelection getDeviceSelectionOptions() {
-		return new DeviceSelectionOptions();
-	}
-
-	private void addDevicesInfo(IDeviceSelection selector,
-			List<List<String>> displayRows, Map<IDevice, String> deviceStateMap) {
+	private void addDevicesInfo(List<List<String>> displayRows,
+			Map<IDevice, String> deviceStateMap) {
+		long now = System.currentTimeMillis();
 		for (Map.Entry<IDevice, String> deviceEntry : deviceStateMap.entrySet()) {
 			IDevice device = deviceEntry.getKey();
 			String deviceState = deviceEntry.getValue();
+			DeviceAttributes attributes = mDeviceAttributes.get(device
+					.getSerialNumber());
+			String updated;
+			if (attributes == null) {
+				attributes = DeviceAttributes.fromCache(device);
+				updated = "never";
+			} else {
+				long age = now - attributes.getCaptureTime();
+				updated = String.format("%ds ago%s", age / 1000,
+						age > ATTRIBUTE_STALE_TIME ? " (stale)" : "");
+			}
 			displayRows.add(Arrays.asList(device.getSerialNumber(),
-					deviceState,
-					getDisplay(selector.getDeviceProductType(device)),
-					getDisplay(selector.getDeviceProductVariant(device)),
-					getDisplay(device.getProperty("ro.build.id")),
-					getDisplay(selector.getBatteryLevel(device))));
+					deviceState, getDisplay(attributes.getProductType()),
+					getDisplay(attributes.getProductVariant()),
+					getDisplay(attributes.getProperty("ro.build.id")),
+					getDisplay(attributes.getBatteryLevel()), updated));
 		}
 	}
 
@@ -1114,15 +1876,22 @@ public class CtsDeviceManager implements IDeviceManager {
 						"Removed disconnected device %s from available queue",
 						disconnectedDevice.getSerialNumber()));
 			}
+			// the health score is kept, so a reconnecting device that is still
+			// unhealthy is quarantined again by its admission check
+			mQuarantinedDevices.remove(disconnectedDevice.getSerialNumber());
 			IManagedTestDevice testDevice = mAllocatedDeviceMap
 					.get(disconnectedDevice.getSerialNumber());
 			if (testDevice != null) {
 				testDevice.setDeviceState(TestDeviceState.NOT_AVAILABLE);
-			} else if (mCheckDeviceMap.containsKey(disconnectedDevice
-					.getSerialNumber())) {
-				IDeviceStateMonitor monitor = mCheckDeviceMap
-						.get(disconnectedDevice.getSerialNumber());
-				monitor.setState(TestDeviceState.NOT_AVAILABLE);
+			} else {
+				if (mCheckDeviceMap.containsKey(disconnectedDevice
+						.getSerialNumber())) {
+					IDeviceStateMonitor monitor = mCheckDeviceMap
+							.get(disconnectedDevice.getSerialNumber());
+					monitor.setState(TestDeviceState.NOT_AVAILABLE);
+				}
+				// allocated devices stay listed until they are freed
+				publishDeviceState(disconnectedDevice, null);
 			}
 			updateDeviceMonitor();
 		}
@@ -1136,6 +1905,8 @@ public class CtsDeviceManager implements IDeviceManager {
 		checkInit();
 		if (mFastbootEnabled) {
 			mFastbootListeners.add(listener);
+			// a new listener expects a transition, so poll fast right away
+			mFastbootMonitor.requestPoll();
 		} else {
 			throw new UnsupportedOperationException("fastboot is not enabled");
 		}
@@ -1152,9 +1923,23 @@ public class CtsDeviceManager implements IDeviceManager {
 		}
 	}
 
+	/**
+	 * Polls `fastboot devices` while there are fastboot listeners.
+	 * <p/>
+	 * Polling starts at {@link #FASTBOOT_POLL_MIN_WAIT_TIME} whenever a
+	 * listener is added or the set of fastboot devices changes, and backs off
+	 * up to {@link #FASTBOOT_POLL_WAIT_TIME} while nothing changes. Each poll
+	 * result is shared with all listeners, and listeners added while a poll is
+	 * in progress are coalesced into a single follow-up poll.
+	 */
 	private class FastbootMonitor extends Thread {
 
 		private boolean mQuit = false;
+		private final Object mPollLock = new Object();
+		/** whether a poll was requested since the last one started */
+		private boolean mPollRequested = false;
+		private long mPollWaitTime = FASTBOOT_POLL_MIN_WAIT_TIME;
+		private Set<String> mLastSerials = null;
 
 		FastbootMonitor() {
 			super("FastbootMonitor");
@@ -1165,53 +1950,295 @@ public class CtsDeviceManager implements IDeviceManager {
 			interrupt();
 		}
 
+		/**
+		 * Requests a fast poll, waking up the monitor if it is backed off or
+		 * idle.
+		 */
+		void requestPoll() {
+			synchronized (mPollLock) {
+				mPollRequested = true;
+				mPollWaitTime = FASTBOOT_POLL_MIN_WAIT_TIME;
+				mPollLock.notifyAll();
+			}
+		}
+
 		public void run() {
 			while (!mQuit) {
-				// only poll fastboot devices if there are listeners, as polling
-				// it
-				// indiscriminately can cause fastboot commands to hang
-				if (!mFastbootListeners.isEmpty()) {
-					Set<String> serials = getDevicesOnFastboot();
-					if (serials != null) {
-						for (String serial : serials) {
-							IManagedTestDevice testDevice = mAllocatedDeviceMap
-									.get(serial);
-							if (testDevice != null
-									&& !testDevice.getDeviceState().equals(
-											TestDeviceState.FASTBOOT)) {
-								testDevice
-										.setDeviceState(TestDeviceState.FASTBOOT);
-							}
-						}
-						// now update devices that are no longer on fastboot
-						synchronized (mAllocatedDeviceMap) {
-							for (IManagedTestDevice testDevice : mAllocatedDeviceMap
-									.values()) {
-								if (!serials.contains(testDevice
-										.getSerialNumber())
-										&& testDevice.getDeviceState().equals(
-												TestDeviceState.FASTBOOT)) {
-									testDevice
-											.setDeviceState(TestDeviceState.NOT_AVAILABLE);
-								}
-							}
-						}
-						// create a copy of listeners for notification to
-						// prevent deadlocks
-						Collection<IFastbootListener> listenersCopy = new ArrayList<IFastbootListener>(
-								mFastbootListeners.size());
-						listenersCopy.addAll(mFastbootListeners);
-						for (IFastbootListener listener : listenersCopy) {
-							listener.stateUpdated();
-						}
+				if (!awaitNextPoll()) {
+					continue;
+				}
+				Set<String> serials = getDevicesOnFastboot();
+				if (serials == null) {
+					continue;
+				}
+				updateFastbootStates(serials);
+				synchronized (mPollLock) {
+					if (serials.equals(mLastSerials)) {
+						mPollWaitTime = Math.min(mPollWaitTime * 2,
+								FASTBOOT_POLL_WAIT_TIME);
+					} else {
+						mPollWaitTime = FASTBOOT_POLL_MIN_WAIT_TIME;
+					}
+					mLastSerials = serials;
+				}
+				// create a copy of listeners for notification to prevent
+				// deadlocks
+				Collection<IFastbootListener> listenersCopy = new ArrayList<IFastbootListener>(
+						mFastbootListeners.size());
+				synchronized (mFastbootListeners) {
+					listenersCopy.addAll(mFastbootListeners);
+				}
+				for (IFastbootListener listener : listenersCopy) {
+					listener.stateUpdated();
+				}
+			}
+		}
+
+		/**
+		 * Waits until the next poll is due. Only poll fastboot devices if
+		 * there are listeners, as polling it indiscriminately can cause
+		 * fastboot commands to hang.
+		 *
+		 * @return <code>true</code> if a poll should be performed now
+		 */
+		private boolean awaitNextPoll() {
+			synchronized (mPollLock) {
+				try {
+					if (mFastbootListeners.isEmpty()) {
+						mPollRequested = false;
+						mLastSerials = null;
+						mPollLock.wait();
+						return false;
+					}
+					if (!mPollRequested) {
+						mPollLock.wait(mPollWaitTime);
+					}
+				} catch (InterruptedException e) {
+					return false;
+				}
+				mPollRequested = false;
+				return !mQuit && !mFastbootListeners.isEmpty();
+			}
+		}
+
+		/**
+		 * Updates the state of allocated devices from a fastboot poll result.
+		 */
+		private void updateFastbootStates(Set<String> serials) {
+			for (String serial : serials) {
+				IManagedTestDevice testDevice = mAllocatedDeviceMap.get(serial);
+				if (testDevice != null
+						&& !testDevice.getDeviceState().equals(
+								TestDeviceState.FASTBOOT)) {
+					testDevice.setDeviceState(TestDeviceState.FASTBOOT);
+				}
+			}
+			// now update devices that are no longer on fastboot
+			synchronized (mAllocatedDeviceMap) {
+				for (IManagedTestDevice testDevice : mAllocatedDeviceMap
+						.values()) {
+					if (!serials.contains(testDevice.getSerialNumber())
+							&& testDevice.getDeviceState().equals(
+									TestDeviceState.FASTBOOT)) {
+						testDevice.setDeviceState(TestDeviceState.NOT_AVAILABLE);
 					}
 				}
-				getRunUtil().sleep(FASTBOOT_POLL_WAIT_TIME);
 			}
 		}
 	}
 
-	private Set<String> getDevicesOnFastboot() {
+	/**
+	 * Periodically re-captures the {@link DeviceAttributes} of the available
+	 * and allocated devices, so that the battery level used for matching and
+	 * the displayed device info stay fresh without querying devices at
+	 * allocation or listing time.
+	 */
+	private class DeviceAttributesRefresher extends Thread {
+
+		private boolean mQuit = false;
+
+		DeviceAttributesRefresher() {
+			super("DeviceAttributesRefresher");
+			setDaemon(true);
+		}
+
+		public void terminate() {
+			mQuit = true;
+			interrupt();
+		}
+
+		public void run() {
+			while (!mQuit) {
+				getRunUtil().sleep(ATTRIBUTE_REFRESH_TIME);
+				for (IDevice device : mAvailableDeviceQueue.getCopy()) {
+					if (mQuit) {
+						return;
+					}
+					refreshDevice(device, true);
+				}
+				// also keep the displayed info of allocated devices current
+				for (ITestDevice testDevice : new ArrayList<ITestDevice>(
+						mAllocatedDeviceMap.values())) {
+					if (mQuit) {
+						return;
+					}
+					refreshDevice(testDevice.getIDevice(), false);
+				}
+			}
+		}
+
+		private void refreshDevice(IDevice device, boolean available) {
+			if (device instanceof StubDevice || !device.isOnline()) {
+				return;
+			}
+			mDeviceAttributes.put(device.getSerialNumber(),
+					DeviceAttributes.capture(device));
+			if (!available) {
+				// never run probe commands on a device a test is using
+				return;
+			}
+			long latency = DeviceHealthTracker.probeShellLatency(device);
+			if (latency >= 0) {
+				mHealthTracker.recordShellLatency(device.getSerialNumber(),
+						latency);
+			}
+			IAllocationScorer scorer = mAllocationScorer;
+			if (scorer != null) {
+				scorer.refresh(device);
+			}
+		}
+	}
+
+	/**
+	 * Reclaims the devices whose lease has expired, ie devices leaked by their
+	 * holder. A reclaimed device that is still responsive is returned to the
+	 * available pool.
+	 */
+	private class LeaseReaper extends Thread {
+
+		private boolean mQuit = false;
+
+		LeaseReaper() {
+			super("LeaseReaper");
+			setDaemon(true);
+		}
+
+		public void terminate() {
+			mQuit = true;
+			interrupt();
+		}
+
+		public void run() {
+			while (!mQuit) {
+				getRunUtil().sleep(LEASE_REAP_POLL_TIME);
+				for (DeviceLease lease : mLeaseTracker.removeExpired()) {
+					if (mQuit) {
+						return;
+					}
+					reclaimDevice(lease);
+				}
+			}
+		}
+
+		private void reclaimDevice(DeviceLease lease) {
+			String serial = lease.getSerialNumber();
+			final IManagedTestDevice testDevice = mAllocatedDeviceMap
+					.get(serial);
+			// the device may have been freed, or even allocated again with a
+			// new lease, since its lease expired
+			if (testDevice == null || mLeaseTracker.get(serial) != null
+					|| !mAllocatedDeviceMap.remove(serial, testDevice)) {
+				return;
+			}
+			LOG.warn(String.format(
+					"Lease on device %s expired, reclaiming the device",
+					serial));
+			testDevice.stopLogcat();
+			final IDevice idevice = testDevice.getIDevice();
+			// a leaked device is checked like a reconnected one, on the
+			// bounded check executor rather than on the reaper thread
+			Runnable checkRunnable = new DeviceCheck(1) {
+
+				public void run() {
+					boolean available = idevice instanceof StubDevice
+							|| createStateMonitor(idevice).waitForDeviceShell(
+									CHECK_WAIT_DEVICE_AVAIL_MS);
+					mLeaseTracker.recordReclaim(available);
+					returnDevice(testDevice,
+							available ? FreeDeviceState.AVAILABLE
+									: FreeDeviceState.UNAVAILABLE);
+				}
+			};
+			if (mSynchronousMode) {
+				checkRunnable.run();
+				return;
+			}
+			try {
+				mCheckDeviceExecutor.execute(checkRunnable);
+			} catch (RejectedExecutionException e) {
+				// the manager is terminating
+				mLeaseTracker.recordReclaim(false);
+				returnDevice(testDevice, FreeDeviceState.UNAVAILABLE);
+			}
+		}
+	}
+
+	/**
+	 * Periodically probes the quarantined devices with a trivial shell
+	 * command, and re-admits those whose health score has recovered.
+	 */
+	private class QuarantineProber extends Thread {
+
+		private boolean mQuit = false;
+
+		QuarantineProber() {
+			super("QuarantineProber");
+			setDaemon(true);
+		}
+
+		public void terminate() {
+			mQuit = true;
+			interrupt();
+		}
+
+		public void run() {
+			while (!mQuit) {
+				getRunUtil().sleep(QUARANTINE_PROBE_TIME);
+				for (IDevice device : new ArrayList<IDevice>(
+						mQuarantinedDevices.values())) {
+					if (mQuit) {
+						return;
+					}
+					probeDevice(device);
+				}
+			}
+		}
+
+		private void probeDevice(IDevice device) {
+			String serial = device.getSerialNumber();
+			if (!device.isOnline()) {
+				return;
+			}
+			long latency = DeviceHealthTracker.probeShellLatency(device);
+			mHealthTracker.recordProbe(serial, latency >= 0, latency);
+			if (mHealthTracker.canReadmit(serial)
+					&& mQuarantinedDevices.remove(serial) != null) {
+				LOG.info(String.format(
+						"Quarantined device %s is healthy again, re-admitting",
+						serial));
+				checkAndAddAvailableDevice(device);
+			}
+		}
+	}
+
+	/**
+	 * Lists the serials of devices in fastboot.
+	 * <p/>
+	 * Exposed for {@link DeviceRecoveryCoordinator}.
+	 * 
+	 * @return the serials, or <code>null</code> if fastboot could not be run
+	 */
+	Set<String> getDevicesOnFastboot() {
 		CommandResult fastbootResult = getRunUtil().runTimedCmd(
 				FASTBOOT_CMD_TIMEOUT, "fastboot", "devices");
 		if (fastbootResult.getStatus().equals(CommandStatus.SUCCESS)) {
@@ -1254,4 +2281,20 @@ public class CtsDeviceManager implements IDeviceManager {
 		mDvcMon.removeObserver(observer);
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+
+	public boolean subscribe(IDeviceEventListener listener, long fromSequence) {
+		return mDvcMon.subscribe(listener, fromSequence);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+
+	public void unsubscribe(IDeviceEventListener listener) {
+		mDvcMon.unsubscribe(listener);
+	}
+
 }
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wuba.device;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.android.ddmlib.AdbCommandRejectedException;
+import com.android.ddmlib.CollectingOutputReceiver;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.ShellCommandUnresponsiveException;
+import com.android.ddmlib.TimeoutException;
+import com.wuba.device.IDeviceManager.FreeDeviceState;
+
+/**
+ * The default {@link IAllocationScorer}.
+ * <p/>
+ * Prefers devices with a higher battery level, penalizes devices that were recently freed as
+ * {@link FreeDeviceState#UNRESPONSIVE}, and favours devices that already have the
+ * {@link IDeviceSelection#getPreferredPackages() preferred packages} installed.
+ * <p/>
+ * The installed packages are looked up in the background refresh of available devices, and only
+ * for the packages that allocation requests have asked for so far.
+ */
+public class DefaultAllocationScorer implements IAllocationScorer {
+    private static Logger LOG = Logger.getLogger("DefaultAllocationScorer");
+
+    /** the score penalty for each recent unresponsive free */
+    static final int UNRESPONSIVE_PENALTY = 50;
+    /** the time window in ms in which unresponsive frees are counted */
+    static final long UNRESPONSIVE_WINDOW = 60 * 60 * 1000;
+    /** the score bonus for each preferred package already installed */
+    static final int PACKAGE_AFFINITY_BONUS = 100;
+    /** max time in ms to wait for the package list command to complete */
+    private static final long LIST_PACKAGES_TIMEOUT = 10 * 1000;
+
+    /** the times of the recent unresponsive frees, by serial */
+    private final ConcurrentMap<String, LinkedList<Long>> mUnresponsiveFrees =
+            new ConcurrentHashMap<String, LinkedList<Long>>();
+    /** the known installed preferred packages, by serial */
+    private final Map<String, Set<String>> mInstalledPackages =
+            new ConcurrentHashMap<String, Set<String>>();
+    /** the packages that allocation requests have preferred */
+    private final Set<String> mRequestedPackages = new CopyOnWriteArraySet<String>();
+
+    /**
+     * {@inheritDoc}
+     */
+    public int score(IDevice device, DeviceAttributes attributes, IDeviceSelection options) {
+        if (device instanceof StubDevice) {
+            return 0;
+        }
+        int score = 0;
+        Integer batteryLevel = attributes.getBatteryLevel();
+        if (batteryLevel != null) {
+            score += batteryLevel;
+        }
+        score -= UNRESPONSIVE_PENALTY * getRecentUnresponsiveCount(device.getSerialNumber());
+
+        Collection<String> preferredPackages = options.getPreferredPackages();
+        if (!preferredPackages.isEmpty()) {
+            mRequestedPackages.addAll(preferredPackages);
+            Set<String> installedPackages = mInstalledPackages.get(device.getSerialNumber());
+            if (installedPackages != null) {
+                for (String preferredPackage : preferredPackages) {
+                    if (installedPackages.contains(preferredPackage)) {
+                        score += PACKAGE_AFFINITY_BONUS;
+                    }
+                }
+            }
+        }
+        return score;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void deviceFreed(IDevice device, FreeDeviceState state) {
+        String serial = device.getSerialNumber();
+        switch (state) {
+            case UNAVAILABLE:
+                mInstalledPackages.remove(serial);
+                break;
+            case UNRESPONSIVE:
+                recordUnresponsiveFree(serial);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void refresh(IDevice device) {
+        if (!(device instanceof StubDevice) && !mRequestedPackages.isEmpty()) {
+            updateInstalledPackages(device);
+        }
+    }
+
+    /**
+     * Gets the number of unresponsive frees of given device in the last
+     * {@link #UNRESPONSIVE_WINDOW} ms.
+     */
+    int getRecentUnresponsiveCount(String serial) {
+        LinkedList<Long> frees = mUnresponsiveFrees.get(serial);
+        if (frees == null) {
+            return 0;
+        }
+        synchronized (frees) {
+            pruneFrees(frees);
+            return frees.size();
+        }
+    }
+
+    private void recordUnresponsiveFree(String serial) {
+        LinkedList<Long> frees = mUnresponsiveFrees.get(serial);
+        if (frees == null) {
+            mUnresponsiveFrees.putIfAbsent(serial, new LinkedList<Long>());
+            frees = mUnresponsiveFrees.get(serial);
+        }
+        synchronized (frees) {
+            pruneFrees(frees);
+            frees.add(System.currentTimeMillis());
+        }
+    }
+
+    private void pruneFrees(LinkedList<Long> frees) {
+        long windowStart = System.currentTimeMillis() - UNRESPONSIVE_WINDOW;
+        while (!frees.isEmpty() && frees.getFirst() < windowStart) {
+            frees.removeFirst();
+        }
+    }
+
+    /**
+     * Records which of the requested packages are installed on given device, using a single
+     * package list command.
+     */
+    private void updateInstalledPackages(IDevice device) {
+        CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+        try {
+            device.executeShellCommand("pm list packages", receiver, LIST_PACKAGES_TIMEOUT,
+                    TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            handleListPackagesException(device, e);
+            return;
+        } catch (AdbCommandRejectedException e) {
+            handleListPackagesException(device, e);
+            return;
+        } catch (ShellCommandUnresponsiveException e) {
+            handleListPackagesException(device, e);
+            return;
+        } catch (IOException e) {
+            handleListPackagesException(device, e);
+            return;
+        }
+        Set<String> installedPackages = new HashSet<String>();
+        for (String line : receiver.getOutput().split("\r?\n")) {
+            if (line.startsWith("package:")) {
+                String pkgName = line.substring("package:".length()).trim();
+                if (mRequestedPackages.contains(pkgName)) {
+                    installedPackages.add(pkgName);
+                }
+            }
+        }
+        mInstalledPackages.put(device.getSerialNumber(), installedPackages);
+    }
+
+    private void handleListPackagesException(IDevice device, Exception e) {
+        LOG.warn(String.format("Failed to list installed packages for %s: %s",
+                device.getSerialNumber(), e.toString()));
+        mInstalledPackages.remove(device.getSerialNumber());
+    }
+}
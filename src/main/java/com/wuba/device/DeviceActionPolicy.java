@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wuba.device;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.android.ddmlib.AdbCommandRejectedException;
+import com.android.ddmlib.InstallException;
+import com.android.ddmlib.ShellCommandUnresponsiveException;
+import com.android.ddmlib.SyncException;
+import com.android.ddmlib.TimeoutException;
+
+/**
+ * Decides how a failed device action is retried, based on the exception type and the class of
+ * operation.
+ * <p/>
+ * The operation class is the first word of the action description, eg "shell", "push" or
+ * "getprop". Rules registered for a specific operation class take precedence over rules for any
+ * operation, and among those the rule for the closest exception superclass wins. Only the first
+ * {@link #setMaxLightAttempts(int)} failures of an action use the light actions; any further
+ * failure of the same action escalates to {@link Action#RECOVER}, so a persistent problem still
+ * gets a full recovery.
+ */
+public class DeviceActionPolicy {
+
+    /** What to do before retrying a failed device action, from lightest to heaviest. */
+    public enum Action {
+        /** retry right away */
+        RETRY,
+        /** retry after a short, jittered backoff */
+        BACKOFF_RETRY,
+        /** wait briefly for the device to be online and responsive again, then retry */
+        RECONNECT,
+        /** check the device answers a trivial shell command, recovering only if it doesn't */
+        PROBE,
+        /** run full device recovery, then retry */
+        RECOVER,
+        /** don't retry, the failure is not a device communication problem */
+        FAIL;
+    }
+
+    /** base delay in ms of {@link Action#BACKOFF_RETRY} */
+    static final long BACKOFF_BASE_TIME = 100;
+    /** max delay in ms of {@link Action#BACKOFF_RETRY} */
+    static final long BACKOFF_MAX_TIME = 2 * 1000;
+
+    private static class Rule {
+        final Class<? extends Exception> mExceptionType;
+        final String mOperation;
+        final Action mAction;
+
+        Rule(Class<? extends Exception> exceptionType, String operation, Action action) {
+            mExceptionType = exceptionType;
+            mOperation = operation;
+            mAction = action;
+        }
+    }
+
+    private static final DeviceActionPolicy sDefault = createDefault();
+
+    private final List<Rule> mRules = new ArrayList<Rule>();
+    private final Random mRandom = new Random();
+    private int mMaxLightAttempts = 2;
+
+    /**
+     * @return the default {@link DeviceActionPolicy}, shared by all devices
+     */
+    public static DeviceActionPolicy getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * Creates a {@link DeviceActionPolicy} with the default rules. Any exception without a rule
+     * triggers {@link Action#RECOVER}.
+     */
+    public static DeviceActionPolicy createDefault() {
+        DeviceActionPolicy policy = new DeviceActionPolicy();
+        // adb rejects commands while the device is briefly offline or re-authorizing
+        policy.setAction(AdbCommandRejectedException.class, null, Action.BACKOFF_RETRY);
+        // adb transport dropped or timed out, the device usually comes right back
+        policy.setAction(TimeoutException.class, null, Action.BACKOFF_RETRY);
+        policy.setAction(IOException.class, null, Action.RECONNECT);
+        policy.setAction(SyncException.class, null, Action.RECONNECT);
+        // often the command, not the device, is stuck
+        policy.setAction(ShellCommandUnresponsiveException.class, null, Action.PROBE);
+        // the device, not the connection, is stuck
+        policy.setAction(InstallException.class, null, Action.RECOVER);
+        // an adb reboot drops the connection by design
+        policy.setAction(IOException.class, "reboot", Action.RETRY);
+        return policy;
+    }
+
+    /**
+     * Sets the action for an exception type, replacing any previous rule for the same exception
+     * type and operation class.
+     *
+     * @param exceptionType the exception type, also matching its subclasses
+     * @param operation the operation class, or <code>null</code> for any operation
+     * @param action the {@link Action} to take
+     */
+    public synchronized void setAction(Class<? extends Exception> exceptionType, String operation,
+            Action action) {
+        for (int i = 0; i < mRules.size(); i++) {
+            Rule rule = mRules.get(i);
+            if (rule.mExceptionType.equals(exceptionType) && equal(rule.mOperation, operation)) {
+                mRules.set(i, new Rule(exceptionType, operation, action));
+                return;
+            }
+        }
+        mRules.add(new Rule(exceptionType, operation, action));
+    }
+
+    /**
+     * Sets the number of failures of a single action that may be handled without full recovery.
+     */
+    public synchronized void setMaxLightAttempts(int maxLightAttempts) {
+        mMaxLightAttempts = maxLightAttempts;
+    }
+
+    /**
+     * Gets the action to take for a failed device action.
+     *
+     * @param e the exception the action failed with
+     * @param actionDescription the description of the action
+     * @param attempt the number of previous failed attempts of this action
+     * @return the {@link Action}
+     */
+    public Action getAction(Exception e, String actionDescription, int attempt) {
+        Action action = lookup(e.getClass(), getOperation(actionDescription));
+        if (attempt >= getMaxLightAttempts() && action.compareTo(Action.RECOVER) < 0) {
+            return Action.RECOVER;
+        }
+        return action;
+    }
+
+    /**
+     * Gets the delay before a {@link Action#BACKOFF_RETRY}: exponential in the attempt, with
+     * +/- 50% jitter so devices failing together don't retry in lockstep.
+     *
+     * @param attempt the number of previous failed attempts of the action
+     * @return the delay in ms
+     */
+    public long getBackoffTime(int attempt) {
+        long delay = Math.min(BACKOFF_BASE_TIME << Math.min(attempt, 10), BACKOFF_MAX_TIME);
+        double jitter;
+        synchronized (mRandom) {
+            jitter = 0.5 + mRandom.nextDouble();
+        }
+        return (long)(delay * jitter);
+    }
+
+    private synchronized int getMaxLightAttempts() {
+        return mMaxLightAttempts;
+    }
+
+    private synchronized Action lookup(Class<?> exceptionType, String operation) {
+        Action action = null;
+        int bestDistance = Integer.MAX_VALUE;
+        boolean bestSpecific = false;
+        for (Rule rule : mRules) {
+            boolean specific = rule.mOperation != null;
+            if (specific && !rule.mOperation.equals(operation)) {
+                continue;
+            }
+            int distance = getDistance(exceptionType, rule.mExceptionType);
+            if (distance < 0) {
+                continue;
+            }
+            if ((specific && !bestSpecific) || (specific == bestSpecific
+                    && distance < bestDistance)) {
+                action = rule.mAction;
+                bestDistance = distance;
+                bestSpecific = specific;
+            }
+        }
+        return action == null ? Action.RECOVER : action;
+    }
+
+    /**
+     * @return the number of superclass steps from type to superType, or -1 if type is not a
+     *         subclass of superType
+     */
+    private static int getDistance(Class<?> type, Class<?> superType) {
+        int distance = 0;
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            if (c.equals(superType)) {
+                return distance;
+            }
+            distance++;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the operation class of an action description
+     */
+    static String getOperation(String actionDescription) {
+        int index = actionDescription.indexOf(' ');
+        return index < 0 ? actionDescription : actionDescription.substring(0, index);
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
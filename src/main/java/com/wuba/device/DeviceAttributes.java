@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wuba.device;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+
+import com.android.ddmlib.IDevice;
+
+/**
+ * An immutable snapshot of the device attributes used for device selection.
+ * <p/>
+ * A snapshot is captured once, outside of any allocation lock, so that matching an available
+ * device against a {@link IDeviceSelection} never issues an adb command. Other device properties
+ * are read from the ddmlib property cache.
+ */
+public class DeviceAttributes {
+    private static Logger LOG = Logger.getLogger("DeviceAttributes");
+
+    /** max time in ms to wait for a device query */
+    static final long QUERY_TIMEOUT = 5 * 1000;
+
+    private final IDevice mDevice;
+    private final String mProductType;
+    private final String mProductVariant;
+    private final Integer mBatteryLevel;
+    private final long mCaptureTime;
+
+    DeviceAttributes(IDevice device, String productType, String productVariant,
+            Integer batteryLevel, long captureTime) {
+        mDevice = device;
+        mProductType = productType;
+        mProductVariant = productVariant;
+        mBatteryLevel = batteryLevel;
+        mCaptureTime = captureTime;
+    }
+
+    /**
+     * Captures the attributes of given device, querying the device for the product type, product
+     * variant and battery level if they are not cached yet.
+     * <p/>
+     * This may issue adb commands, so must not be called with an allocation lock held.
+     *
+     * @param device the {@link IDevice} to capture
+     * @return the {@link DeviceAttributes}
+     */
+    public static DeviceAttributes capture(IDevice device) {
+        return capture(device, true);
+    }
+
+    /**
+     * Captures the attributes of given device.
+     *
+     * @param device the {@link IDevice} to capture
+     * @param includeBattery whether to query the battery level
+     * @return the {@link DeviceAttributes}
+     * @see #capture(IDevice)
+     */
+    public static DeviceAttributes capture(IDevice device, boolean includeBattery) {
+        return capture(device, true, includeBattery);
+    }
+
+    /**
+     * Captures the attributes of given device, only querying the device for the attributes
+     * that are asked for. Other attributes are read from the ddmlib property cache.
+     *
+     * @param device the {@link IDevice} to capture
+     * @param includeProduct whether to query the product type and variant
+     * @param includeBattery whether to query the battery level
+     * @return the {@link DeviceAttributes}
+     * @see #capture(IDevice)
+     */
+    public static DeviceAttributes capture(IDevice device, boolean includeProduct,
+            boolean includeBattery) {
+        if (device instanceof StubDevice) {
+            return fromCache(device);
+        }
+        String productType;
+        String productVariant;
+        if (includeProduct) {
+            productType = getProperty(device, DeviceSelectionOptions.DEVICE_PRODUCT_PROPERTY);
+            productVariant = getProperty(device, DeviceSelectionOptions.DEVICE_VARIANT_PROPERTY);
+        } else {
+            productType = device.getProperty(DeviceSelectionOptions.DEVICE_PRODUCT_PROPERTY);
+            productVariant = device.getProperty(DeviceSelectionOptions.DEVICE_VARIANT_PROPERTY);
+        }
+        Integer batteryLevel = includeBattery ? getBatteryLevel(device) : null;
+        return new DeviceAttributes(device, productType, productVariant, batteryLevel,
+                System.currentTimeMillis());
+    }
+
+    /**
+     * Creates the attributes of given device from the ddmlib property cache only. Never issues
+     * an adb command. The battery level is unknown.
+     *
+     * @param device the {@link IDevice}
+     * @return the {@link DeviceAttributes}
+     */
+    public static DeviceAttributes fromCache(IDevice device) {
+        return new DeviceAttributes(device,
+                device.getProperty(DeviceSelectionOptions.DEVICE_PRODUCT_PROPERTY),
+                device.getProperty(DeviceSelectionOptions.DEVICE_VARIANT_PROPERTY), null,
+                System.currentTimeMillis());
+    }
+
+    /**
+     * @return the device serial number
+     */
+    public String getSerialNumber() {
+        return mDevice.getSerialNumber();
+    }
+
+    /**
+     * @return the device product type or <code>null</code> if unknown
+     */
+    public String getProductType() {
+        return mProductType;
+    }
+
+    /**
+     * @return the device product variant or <code>null</code> if unknown
+     */
+    public String getProductVariant() {
+        return mProductVariant;
+    }
+
+    /**
+     * Gets the value of given device property from the ddmlib property cache.
+     *
+     * @param name the property name
+     * @return the property value or <code>null</code> if unknown
+     */
+    public String getProperty(String name) {
+        return mDevice.getProperty(name);
+    }
+
+    /**
+     * @return the device battery level or <code>null</code> if unknown
+     */
+    public Integer getBatteryLevel() {
+        return mBatteryLevel;
+    }
+
+    /**
+     * @return the time in ms when this snapshot was captured
+     */
+    public long getCaptureTime() {
+        return mCaptureTime;
+    }
+
+    private static String getProperty(IDevice device, String propName) {
+        // a cached property is returned without querying the device
+        try {
+            return device.getSystemProperty(propName).get(QUERY_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            handleException(device, "property", e.getCause());
+        } catch (TimeoutException e) {
+            handleException(device, "property", e);
+        }
+        return null;
+    }
+
+    private static Integer getBatteryLevel(IDevice device) {
+        // a recently read battery level is returned without querying the device
+        try {
+            return device.getBattery().get(QUERY_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            handleException(device, "battery level", e.getCause());
+        } catch (TimeoutException e) {
+            handleException(device, "battery level", e);
+        }
+        return null;
+    }
+
+    private static void handleException(IDevice device, String attribute, Throwable e) {
+        LOG.warn(String.format("Failed to query device %s for %s: %s",
+                device.getSerialNumber(), attribute, e.toString()));
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wuba.device;
+
+/**
+ * Tracks consecutive device action failures of a single device.
+ * <p/>
+ * After {@link #FAILURE_THRESHOLD} failures in a row without any success, the breaker opens for
+ * {@link #OPEN_TIME}: light retries are pointless on such a device, so failures go straight to
+ * full recovery. Once the open time has passed, light retries are allowed again, and the first
+ * success closes the breaker.
+ */
+class DeviceCircuitBreaker {
+
+    /** number of consecutive failures that opens the breaker */
+    static final int FAILURE_THRESHOLD = 3;
+    /** time in ms the breaker stays open */
+    static final long OPEN_TIME = 60 * 1000;
+
+    private int mConsecutiveFailures = 0;
+    private long mOpenUntil = 0;
+    private long mOpenCount = 0;
+
+    /**
+     * Records a successful device action, closing the breaker.
+     */
+    synchronized void recordSuccess() {
+        mConsecutiveFailures = 0;
+        mOpenUntil = 0;
+    }
+
+    /**
+     * Records a failed device action attempt.
+     */
+    synchronized void recordFailure() {
+        mConsecutiveFailures++;
+        if (mConsecutiveFailures >= FAILURE_THRESHOLD && !isOpen()) {
+            mOpenUntil = System.currentTimeMillis() + OPEN_TIME;
+            mOpenCount++;
+        }
+    }
+
+    /**
+     * @return <code>true</code> if light retries should be skipped
+     */
+    synchronized boolean isOpen() {
+        return System.currentTimeMillis() < mOpenUntil;
+    }
+
+    /**
+     * @return the number of times the breaker opened
+     */
+    synchronized long getOpenCount() {
+        return mOpenCount;
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wuba.device;
+
+/**
+ * An incremental change of a single device, as published by an {@link IDeviceMonitor}.
+ * <p/>
+ * Events are published at the point the device manager makes each transition, so no transition
+ * is lost between two listings. Applying all events in sequence order to an empty serial to state
+ * map gives the state the manager last assigned to each admitted device.
+ */
+public class DeviceEvent {
+
+    /** The kind of change */
+    public enum Type {
+        /** device became visible */
+        ADDED,
+        /** device was allocated */
+        ALLOCATED,
+        /** allocated device was returned to the available pool */
+        FREED,
+        /** any other state transition */
+        STATE_CHANGED,
+        /** device is no longer visible */
+        REMOVED;
+    }
+
+    private final long mSequence;
+    private final Type mType;
+    private final String mSerial;
+    private final String mState;
+    private final String mPreviousState;
+    private final long mTimestamp;
+
+    DeviceEvent(long sequence, Type type, String serial, String state, String previousState) {
+        mSequence = sequence;
+        mType = type;
+        mSerial = serial;
+        mState = state;
+        mPreviousState = previousState;
+        mTimestamp = System.currentTimeMillis();
+    }
+
+    /**
+     * Gets the type of change for a device moving between two listed states.
+     *
+     * @param previousState the previous state, or <code>null</code> if the device was not listed
+     * @param state the new state, or <code>null</code> if the device is no longer listed
+     * @return the {@link Type}
+     */
+    static Type getType(String previousState, String state) {
+        if (previousState == null) {
+            return Type.ADDED;
+        } else if (state == null) {
+            return Type.REMOVED;
+        } else if (IDeviceMonitor.STATE_ALLOCATED.equals(state)) {
+            return Type.ALLOCATED;
+        } else if (IDeviceMonitor.STATE_ALLOCATED.equals(previousState)
+                && IDeviceMonitor.STATE_AVAILABLE.equals(state)) {
+            return Type.FREED;
+        }
+        return Type.STATE_CHANGED;
+    }
+
+    /**
+     * @return the sequence number, increasing by one for each event of a monitor
+     */
+    public long getSequence() {
+        return mSequence;
+    }
+
+    /**
+     * @return the {@link Type} of change
+     */
+    public Type getType() {
+        return mType;
+    }
+
+    /**
+     * @return the device serial
+     */
+    public String getSerial() {
+        return mSerial;
+    }
+
+    /**
+     * @return the new state, or <code>null</code> for {@link Type#REMOVED}
+     */
+    public String getState() {
+        return mState;
+    }
+
+    /**
+     * @return the previous state, or <code>null</code> for {@link Type#ADDED}
+     */
+    public String getPreviousState() {
+        return mPreviousState;
+    }
+
+    /**
+     * @return the time in ms when the change was observed
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("#%d %s %s %s -> %s", mSequence, mType, mSerial, mPreviousState,
+                mState);
+    }
+}
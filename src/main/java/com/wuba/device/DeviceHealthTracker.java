@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wuba.device;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.android.ddmlib.AdbCommandRejectedException;
+import com.android.ddmlib.CollectingOutputReceiver;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.ShellCommandUnresponsiveException;
+import com.android.ddmlib.TimeoutException;
+
+/**
+ * Keeps a health score per device, so devices that keep failing can be quarantined.
+ * <p/>
+ * A score is {@link #MAX_SCORE} minus penalties. Recoveries, unresponsive frees and errors, run
+ * failures and failed probes add penalty points, which decay with a half life of
+ * {@link #PENALTY_HALF_LIFE}, so a device heals over time. A shell latency persistently above
+ * {@link #SLOW_SHELL_LATENCY} adds a further penalty while it lasts. Successful probes of a
+ * quarantined device remove penalty points.
+ */
+public class DeviceHealthTracker {
+
+    /** score of a device without any recorded problem */
+    static final double MAX_SCORE = 100;
+    /** devices scoring below this are quarantined */
+    static final double QUARANTINE_THRESHOLD = 50;
+    /** quarantined devices scoring at least this are re-admitted */
+    static final double READMIT_THRESHOLD = 70;
+
+    static final double RECOVERY_PENALTY = 10;
+    static final double UNRESPONSIVE_PENALTY = 30;
+    /** lower than {@link #UNRESPONSIVE_PENALTY}, as the device is usually freed unresponsive too */
+    static final double UNRESPONSIVE_ERROR_PENALTY = 15;
+    static final double RUN_FAILURE_PENALTY = 15;
+    static final double PROBE_FAILURE_PENALTY = 5;
+    static final double PROBE_SUCCESS_CREDIT = 15;
+
+    /** time in ms after which penalty points are halved */
+    static final long PENALTY_HALF_LIFE = 60 * 60 * 1000;
+    /** shell latency in ms above which a device is penalized */
+    static final long SLOW_SHELL_LATENCY = 1000;
+    /** max penalty for a slow shell */
+    static final double MAX_LATENCY_PENALTY = 20;
+    /** max time in ms to wait for the output of a probe command */
+    static final long PROBE_TIMEOUT = 2 * 1000;
+
+    private static final String PROBE_CMD = "echo ok";
+
+    /**
+     * The health of a single device.
+     */
+    private static class Health {
+        private double mPenalty = 0;
+        private long mLastUpdate = 0;
+        /** exponentially weighted average shell latency in ms, or -1 if unknown */
+        private double mShellLatency = -1;
+
+        synchronized void addPenalty(double points, long now) {
+            mPenalty = Math.max(0, getDecayedPenalty(now) + points);
+            mLastUpdate = now;
+        }
+
+        synchronized void recordShellLatency(long latency) {
+            mShellLatency = mShellLatency < 0 ? latency : 0.7 * mShellLatency + 0.3 * latency;
+        }
+
+        synchronized double getScore(long now) {
+            double latencyPenalty = 0;
+            if (mShellLatency > SLOW_SHELL_LATENCY) {
+                latencyPenalty = Math.min(MAX_LATENCY_PENALTY,
+                        (mShellLatency - SLOW_SHELL_LATENCY) / 100);
+            }
+            return Math.max(0, MAX_SCORE - getDecayedPenalty(now) - latencyPenalty);
+        }
+
+        private double getDecayedPenalty(long now) {
+            if (mPenalty == 0) {
+                return 0;
+            }
+            long elapsed = now - mLastUpdate;
+            return mPenalty * Math.pow(0.5, (double)elapsed / PENALTY_HALF_LIFE);
+        }
+    }
+
+    private final ConcurrentMap<String, Health> mHealth = new ConcurrentHashMap<String, Health>();
+
+    private Health getHealth(String serial) {
+        Health health = mHealth.get(serial);
+        if (health == null) {
+            Health newHealth = new Health();
+            health = mHealth.putIfAbsent(serial, newHealth);
+            if (health == null) {
+                health = newHealth;
+            }
+        }
+        return health;
+    }
+
+    /**
+     * Gets the current time in ms.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    long getCurrentTime() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Records a recovery of the device.
+     */
+    public void recordRecovery(String serial) {
+        getHealth(serial).addPenalty(RECOVERY_PENALTY, getCurrentTime());
+    }
+
+    /**
+     * Records the device being freed as unresponsive.
+     */
+    public void recordUnresponsive(String serial) {
+        getHealth(serial).addPenalty(UNRESPONSIVE_PENALTY, getCurrentTime());
+    }
+
+    /**
+     * Records a device action that gave up on the device, ie a
+     * {@link DeviceUnresponsiveException}.
+     */
+    public void recordUnresponsiveError(String serial) {
+        getHealth(serial).addPenalty(UNRESPONSIVE_ERROR_PENALTY, getCurrentTime());
+    }
+
+    /**
+     * Records a test run that failed because of the device.
+     */
+    public void recordRunFailure(String serial) {
+        getHealth(serial).addPenalty(RUN_FAILURE_PENALTY, getCurrentTime());
+    }
+
+    /**
+     * Records the time a trivial shell command took on the device.
+     */
+    public void recordShellLatency(String serial, long latency) {
+        getHealth(serial).recordShellLatency(latency);
+    }
+
+    /**
+     * Records the result of probing a quarantined device.
+     *
+     * @param serial the device serial
+     * @param success whether the device responded
+     * @param latency the time in ms the probe took
+     */
+    public void recordProbe(String serial, boolean success, long latency) {
+        Health health = getHealth(serial);
+        if (success) {
+            health.recordShellLatency(latency);
+            health.addPenalty(-PROBE_SUCCESS_CREDIT, getCurrentTime());
+        } else {
+            health.addPenalty(PROBE_FAILURE_PENALTY, getCurrentTime());
+        }
+    }
+
+    /**
+     * Times a trivial shell command on the device.
+     *
+     * @param device the {@link IDevice} to probe
+     * @return the time in ms the command took, or -1 if the device did not respond
+     */
+    public static long probeShellLatency(IDevice device) {
+        CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+        long start = System.currentTimeMillis();
+        try {
+            device.executeShellCommand(PROBE_CMD, receiver, PROBE_TIMEOUT,
+                    TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return -1;
+        } catch (AdbCommandRejectedException e) {
+            return -1;
+        } catch (ShellCommandUnresponsiveException e) {
+            return -1;
+        } catch (IOException e) {
+            return -1;
+        }
+        if (!receiver.getOutput().contains("ok")) {
+            return -1;
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    /**
+     * @return the health score of the device, from 0 to {@link #MAX_SCORE}
+     */
+    public double getScore(String serial) {
+        Health health = mHealth.get(serial);
+        return health == null ? MAX_SCORE : health.getScore(getCurrentTime());
+    }
+
+    /**
+     * @return <code>true</code> if the device is unhealthy enough to be quarantined
+     */
+    public boolean shouldQuarantine(String serial) {
+        return getScore(serial) < QUARANTINE_THRESHOLD;
+    }
+
+    /**
+     * @return <code>true</code> if a quarantined device is healthy enough to be re-admitted
+     */
+    public boolean canReadmit(String serial) {
+        return getScore(serial) >= READMIT_THRESHOLD;
+    }
+
+    /**
+     * @return the health score of every device with recorded events, by serial
+     */
+    public Map<String, Double> getScores() {
+        Map<String, Double> scores = new HashMap<String, Double>();
+        for (Map.Entry<String, Health> entry : mHealth.entrySet()) {
+            scores.put(entry.getKey(), entry.getValue().getScore(getCurrentTime()));
+        }
+        return scores;
+    }
+}
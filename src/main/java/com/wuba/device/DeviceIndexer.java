@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wuba.device;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.android.ddmlib.IDevice;
+import com.wuba.utils.ConditionPriorityBlockingQueue.IIndexer;
+
+/**
+ * A {@link IIndexer} for the available device queue.
+ * <p/>
+ * Devices are keyed by serial number, and bucketed by product type, product variant and
+ * device kind. Only the {@link DeviceAttributes} snapshots and the ddmlib property cache are
+ * consulted, so indexing a device never issues an adb command.
+ */
+class DeviceIndexer implements IIndexer<IDevice> {
+
+    /** the product type attribute name */
+    static final String ATTR_PRODUCT = "product";
+    /** the product variant attribute name */
+    static final String ATTR_VARIANT = "variant";
+    /** the device kind attribute name */
+    static final String ATTR_KIND = "kind";
+
+    /** kind of a {@link NullDevice} placeholder */
+    static final String KIND_NULL = "null";
+    /** kind of a {@link StubDevice} emulator placeholder */
+    static final String KIND_STUB_EMULATOR = "stub-emulator";
+    /** kind of a running emulator */
+    static final String KIND_EMULATOR = "emulator";
+    /** kind of a physical device */
+    static final String KIND_DEVICE = "device";
+
+    private final Map<String, DeviceAttributes> mDeviceAttributes;
+
+    /**
+     * Creates a {@link DeviceIndexer}.
+     *
+     * @param deviceAttributes the {@link DeviceAttributes} snapshots by serial
+     */
+    DeviceIndexer(Map<String, DeviceAttributes> deviceAttributes) {
+        mDeviceAttributes = deviceAttributes;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getKey(IDevice device) {
+        return device.getSerialNumber();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Map<String, String> getAttributes(IDevice device) {
+        Map<String, String> attributes = new HashMap<String, String>(3);
+        attributes.put(ATTR_KIND, getKind(device));
+        if (!(device instanceof StubDevice)) {
+            DeviceAttributes deviceAttributes = mDeviceAttributes.get(device.getSerialNumber());
+            if (deviceAttributes == null) {
+                deviceAttributes = DeviceAttributes.fromCache(device);
+            }
+            attributes.put(ATTR_PRODUCT, deviceAttributes.getProductType());
+            attributes.put(ATTR_VARIANT, deviceAttributes.getProductVariant());
+        }
+        return attributes;
+    }
+
+    /**
+     * Gets the kind of given device.
+     *
+     * @param device the {@link IDevice}
+     * @return one of the KIND_* constants
+     */
+    static String getKind(IDevice device) {
+        if (device instanceof NullDevice) {
+            return KIND_NULL;
+        } else if (device.isEmulator()) {
+            return device instanceof StubDevice ? KIND_STUB_EMULATOR : KIND_EMULATOR;
+        }
+        return KIND_DEVICE;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wuba.device;
+
+/**
+ * A time limited claim on an allocated device.
+ * <p/>
+ * The holder of an allocated device must {@link #renew()} its lease before it expires. Once
+ * expired, the device is reclaimed and returned to the available pool, as if it had been freed.
+ */
+public class DeviceLease {
+
+    private final String mSerial;
+    private final long mTtl;
+    private final DeviceLeaseTracker mTracker;
+    private volatile long mExpiryTime;
+
+    DeviceLease(String serial, long ttl, DeviceLeaseTracker tracker) {
+        mSerial = serial;
+        mTtl = ttl;
+        mTracker = tracker;
+        mExpiryTime = System.currentTimeMillis() + ttl;
+    }
+
+    /**
+     * @return the serial number of the leased device
+     */
+    public String getSerialNumber() {
+        return mSerial;
+    }
+
+    /**
+     * @return the time to live in ms granted by each renewal
+     */
+    public long getTtl() {
+        return mTtl;
+    }
+
+    /**
+     * @return the time in ms when the lease expires
+     */
+    public long getExpiryTime() {
+        return mExpiryTime;
+    }
+
+    /**
+     * Extends the lease by its time to live, starting now.
+     * <p/>
+     * A lease that has expired or was released cannot be renewed: its device may already have
+     * been reclaimed and allocated to someone else.
+     *
+     * @return <code>true</code> if the lease was renewed, <code>false</code> if it is no longer
+     *         held and the device must not be used anymore
+     */
+    public boolean renew() {
+        long now = System.currentTimeMillis();
+        if (isExpired(now) || mTracker.get(mSerial) != this) {
+            return false;
+        }
+        mExpiryTime = now + mTtl;
+        // the lease may have been reaped while being extended
+        if (mTracker.get(mSerial) != this) {
+            return false;
+        }
+        mTracker.recordRenewal();
+        return true;
+    }
+
+    /**
+     * @return <code>true</code> if the lease had expired at given time
+     */
+    boolean isExpired(long time) {
+        return time > mExpiryTime;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wuba.device;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the {@link DeviceLease}s of the allocated devices, and of lease metrics.
+ */
+public class DeviceLeaseTracker {
+
+    private final ConcurrentMap<String, DeviceLease> mLeases =
+            new ConcurrentHashMap<String, DeviceLease>();
+    /** the lease time to live in ms, or 0 if leases never expire */
+    private volatile long mTtl = 0;
+
+    private final AtomicLong mGrantedCount = new AtomicLong();
+    private final AtomicLong mRenewalCount = new AtomicLong();
+    private final AtomicLong mReleasedCount = new AtomicLong();
+    private final AtomicLong mExpiredCount = new AtomicLong();
+    private final AtomicLong mReclaimedAvailableCount = new AtomicLong();
+    private final AtomicLong mReclaimedUnavailableCount = new AtomicLong();
+
+    /**
+     * Sets the time to live of the leases granted from now on.
+     *
+     * @param ttl the time to live in ms, or 0 if leases never expire
+     */
+    void setTtl(long ttl) {
+        mTtl = ttl;
+    }
+
+    /**
+     * Grants a lease on a newly allocated device.
+     */
+    DeviceLease grant(String serial) {
+        long ttl = mTtl > 0 ? mTtl : Long.MAX_VALUE / 2;
+        DeviceLease lease = new DeviceLease(serial, ttl, this);
+        mLeases.put(serial, lease);
+        mGrantedCount.incrementAndGet();
+        return lease;
+    }
+
+    /**
+     * Ends the lease on a freed device.
+     */
+    void release(String serial) {
+        if (mLeases.remove(serial) != null) {
+            mReleasedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Gets the lease on given device.
+     *
+     * @return the {@link DeviceLease} or <code>null</code> if the device is not allocated
+     */
+    DeviceLease get(String serial) {
+        return mLeases.get(serial);
+    }
+
+    /**
+     * Removes and returns the leases that have expired.
+     */
+    List<DeviceLease> removeExpired() {
+        long now = System.currentTimeMillis();
+        List<DeviceLease> expired = new ArrayList<DeviceLease>();
+        for (DeviceLease lease : mLeases.values()) {
+            if (lease.isExpired(now) && mLeases.remove(lease.getSerialNumber(), lease)) {
+                expired.add(lease);
+                mExpiredCount.incrementAndGet();
+            }
+        }
+        return expired;
+    }
+
+    void recordRenewal() {
+        mRenewalCount.incrementAndGet();
+    }
+
+    /**
+     * Records the outcome of reclaiming the device of an expired lease.
+     *
+     * @param available <code>true</code> if the device was returned to the available pool
+     */
+    void recordReclaim(boolean available) {
+        if (available) {
+            mReclaimedAvailableCount.incrementAndGet();
+        } else {
+            mReclaimedUnavailableCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the number of current leases
+     */
+    public int getActiveCount() {
+        return mLeases.size();
+    }
+
+    /**
+     * @return the number of leases granted
+     */
+    public long getGrantedCount() {
+        return mGrantedCount.get();
+    }
+
+    /**
+     * @return the number of lease renewals
+     */
+    public long getRenewalCount() {
+        return mRenewalCount.get();
+    }
+
+    /**
+     * @return the number of leases ended by freeing the device
+     */
+    public long getReleasedCount() {
+        return mReleasedCount.get();
+    }
+
+    /**
+     * @return the number of leases that expired, ie of leaked devices
+     */
+    public long getExpiredCount() {
+        return mExpiredCount.get();
+    }
+
+    /**
+     * @return the number of leaked devices returned to the available pool
+     */
+    public long getReclaimedAvailableCount() {
+        return mReclaimedAvailableCount.get();
+    }
+
+    /**
+     * @return the number of leaked devices that failed the health check
+     */
+    public long getReclaimedUnavailableCount() {
+        return mReclaimedUnavailableCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("active=%d granted=%d renewed=%d released=%d expired=%d "
+                + "reclaimed-available=%d reclaimed-unavailable=%d", getActiveCount(),
+                getGrantedCount(), getRenewalCount(), getReleasedCount(), getExpiredCount(),
+                getReclaimedAvailableCount(), getReclaimedUnavailableCount());
+    }
+}
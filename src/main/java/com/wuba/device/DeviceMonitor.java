@@ -3,30 +3,101 @@
  */
 package com.wuba.device;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Observer;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.log4j.Logger;
 
+import com.android.ddmlib.IDevice;
+
 /**
  * @author hui.qian qianhui@58.com
  * @date 2015年8月27日 下午3:42:19
  */
 public class DeviceMonitor implements IDeviceMonitor {
 
-	private List<IDeviceStateObserver> observers = new ArrayList<IDeviceStateObserver>();
+	/** default time in ms to coalesce state changes before notifying */
+	private static final long DEFAULT_NOTIFY_WINDOW = 500;
+	/** max number of {@link DeviceEvent}s retained for late subscribers */
+	static final int MAX_RETAINED_EVENTS = 1024;
+
+	private final List<ObserverDispatcher> observers = new CopyOnWriteArrayList<ObserverDispatcher>();
 	private static Logger LOG = Logger.getLogger("DeviceMonitor.class");
 	private DeviceLister lister;
 
+	private final Object mNotifyLock = new Object();
+	/** whether a state change was signalled since the last snapshot */
+	private boolean mChanged = false;
+	private long mNotifyWindow = DEFAULT_NOTIFY_WINDOW;
+	private Notifier mNotifier = null;
+	private boolean mTerminated = false;
+
+	/** guards the event stream, its listeners and the last published states */
+	private final Object mEventLock = new Object();
+	private final Deque<DeviceEvent> mRetainedEvents = new ArrayDeque<DeviceEvent>();
+	private final List<EventDispatcher> mEventDispatchers = new ArrayList<EventDispatcher>();
+	/** the last published state by device serial */
+	private final Map<String, String> mLastStates = new HashMap<String, String>();
+	private long mLastSequence = 0;
+
+	/**
+	 * Sets the time to coalesce state changes before observers are notified.
+	 * 
+	 * @param notifyWindow
+	 *            the time in ms. 0 notifies as soon as the notifier thread
+	 *            wakes up.
+	 */
+	public void setNotifyWindow(long notifyWindow) {
+		synchronized (mNotifyLock) {
+			mNotifyWindow = notifyWindow;
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
 	 * @see com.wuba.device.IDeviceMonitor#run()
 	 */
 	public void run() {
-		// TODO Auto-generated method stub
+		synchronized (mNotifyLock) {
+			if (mNotifier == null && !mTerminated) {
+				mNotifier = new Notifier();
+				mNotifier.start();
+			}
+		}
+	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	public void terminate() {
+		synchronized (mNotifyLock) {
+			mTerminated = true;
+			if (mNotifier != null) {
+				mNotifier.terminate();
+			}
+		}
+		for (ObserverDispatcher dispatcher : observers) {
+			observers.remove(dispatcher);
+			dispatcher.shutdown();
+		}
+		synchronized (mEventLock) {
+			for (EventDispatcher dispatcher : mEventDispatchers) {
+				dispatcher.shutdown();
+			}
+			mEventDispatchers.clear();
+		}
 	}
 
 	/*
@@ -46,17 +117,126 @@ public class DeviceMonitor implements IDeviceMonitor {
 	 * @see com.wuba.device.IDeviceMonitor#notifyDeviceStateChange()
 	 */
 	public void notifyDeviceStateChange() {
-		// TODO Auto-generated method stub
+		synchronized (mNotifyLock) {
+			if (mTerminated) {
+				return;
+			}
+			if (mNotifier != null) {
+				// coalesced and delivered by the notifier thread
+				mChanged = true;
+				mNotifyLock.notifyAll();
+				return;
+			}
+		}
+		// not started yet, notify on the caller thread
+		deliverSnapshot();
+	}
 
+	/**
+	 * Lists devices once, and hands the same snapshot to all observers.
+	 */
+	private void deliverSnapshot() {
+		DeviceLister currentLister = lister;
+		if (currentLister == null) {
+			return;
+		}
 		LOG.info("设备状态发生改变");
-		for (IDeviceStateObserver observer : observers) {
-			observer.updateDeviceDevice(lister);
+		final Map<IDevice, String> snapshot = Collections
+				.unmodifiableMap(currentLister.listDevices());
+		SnapshotLister snapshotLister = new SnapshotLister(snapshot);
+		for (ObserverDispatcher dispatcher : observers) {
+			dispatcher.dispatch(snapshotLister);
 		}
 	}
 
-	public void registerObserver(IDeviceStateObserver observer) {
-		observers.add(observer);
+	/**
+	 * Gets the delivery statistics of each registered observer.
+	 * 
+	 * @return the {@link ObserverStats} by observer
+	 */
+	public Map<IDeviceStateObserver, ObserverStats> getObserverStats() {
+		Map<IDeviceStateObserver, ObserverStats> stats = new HashMap<IDeviceStateObserver, ObserverStats>();
+		for (ObserverDispatcher dispatcher : observers) {
+			stats.put(dispatcher.mObserver, dispatcher.mStats);
+		}
+		return stats;
+	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	public void deviceStateChanged(String serial, String state) {
+		synchronized (mEventLock) {
+			String previousState = state == null ? mLastStates.remove(serial)
+					: mLastStates.put(serial, state);
+			if (previousState == null ? state == null : previousState
+					.equals(state)) {
+				return;
+			}
+			DeviceEvent event = new DeviceEvent(++mLastSequence,
+					DeviceEvent.getType(previousState, state), serial, state,
+					previousState);
+			mRetainedEvents.addLast(event);
+			if (mRetainedEvents.size() > MAX_RETAINED_EVENTS) {
+				mRetainedEvents.removeFirst();
+			}
+			// only queued under the lock, so events reach each listener in
+			// sequence order without a slow listener holding up the others
+			for (EventDispatcher dispatcher : mEventDispatchers) {
+				dispatcher.dispatch(event);
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean subscribe(IDeviceEventListener listener, long fromSequence) {
+		synchronized (mEventLock) {
+			boolean complete = mRetainedEvents.isEmpty()
+					|| mRetainedEvents.getFirst().getSequence() <= fromSequence + 1;
+			EventDispatcher dispatcher = new EventDispatcher(listener);
+			for (DeviceEvent event : mRetainedEvents) {
+				if (event.getSequence() > fromSequence) {
+					dispatcher.dispatch(event);
+				}
+			}
+			mEventDispatchers.add(dispatcher);
+			return complete;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void unsubscribe(IDeviceEventListener listener) {
+		synchronized (mEventLock) {
+			for (EventDispatcher dispatcher : mEventDispatchers) {
+				if (dispatcher.mListener.equals(listener)) {
+					mEventDispatchers.remove(dispatcher);
+					dispatcher.shutdown();
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public long getLastSequence() {
+		synchronized (mEventLock) {
+			return mLastSequence;
+		}
+	}
+
+	public void registerObserver(IDeviceStateObserver observer) {
+		synchronized (mNotifyLock) {
+			if (mTerminated) {
+				return;
+			}
+			observers.add(new ObserverDispatcher(observer));
+		}
 	}
 
 	/*
@@ -66,12 +246,234 @@ public class DeviceMonitor implements IDeviceMonitor {
 	 * IDeviceStateObserver)
 	 */
 	public void removeObserver(IDeviceStateObserver observer) {
-		// TODO Auto-generated method stub
-		int index = observers.indexOf(observer);
-		if (index != -1) {
-			observers.remove(observer);
+		for (ObserverDispatcher dispatcher : observers) {
+			if (dispatcher.mObserver.equals(observer)) {
+				observers.remove(dispatcher);
+				dispatcher.shutdown();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * A {@link DeviceLister} serving one device listing to all observers.
+	 */
+	private static class SnapshotLister extends DeviceLister {
+		private final Map<IDevice, String> mSnapshot;
+		private final long mListTime;
+
+		SnapshotLister(Map<IDevice, String> snapshot) {
+			mSnapshot = snapshot;
+			mListTime = System.currentTimeMillis();
+		}
+
+		public Map<IDevice, String> listDevices() {
+			return mSnapshot;
+		}
+	}
+
+	/**
+	 * Delivery statistics of a single observer.
+	 */
+	public static class ObserverStats {
+		private long mDeliveredCount = 0;
+		private long mSkippedCount = 0;
+		private long mLastLag = 0;
+		private long mMaxLag = 0;
+
+		synchronized void recordDelivery(long lag) {
+			mDeliveredCount++;
+			mLastLag = lag;
+			mMaxLag = Math.max(mMaxLag, lag);
+		}
+
+		synchronized void recordSkipped() {
+			mSkippedCount++;
+		}
+
+		/**
+		 * @return the number of listings delivered to the observer
+		 */
+		public synchronized long getDeliveredCount() {
+			return mDeliveredCount;
+		}
+
+		/**
+		 * @return the number of listings replaced by a newer one before the
+		 *         observer could process them
+		 */
+		public synchronized long getSkippedCount() {
+			return mSkippedCount;
+		}
+
+		/**
+		 * @return the time in ms between listing the devices and the observer
+		 *         finishing processing, for the last delivery
+		 */
+		public synchronized long getLastLag() {
+			return mLastLag;
+		}
+
+		/**
+		 * @return the largest lag in ms of any delivery
+		 */
+		public synchronized long getMaxLag() {
+			return mMaxLag;
+		}
+	}
+
+	/**
+	 * Delivers listings to a single observer on its own thread.
+	 * <p/>
+	 * At most one listing is pending per observer: a slow observer skips to
+	 * the latest listing instead of queuing stale ones, and never delays the
+	 * other observers.
+	 */
+	private static class ObserverDispatcher implements Runnable {
+		private final IDeviceStateObserver mObserver;
+		private final ObserverStats mStats = new ObserverStats();
+		private final AtomicReference<SnapshotLister> mPending = new AtomicReference<SnapshotLister>();
+		private final ExecutorService mExecutor;
+
+		ObserverDispatcher(IDeviceStateObserver observer) {
+			mObserver = observer;
+			mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, String.format(
+							"DeviceObserver-%s", mObserver.getClass()
+									.getSimpleName()));
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+
+		void dispatch(SnapshotLister snapshotLister) {
+			if (mPending.getAndSet(snapshotLister) != null) {
+				// the previous listing was not picked up yet, it is superseded
+				mStats.recordSkipped();
+				return;
+			}
+			try {
+				mExecutor.execute(this);
+			} catch (RejectedExecutionException e) {
+				// observer was removed concurrently
+			}
 		}
 
+		void shutdown() {
+			mExecutor.shutdown();
+		}
+
+		public void run() {
+			SnapshotLister snapshotLister = mPending.getAndSet(null);
+			if (snapshotLister == null) {
+				return;
+			}
+			try {
+				mObserver.updateDeviceDevice(snapshotLister);
+			} catch (RuntimeException e) {
+				LOG.error(String.format("Observer %s failed", mObserver), e);
+			}
+			mStats.recordDelivery(System.currentTimeMillis()
+					- snapshotLister.mListTime);
+		}
+	}
+
+	/**
+	 * Delivers {@link DeviceEvent}s to a single listener on its own thread, in
+	 * sequence order. Unlike observer listings, events are never skipped.
+	 */
+	private static class EventDispatcher {
+		private final IDeviceEventListener mListener;
+		private final ExecutorService mExecutor;
+
+		EventDispatcher(IDeviceEventListener listener) {
+			mListener = listener;
+			mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, String.format(
+							"DeviceEventListener-%s", mListener.getClass()
+									.getSimpleName()));
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+
+		void dispatch(final DeviceEvent event) {
+			try {
+				mExecutor.execute(new Runnable() {
+
+					public void run() {
+						try {
+							mListener.deviceChanged(event);
+						} catch (RuntimeException e) {
+							LOG.error(String.format(
+									"Event listener %s failed on %s",
+									mListener, event), e);
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// listener was unsubscribed concurrently
+			}
+		}
+
+		void shutdown() {
+			mExecutor.shutdown();
+		}
+	}
+
+	/**
+	 * Delivers coalesced device state changes off the allocation path.
+	 * <p/>
+	 * After the first change is signalled, waits for the notify window so a
+	 * burst of changes results in a single device listing.
+	 */
+	private class Notifier extends Thread {
+
+		private boolean mQuit = false;
+
+		Notifier() {
+			super("DeviceMonitorNotifier");
+			setDaemon(true);
+		}
+
+		public void terminate() {
+			mQuit = true;
+			interrupt();
+		}
+
+		public void run() {
+			while (!mQuit) {
+				try {
+					synchronized (mNotifyLock) {
+						while (!mChanged) {
+							mNotifyLock.wait();
+						}
+						// later changes notify the lock too, so wait out the
+						// whole window
+						long deadline = System.currentTimeMillis()
+								+ mNotifyWindow;
+						long remaining = mNotifyWindow;
+						while (remaining > 0) {
+							mNotifyLock.wait(remaining);
+							remaining = deadline - System.currentTimeMillis();
+						}
+						mChanged = false;
+					}
+					deliverSnapshot();
+				} catch (InterruptedException e) {
+					LOG.info("DeviceMonitor notifier interrupted");
+					return;
+				} catch (RuntimeException e) {
+					LOG.error("Failed to notify device state change", e);
+				}
+			}
+		}
 	}
 
 }
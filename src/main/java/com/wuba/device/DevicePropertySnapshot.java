@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wuba.device;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An immutable snapshot of all device properties, as returned by a single `adb shell getprop`.
+ */
+public class DevicePropertySnapshot {
+
+    /** the shell command used to dump all properties */
+    static final String GETPROP_CMD = "getprop";
+    /** the prefix of the properties that can't change once the device has booted */
+    private static final String READ_ONLY_PREFIX = "ro.";
+
+    /** matches a "[name]: [value]" line of getprop output */
+    private static final Pattern PROP_PATTERN = Pattern.compile("^\\[([^\\]]+)\\]:\\s*\\[(.*)\\]$");
+
+    private final Map<String, String> mProperties;
+    private final long mCaptureTime;
+
+    DevicePropertySnapshot(Map<String, String> properties, long captureTime) {
+        mProperties = Collections.unmodifiableMap(new HashMap<String, String>(properties));
+        mCaptureTime = captureTime;
+    }
+
+    /**
+     * Parses the output of getprop into a {@link DevicePropertySnapshot}.
+     *
+     * @param output the getprop output
+     * @return the {@link DevicePropertySnapshot}, possibly empty
+     */
+    public static DevicePropertySnapshot parse(String output) {
+        Map<String, String> properties = new HashMap<String, String>();
+        if (output != null) {
+            for (String line : output.split("\r?\n")) {
+                Matcher matcher = PROP_PATTERN.matcher(line.trim());
+                if (matcher.matches()) {
+                    properties.put(matcher.group(1), matcher.group(2));
+                }
+            }
+        }
+        return new DevicePropertySnapshot(properties, System.currentTimeMillis());
+    }
+
+    /**
+     * Checks whether given property is read-only, ie can safely be served from a snapshot.
+     *
+     * @param name the property name
+     * @return <code>true</code> if the property can't change once the device has booted
+     */
+    public static boolean isReadOnly(String name) {
+        return name.startsWith(READ_ONLY_PREFIX);
+    }
+
+    /**
+     * Gets the value of the given property.
+     *
+     * @param name the property name
+     * @return the property value, or <code>null</code> if it was not set when captured
+     */
+    public String getProperty(String name) {
+        return mProperties.get(name);
+    }
+
+    /**
+     * @return an unmodifiable view of all captured properties
+     */
+    public Map<String, String> getProperties() {
+        return mProperties;
+    }
+
+    /**
+     * @return <code>true</code> if no property could be parsed
+     */
+    public boolean isEmpty() {
+        return mProperties.isEmpty();
+    }
+
+    /**
+     * @return the time in ms when this snapshot was captured
+     */
+    public long getCaptureTime() {
+        return mCaptureTime;
+    }
+
+    /**
+     * Checks whether this snapshot is older than given time to live.
+     *
+     * @param ttl the time to live in ms
+     * @return <code>true</code> if this snapshot should no longer be served
+     */
+    public boolean isExpired(long ttl) {
+        return System.currentTimeMillis() - mCaptureTime >= ttl;
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wuba.device;
+
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.android.ddmlib.AdbCommandRejectedException;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.MultiLineReceiver;
+import com.android.ddmlib.ShellCommandUnresponsiveException;
+import com.android.ddmlib.TimeoutException;
+
+/**
+ * Waits for a device to become ready, using a single long-lived shell command.
+ * <p/>
+ * The readiness checks run in a script on the device, which prints a marker as soon as each
+ * stage completes. This avoids a host round-trip and a fixed sleep per check, so a stage is
+ * reported within about a second of completing on the device.
+ * <p/>
+ * The package manager and external storage stages are independent of each other, so once boot
+ * is complete they are checked concurrently.
+ * <p/>
+ * Each polling loop gives up on the device after about the wait time, since cancelling the
+ * receiver on the host does not stop the shell on the device.
+ */
+class DeviceReadinessWatcher {
+    private static Logger LOG = Logger.getLogger("DeviceReadinessWatcher");
+
+    /**
+     * The readiness stages of a device, in the order they are reached.
+     * <p/>
+     * The polling scripts exit after <code>%1$d</code> unsuccessful polls.
+     */
+    enum Stage {
+        /** the device shell is responsive */
+        SHELL("echo READY_SHELL"),
+        /** the device has the dev.bootcomplete flag set */
+        BOOT_COMPLETE("i=0; until [ \"$(getprop dev.bootcomplete)\" = 1 ]; "
+                + "do [ $i -ge %1$d ] && exit; sleep 1; i=$((i+1)); done; "
+                + "echo READY_BOOT_COMPLETE"),
+        /** the device package manager is responsive */
+        PM_RESPONSIVE("i=0; until case \"$(pm path android 2>/dev/null)\" in *package:*) true;; "
+                + "*) false;; esac; do [ $i -ge %1$d ] && exit; sleep 1; i=$((i+1)); done; "
+                + "echo READY_PM_RESPONSIVE"),
+        /** the device external storage is mounted and writable */
+        STORE_MOUNTED("i=0; f=\"$EXTERNAL_STORAGE/.ready_$$\"; "
+                + "until { echo ok > \"$f\"; } 2>/dev/null && [ \"$(cat \"$f\")\" = ok ]; "
+                + "do [ $i -ge %1$d ] && exit; sleep 1; i=$((i+1)); done; rm \"$f\"; "
+                + "echo READY_STORE_MOUNTED");
+
+        private final String mScript;
+
+        Stage(String script) {
+            mScript = script;
+        }
+
+        /**
+         * @param maxPolls the max number of one second polls
+         */
+        String getScript(long maxPolls) {
+            return String.format(mScript, maxPolls);
+        }
+
+        String getMarker() {
+            return "READY_" + name();
+        }
+    }
+
+    private final IDevice mDevice;
+
+    DeviceReadinessWatcher(IDevice device) {
+        mDevice = device;
+    }
+
+    /**
+     * Builds the script that reports each stage up to <var>target</var>.
+     *
+     * @param target the last {@link Stage} to report
+     * @param maxPolls the max number of one second polls of each stage
+     */
+    static String getScript(Stage target, long maxPolls) {
+        StringBuilder script = new StringBuilder(Stage.SHELL.getScript(maxPolls));
+        if (target.compareTo(Stage.BOOT_COMPLETE) >= 0) {
+            script.append("; ").append(Stage.BOOT_COMPLETE.getScript(maxPolls));
+        }
+        if (target == Stage.PM_RESPONSIVE) {
+            script.append("; ").append(Stage.PM_RESPONSIVE.getScript(maxPolls));
+        } else if (target == Stage.STORE_MOUNTED) {
+            script.append("; (").append(Stage.PM_RESPONSIVE.getScript(maxPolls))
+                    .append(") & (").append(Stage.STORE_MOUNTED.getScript(maxPolls))
+                    .append(") & wait");
+        }
+        return script.toString();
+    }
+
+    /**
+     * Blocks until the device reaches given stage.
+     *
+     * @param target the {@link Stage} to wait for
+     * @param waitTime the time in ms to wait
+     * @return the last {@link Stage} reached along with all the stages before it, which is
+     *         <var>target</var> on success, or <code>null</code> if no stage was reached, ie the
+     *         shell is not responsive
+     */
+    Stage waitForStage(Stage target, long waitTime) {
+        StageReceiver receiver = new StageReceiver(target,
+                System.currentTimeMillis() + waitTime);
+        // the loops on the device must end by themselves, round the wait up to whole polls
+        String cmd = getScript(target, (waitTime + 999) / 1000);
+        try {
+            // the receiver enforces the deadline, as stages may take long to report
+            mDevice.executeShellCommand(cmd, receiver, 0, TimeUnit.MILLISECONDS);
+        } catch (IOException e) {
+            handleException(e);
+        } catch (TimeoutException e) {
+            handleException(e);
+        } catch (AdbCommandRejectedException e) {
+            handleException(e);
+        } catch (ShellCommandUnresponsiveException e) {
+            handleException(e);
+        }
+        return receiver.getStage();
+    }
+
+    private void handleException(Exception e) {
+        LOG.info(String.format("Readiness watch of %s failed: %s", mDevice.getSerialNumber(),
+                e.toString()));
+    }
+
+    /**
+     * Records the stage markers printed by the readiness script.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    static class StageReceiver extends MultiLineReceiver {
+        private final Stage mTarget;
+        private final long mDeadline;
+        private final Set<Stage> mReached = EnumSet.noneOf(Stage.class);
+        private volatile Stage mStage = null;
+
+        StageReceiver(Stage target, long deadline) {
+            mTarget = target;
+            mDeadline = deadline;
+        }
+
+        @Override
+        public void processNewLines(String[] lines) {
+            for (String line : lines) {
+                for (Stage stage : Stage.values()) {
+                    if (line.trim().equals(stage.getMarker())) {
+                        mReached.add(stage);
+                    }
+                }
+            }
+            // stages may complete out of order, only count those whose predecessors are done
+            Stage lastStage = null;
+            for (Stage stage : Stage.values()) {
+                if (!mReached.contains(stage)) {
+                    break;
+                }
+                lastStage = stage;
+            }
+            mStage = lastStage;
+        }
+
+        public boolean isCancelled() {
+            return mStage == mTarget || System.currentTimeMillis() > mDeadline;
+        }
+
+        Stage getStage() {
+            return mStage;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wuba.device;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Recovers devices of a {@link CtsDeviceManager} in batches.
+ * <p/>
+ * When many devices drop at once, eg on an adb server restart, each test thread used to pause,
+ * poll fastboot and wait on its own. Recovery requests are instead collected during a single
+ * {@link WaitDeviceRecovery#INITIAL_PAUSE_TIME} pause, then one `fastboot devices` poll is shared
+ * by the whole batch, and all devices of the batch wait to be online and responsive in parallel.
+ * Each requester blocks on a per-device {@link Future}; concurrent requests for the same device
+ * share it.
+ */
+class DeviceRecoveryCoordinator {
+    private static Logger LOG = Logger.getLogger("DeviceRecoveryCoordinator");
+
+    /**
+     * the time in ms allowed for a batch to start the recovery of its devices, ie the initial
+     * pause, the fastboot poll and the fastboot reboots
+     */
+    private static final long MAX_BATCH_START_TIME = WaitDeviceRecovery.INITIAL_PAUSE_TIME + 60 * 1000;
+
+    private final CtsDeviceManager mManager;
+    private final WaitDeviceRecovery mRecovery;
+    private final boolean mFastbootEnabled;
+    private final ExecutorService mExecutor;
+
+    /** requests waiting for the next batch, by serial. Guarded by this. */
+    private final Map<String, RecoveryRequest> mPendingRequests =
+            new LinkedHashMap<String, RecoveryRequest>();
+    /** whether a batch is scheduled to pick up the pending requests. Guarded by this. */
+    private boolean mBatchScheduled = false;
+
+    /**
+     * A pending recovery of a single device.
+     */
+    private class RecoveryRequest implements Callable<Void> {
+        private final IDeviceStateMonitor mMonitor;
+        private volatile boolean mRecoverUntilOnline;
+        private final FutureTask<Void> mFuture;
+
+        RecoveryRequest(IDeviceStateMonitor monitor, boolean recoverUntilOnline) {
+            mMonitor = monitor;
+            mRecoverUntilOnline = recoverUntilOnline;
+            mFuture = new FutureTask<Void>(this);
+        }
+
+        public Void call() throws DeviceNotAvailableException {
+            mRecovery.recoverOnlineDevice(mMonitor, mRecoverUntilOnline);
+            LOG.info(String.format("Recovered %s", mMonitor.getSerialNumber()));
+            return null;
+        }
+    }
+
+    /**
+     * Creates a {@link DeviceRecoveryCoordinator}.
+     *
+     * @param manager the {@link CtsDeviceManager} to poll fastboot devices with
+     * @param recovery the {@link WaitDeviceRecovery} performing the per device steps
+     * @param fastbootEnabled whether fastboot is available
+     */
+    DeviceRecoveryCoordinator(CtsDeviceManager manager, WaitDeviceRecovery recovery,
+            boolean fastbootEnabled) {
+        mManager = manager;
+        mRecovery = recovery;
+        mFastbootEnabled = fastbootEnabled;
+        mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(0);
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, String.format("DeviceRecovery-%d",
+                        mCount.incrementAndGet()));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Requests recovery of a device, to be performed with the next batch.
+     *
+     * @param monitor the {@link IDeviceStateMonitor} of the device
+     * @param recoverUntilOnline if true, the device only needs to be online on adb
+     * @return a {@link Future} completing when the device is recovered, failing with a
+     *         {@link DeviceNotAvailableException} if it could not be
+     */
+    Future<Void> requestRecovery(IDeviceStateMonitor monitor, boolean recoverUntilOnline) {
+        RecoveryRequest request;
+        synchronized (this) {
+            request = mPendingRequests.get(monitor.getSerialNumber());
+            if (request != null) {
+                // share the pending recovery, recovering fully if any requester needs it
+                request.mRecoverUntilOnline &= recoverUntilOnline;
+                return request.mFuture;
+            }
+            mManager.getHealthTracker().recordRecovery(monitor.getSerialNumber());
+            request = new RecoveryRequest(monitor, recoverUntilOnline);
+            mPendingRequests.put(monitor.getSerialNumber(), request);
+            if (mBatchScheduled) {
+                return request.mFuture;
+            }
+            mBatchScheduled = true;
+        }
+        try {
+            mExecutor.execute(new Runnable() {
+                public void run() {
+                    runBatch();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // coordinator was terminated, recover on the caller thread
+            runBatch();
+        }
+        return request.mFuture;
+    }
+
+    /**
+     * Gets a {@link IDeviceRecovery} delegating device recovery to this coordinator.
+     */
+    IDeviceRecovery getDeviceRecovery() {
+        return new CoordinatedRecovery();
+    }
+
+    /**
+     * Stops accepting batches. Running recoveries are left to complete.
+     */
+    void terminate() {
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Runs the pending requests as a batch. Every request taken by the batch is started, even if
+     * the pause or the fastboot steps fail, so that no requester waits on a request that will
+     * never run.
+     */
+    private void runBatch() {
+        List<RecoveryRequest> batch = null;
+        try {
+            LOG.info(String.format("Pausing for %d ms to collect devices to recover",
+                    WaitDeviceRecovery.INITIAL_PAUSE_TIME));
+            mManager.getRunUtil().sleep(WaitDeviceRecovery.INITIAL_PAUSE_TIME);
+            batch = takePendingRequests();
+            LOG.info(String.format("Recovering %d devices", batch.size()));
+            if (mFastbootEnabled) {
+                rebootFastbootDevices(batch);
+            }
+        } finally {
+            if (batch == null) {
+                batch = takePendingRequests();
+            }
+            for (RecoveryRequest request : batch) {
+                try {
+                    mExecutor.execute(request.mFuture);
+                } catch (RejectedExecutionException e) {
+                    request.mFuture.run();
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the longest time in ms to wait for the coordinated recovery of given device.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    long getRecoveryTimeout(IDeviceStateMonitor monitor) {
+        return MAX_BATCH_START_TIME + mRecovery.getMaxOnlineRecoveryTime(monitor);
+    }
+
+    private synchronized List<RecoveryRequest> takePendingRequests() {
+        List<RecoveryRequest> batch = new ArrayList<RecoveryRequest>(mPendingRequests.values());
+        mPendingRequests.clear();
+        mBatchScheduled = false;
+        return batch;
+    }
+
+    /**
+     * Reboots the devices of the batch found in fastboot, with a single fastboot poll.
+     */
+    private void rebootFastbootDevices(List<RecoveryRequest> batch) {
+        Set<String> fastbootSerials = mManager.getDevicesOnFastboot();
+        if (fastbootSerials == null) {
+            return;
+        }
+        for (RecoveryRequest request : batch) {
+            String serial = request.mMonitor.getSerialNumber();
+            if (fastbootSerials.contains(serial)) {
+                mRecovery.rebootFastbootDevice(serial);
+            }
+        }
+    }
+
+    /**
+     * A {@link IDeviceRecovery} blocking on the coordinated recovery of the device.
+     */
+    private class CoordinatedRecovery implements IDeviceRecovery {
+
+        /**
+         * {@inheritDoc}
+         */
+        public void recoverDevice(IDeviceStateMonitor monitor, boolean recoverUntilOnline)
+                throws DeviceNotAvailableException {
+            Future<Void> future = requestRecovery(monitor, recoverUntilOnline);
+            long timeout = getRecoveryTimeout(monitor);
+            try {
+                future.get(timeout, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // the recovery may still complete, later requests will then share a new batch
+                throw new DeviceNotAvailableException(String.format(
+                        "Timed out after %d ms recovering %s", timeout,
+                        monitor.getSerialNumber()));
+            } catch (InterruptedException e) {
+                throw new DeviceNotAvailableException(String.format(
+                        "Interrupted while recovering %s", monitor.getSerialNumber()), e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof DeviceNotAvailableException) {
+                    throw (DeviceNotAvailableException)e.getCause();
+                }
+                throw new DeviceNotAvailableException(String.format(
+                        "Failed to recover %s", monitor.getSerialNumber()), e.getCause());
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void recoverDeviceRecovery(IDeviceStateMonitor monitor)
+                throws DeviceNotAvailableException {
+            mRecovery.recoverDeviceRecovery(monitor);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void recoverDeviceBootloader(IDeviceStateMonitor monitor)
+                throws DeviceNotAvailableException {
+            mRecovery.recoverDeviceBootloader(monitor);
+        }
+    }
+}
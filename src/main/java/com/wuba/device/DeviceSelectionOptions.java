@@ -19,9 +19,11 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.log4j.Logger;
 
@@ -47,6 +49,8 @@ public class DeviceSelectionOptions implements IDeviceSelection {
 
 	private Collection<String> mPropertyStrings = new ArrayList<String>();
 
+	private Collection<String> mPreferredPackages = new ArrayList<String>();
+
 	private boolean mEmulatorRequested = false;
 
 	private boolean mDeviceRequested = false;
@@ -61,11 +65,21 @@ public class DeviceSelectionOptions implements IDeviceSelection {
 
 	private boolean mRequireBatteryCheck = false;
 
+	private String mTenant = null;
+
+	private Integer mPriority = null;
+
 	// If we have tried to fetch the environment variable ANDROID_SERIAL before.
 	private boolean mFetchedEnvVariable = false;
 
 	private static final String VARIANT_SEPARATOR = ":";
 
+	/**
+	 * the compiled form of these options, or <code>null</code> if the options
+	 * have changed since they were last compiled
+	 */
+	private volatile CompiledSelection mCompiled = null;
+
 	public static final String DEVICE_PRODUCT_PROPERTY = "ro.hardware";
 	public static final String DEVICE_VARIANT_PROPERTY = "ro.product.device";
 
@@ -76,6 +90,7 @@ public class DeviceSelectionOptions implements IDeviceSelection {
 	 */
 	public void addSerial(String serialNumber) {
 		mSerials.add(serialNumber);
+		mCompiled = null;
 	}
 
 	/**
@@ -85,6 +100,7 @@ public class DeviceSelectionOptions implements IDeviceSelection {
 	public void setSerial(String... serialNumber) {
 		mSerials.clear();
 		mSerials.addAll(Arrays.asList(serialNumber));
+		mCompiled = null;
 	}
 
 	/**
@@ -94,6 +110,7 @@ public class DeviceSelectionOptions implements IDeviceSelection {
 	 */
 	public void addExcludeSerial(String serialNumber) {
 		mExcludeSerials.add(serialNumber);
+		mCompiled = null;
 	}
 
 	/**
@@ -103,6 +120,7 @@ public class DeviceSelectionOptions implements IDeviceSelection {
 	 */
 	public void addProductType(String productType) {
 		mProductTypes.add(productType);
+		mCompiled = null;
 	}
 
 	/**
@@ -113,6 +131,18 @@ public class DeviceSelectionOptions implements IDeviceSelection {
 	 */
 	public void addProperty(String propertyKeyValue) {
 		mPropertyStrings.add(propertyKeyValue);
+		mCompiled = null;
+	}
+
+	/**
+	 * Add a package that the allocated device should preferably have
+	 * installed already.
+	 *
+	 * @param packageName
+	 */
+	public void addPreferredPackage(String packageName) {
+		mPreferredPackages.add(packageName);
+		mCompiled = null;
 	}
 
 	/**
@@ -148,6 +178,14 @@ public class DeviceSelectionOptions implements IDeviceSelection {
 		return copyCollection(mProductTypes);
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+
+	public Collection<String> getPreferredPackages() {
+		return copyCollection(mPreferredPackages);
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -185,6 +223,7 @@ public class DeviceSelectionOptions implements IDeviceSelection {
 	 */
 	public void setEmulatorRequested(boolean emulatorRequested) {
 		mEmulatorRequested = emulatorRequested;
+		mCompiled = null;
 	}
 
 	/**
@@ -192,6 +231,7 @@ public class DeviceSelectionOptions implements IDeviceSelection {
 	 */
 	public void setStubEmulatorRequested(boolean stubEmulatorRequested) {
 		mStubEmulatorRequested = stubEmulatorRequested;
+		mCompiled = null;
 	}
 
 	/**
@@ -199,6 +239,7 @@ public class DeviceSelectionOptions implements IDeviceSelection {
 	 */
 	public void setDeviceRequested(boolean deviceRequested) {
 		mDeviceRequested = deviceRequested;
+		mCompiled = null;
 	}
 
 	/**
@@ -206,6 +247,7 @@ public class DeviceSelectionOptions implements IDeviceSelection {
 	 */
 	public void setNullDeviceRequested(boolean nullDeviceRequested) {
 		mNullDeviceRequested = nullDeviceRequested;
+		mCompiled = null;
 	}
 
 	/**
@@ -213,6 +255,7 @@ public class DeviceSelectionOptions implements IDeviceSelection {
 	 */
 	public void setMinBatteryLevel(Integer minBattery) {
 		mMinBattery = minBattery;
+		mCompiled = null;
 	}
 
 	/**
@@ -227,6 +270,7 @@ public class DeviceSelectionOptions implements IDeviceSelection {
 	 */
 	public void setMaxBatteryLevel(Integer maxBattery) {
 		mMaxBattery = maxBattery;
+		mCompiled = null;
 	}
 
 	/**
@@ -242,6 +286,7 @@ public class DeviceSelectionOptions implements IDeviceSelection {
 	 */
 	public void setRequireBatteryCheck(boolean requireCheck) {
 		mRequireBatteryCheck = requireCheck;
+		mCompiled = null;
 	}
 
 	/**
@@ -252,6 +297,36 @@ public class DeviceSelectionOptions implements IDeviceSelection {
 		return mRequireBatteryCheck;
 	}
 
+	/**
+	 * Sets the name of the tenant the request is made for
+	 */
+	public void setTenant(String tenant) {
+		mTenant = tenant;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+
+	public String getTenant() {
+		return mTenant;
+	}
+
+	/**
+	 * Sets the priority of the request, overriding the tenant's priority
+	 */
+	public void setPriority(Integer priority) {
+		mPriority = priority;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+
+	public Integer getPriority() {
+		return mPriority;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -298,71 +373,247 @@ public class DeviceSelectionOptions implements IDeviceSelection {
 	 */
 
 	public boolean matches(IDevice device) {
-		Collection<String> serials = getSerials();
-		Collection<String> excludeSerials = getExcludeSerials();
-		Map<String, Collection<String>> productVariants = splitOnVariant(getProductTypes());
-		Collection<String> productTypes = productVariants.keySet();
-		Map<String, String> properties = getProperties();
+		// only query the device for the attributes these options constrain
+		boolean productRequested = !getCompiled().mProductVariants.isEmpty();
+		boolean batteryRequested = (mMinBattery != null)
+				|| (mMaxBattery != null);
+		return matches(device, DeviceAttributes.capture(device,
+				productRequested, batteryRequested));
+	}
 
-		if (!serials.isEmpty() && !serials.contains(device.getSerialNumber())) {
-			return false;
+	/**
+	 * {@inheritDoc}
+	 */
+
+	public boolean matches(IDevice device, DeviceAttributes attributes) {
+		return getCompiled().matches(device, attributes);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+
+	public Collection<String> getKeyConstraint() {
+		return getCompiled().mKeyConstraint;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+
+	public Map<String, Collection<String>> getAttributeConstraints() {
+		return getCompiled().mAttributeConstraints;
+	}
+
+	/**
+	 * Gets the compiled form of these options, compiling them if they have
+	 * changed.
+	 * <p/>
+	 * Unlike the options, the compiled form is immutable, so it can be used to
+	 * group the pending requests that select the same devices.
+	 */
+	CompiledSelection getCompiled() {
+		CompiledSelection compiled = mCompiled;
+		if (compiled == null) {
+			compiled = new CompiledSelection(this);
+			mCompiled = compiled;
 		}
-		if (excludeSerials.contains(device.getSerialNumber())) {
-			return false;
+		return compiled;
+	}
+
+	/**
+	 * An immutable, pre-parsed form of the selection criteria, so that
+	 * matching a device does not copy collections or parse strings. Two
+	 * compiled selections are equal if they select the same devices.
+	 */
+	static final class CompiledSelection {
+		final Set<String> mSerials;
+		final Set<String> mExcludeSerials;
+		/** product types to their allowed variants, or null for any variant */
+		final Map<String, Set<String>> mProductVariants;
+		final Map<String, String> mProperties;
+		final boolean mEmulatorRequested;
+		final boolean mDeviceRequested;
+		final boolean mStubEmulatorRequested;
+		final boolean mNullDeviceRequested;
+		final Integer mMinBattery;
+		final Integer mMaxBattery;
+		final boolean mRequireBatteryCheck;
+		final Collection<String> mKeyConstraint;
+		final Map<String, Collection<String>> mAttributeConstraints;
+		private final int mHashCode;
+
+		CompiledSelection(DeviceSelectionOptions options) {
+			mSerials = Collections.unmodifiableSet(new HashSet<String>(
+					options.getSerials()));
+			mExcludeSerials = Collections.unmodifiableSet(new HashSet<String>(
+					options.getExcludeSerials()));
+			mProductVariants = Collections.unmodifiableMap(options
+					.splitOnVariant(options.getProductTypes()));
+			mProperties = Collections.unmodifiableMap(options.getProperties());
+			mEmulatorRequested = options.mEmulatorRequested;
+			mDeviceRequested = options.mDeviceRequested;
+			mStubEmulatorRequested = options.mStubEmulatorRequested;
+			mNullDeviceRequested = options.mNullDeviceRequested;
+			mMinBattery = options.mMinBattery;
+			mMaxBattery = options.mMaxBattery;
+			mRequireBatteryCheck = options.mRequireBatteryCheck;
+			mKeyConstraint = mSerials.isEmpty() ? null : mSerials;
+			mAttributeConstraints = Collections
+					.unmodifiableMap(createAttributeConstraints());
+			mHashCode = Arrays.hashCode(new Object[] { mSerials,
+					mExcludeSerials, mProductVariants, mProperties,
+					mEmulatorRequested, mDeviceRequested,
+					mStubEmulatorRequested, mNullDeviceRequested, mMinBattery,
+					mMaxBattery, mRequireBatteryCheck });
 		}
-		if (!productTypes.isEmpty()) {
-			String productType = getDeviceProductType(device);
-			if (productTypes.contains(productType)) {
-				// check variant
-				String productVariant = getDeviceProductVariant(device);
-				Collection<String> variants = productVariants.get(productType);
-				if (variants != null && !variants.contains(productVariant)) {
+
+		/**
+		 * Determine if given device is a match, using a snapshot of its
+		 * attributes.
+		 */
+		boolean matches(IDevice device, DeviceAttributes attributes) {
+			if (!mSerials.isEmpty()
+					&& !mSerials.contains(device.getSerialNumber())) {
+				return false;
+			}
+			if (mExcludeSerials.contains(device.getSerialNumber())) {
+				return false;
+			}
+			if (!mProductVariants.isEmpty()) {
+				String productType = attributes.getProductType();
+				if (mProductVariants.containsKey(productType)) {
+					// check variant
+					String productVariant = attributes.getProductVariant();
+					Set<String> variants = mProductVariants.get(productType);
+					if (variants != null && !variants.contains(productVariant)) {
+						return false;
+					}
+				} else {
+					// no product type matches; bye-bye
 					return false;
 				}
-			} else {
-				// no product type matches; bye-bye
+			}
+			for (Map.Entry<String, String> propEntry : mProperties.entrySet()) {
+				if (!propEntry.getValue().equals(
+						attributes.getProperty(propEntry.getKey()))) {
+					return false;
+				}
+			}
+			if (!acceptsKind(device.isEmulator(), device instanceof StubDevice,
+					device instanceof NullDevice)) {
 				return false;
 			}
+			if ((mMinBattery != null) || (mMaxBattery != null)) {
+				Integer deviceBattery = attributes.getBatteryLevel();
+				if (mRequireBatteryCheck && (deviceBattery == null)) {
+					// Couldn't determine battery level when that check is
+					// required; reject device
+					return false;
+				}
+				if (isLessAndNotNull(deviceBattery, mMinBattery)) {
+					// deviceBattery < mMinBattery
+					return false;
+				}
+				if (isLessEqAndNotNull(mMaxBattery, deviceBattery)) {
+					// mMaxBattery <= deviceBattery
+					return false;
+				}
+			}
+			return true;
 		}
-		for (Map.Entry<String, String> propEntry : properties.entrySet()) {
-			if (!propEntry.getValue().equals(
-					device.getProperty(propEntry.getKey()))) {
+
+		/**
+		 * Determine if a device of the given kind meets the emulator, device
+		 * and null device requested flags.
+		 */
+		private boolean acceptsKind(boolean isEmulator, boolean isStub,
+				boolean isNull) {
+			if ((mEmulatorRequested || mStubEmulatorRequested) && !isEmulator) {
 				return false;
 			}
-		}
-		if ((emulatorRequested() || stubEmulatorRequested())
-				&& !device.isEmulator()) {
-			return false;
-		}
-		if (deviceRequested() && device.isEmulator()) {
-			return false;
-		}
-		if (device.isEmulator() && (device instanceof StubDevice)
-				&& !stubEmulatorRequested()) {
-			// only allocate the stub emulator if requested
-			return false;
-		}
-		if (nullDeviceRequested() != (device instanceof NullDevice)) {
-			return false;
-		}
-		if ((mMinBattery != null) || (mMaxBattery != null)) {
-			Integer deviceBattery = getBatteryLevel(device);
-			if (mRequireBatteryCheck && (deviceBattery == null)) {
-				// Couldn't determine battery level when that check is required;
-				// reject device
+			if (mDeviceRequested && isEmulator) {
 				return false;
 			}
-			if (isLessAndNotNull(deviceBattery, mMinBattery)) {
-				// deviceBattery < mMinBattery
+			if (isEmulator && isStub && !mStubEmulatorRequested) {
+				// only allocate the stub emulator if requested
 				return false;
 			}
-			if (isLessEqAndNotNull(mMaxBattery, deviceBattery)) {
-				// mMaxBattery <= deviceBattery
+			if (mNullDeviceRequested != isNull) {
 				return false;
 			}
+			return true;
 		}
 
-		return true;
+		private Map<String, Collection<String>> createAttributeConstraints() {
+			Map<String, Collection<String>> constraints = new HashMap<String, Collection<String>>(
+					3);
+			Collection<String> kinds = new ArrayList<String>(4);
+			if (acceptsKind(false, true, true)) {
+				kinds.add(DeviceIndexer.KIND_NULL);
+			}
+			if (acceptsKind(true, true, false)) {
+				kinds.add(DeviceIndexer.KIND_STUB_EMULATOR);
+			}
+			if (acceptsKind(true, false, false)) {
+				kinds.add(DeviceIndexer.KIND_EMULATOR);
+			}
+			if (acceptsKind(false, false, false)) {
+				kinds.add(DeviceIndexer.KIND_DEVICE);
+			}
+			constraints.put(DeviceIndexer.ATTR_KIND, kinds);
+
+			if (!mProductVariants.isEmpty()) {
+				constraints.put(DeviceIndexer.ATTR_PRODUCT,
+						mProductVariants.keySet());
+				// variants only narrow the search if every product type is
+				// restricted to some variants
+				Collection<String> variants = new HashSet<String>();
+				for (Set<String> productVariant : mProductVariants.values()) {
+					if (productVariant == null) {
+						variants = null;
+						break;
+					}
+					variants.addAll(productVariant);
+				}
+				if (variants != null) {
+					constraints.put(DeviceIndexer.ATTR_VARIANT, variants);
+				}
+			}
+			return constraints;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof CompiledSelection)) {
+				return false;
+			}
+			CompiledSelection other = (CompiledSelection) obj;
+			return mHashCode == other.mHashCode
+					&& mSerials.equals(other.mSerials)
+					&& mExcludeSerials.equals(other.mExcludeSerials)
+					&& mProductVariants.equals(other.mProductVariants)
+					&& mProperties.equals(other.mProperties)
+					&& mEmulatorRequested == other.mEmulatorRequested
+					&& mDeviceRequested == other.mDeviceRequested
+					&& mStubEmulatorRequested == other.mStubEmulatorRequested
+					&& mNullDeviceRequested == other.mNullDeviceRequested
+					&& equalsOrNull(mMinBattery, other.mMinBattery)
+					&& equalsOrNull(mMaxBattery, other.mMaxBattery)
+					&& mRequireBatteryCheck == other.mRequireBatteryCheck;
+		}
+
+		@Override
+		public int hashCode() {
+			return mHashCode;
+		}
+
+		private static boolean equalsOrNull(Object x, Object y) {
+			return x == null ? y == null : x.equals(y);
+		}
 	}
 
 	/** Determine if x is less-than y, given that both are non-Null */
@@ -381,21 +632,17 @@ public class DeviceSelectionOptions implements IDeviceSelection {
 		return x <= y;
 	}
 
-	private Map<String, Collection<String>> splitOnVariant(
+	private Map<String, Set<String>> splitOnVariant(
 			Collection<String> products) {
-		// FIXME: we should validate all provided device selection options once,
-		// on the first
-		// FIXME: call to #matches
-		Map<String, Collection<String>> splitProducts = new HashMap<String, Collection<String>>(
+		Map<String, Set<String>> splitProducts = new HashMap<String, Set<String>>(
 				products.size());
-		// FIXME: cache this
 		for (String prod : products) {
 			String[] parts = prod.split(VARIANT_SEPARATOR);
 			if (parts.length == 1) {
 				splitProducts.put(parts[0], null);
 			} else if (parts.length == 2) {
 				// A variant was specified as product:variant
-				Collection<String> variants = splitProducts.get(parts[0]);
+				Set<String> variants = splitProducts.get(parts[0]);
 				if (variants == null) {
 					variants = new HashSet<String>();
 					splitProducts.put(parts[0], variants);
@@ -16,9 +16,6 @@
 package com.wuba.device;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
 
 import org.apache.log4j.Logger;
 
@@ -28,9 +25,11 @@ import com.android.ddmlib.IDevice;
 import com.android.ddmlib.Log;
 import com.android.ddmlib.ShellCommandUnresponsiveException;
 import com.android.ddmlib.TimeoutException;
+import com.wuba.device.DeviceReadinessWatcher.Stage;
 import com.wuba.device.IDeviceManager.IFastbootListener;
 import com.wuba.utils.IRunUtil;
 import com.wuba.utils.RunUtil;
+import com.wuba.utils.VersionedStateCell;
 
 /**
  * Helper class for monitoring the state of a {@link IDevice}.
@@ -40,7 +39,7 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
 
     private static final String LOG_TAG = "DeviceStateMonitor";
     private IDevice mDevice;
-    private TestDeviceState mDeviceState;
+    private final VersionedStateCell<TestDeviceState> mDeviceState;
 
     /** the time in ms to wait between 'poll for responsiveness' attempts */
     private static final long CHECK_POLL_TIME = 3 * 1000;
@@ -53,15 +52,14 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
     /** The  time in ms to wait for a device to available. */
     private long mDefaultAvailableTimeout = 6 * 60 * 1000;
 
-    private List<DeviceStateListener> mStateListeners;
     private IDeviceManager mMgr;
     private final boolean mFastbootEnabled;
 
     DeviceStateMonitor(IDeviceManager mgr, IDevice device, boolean fastbootEnabled) {
         mMgr = mgr;
         mDevice = device;
-        mStateListeners = new ArrayList<DeviceStateListener>();
-        mDeviceState = TestDeviceState.getStateByDdms(device.getState());
+        mDeviceState = new VersionedStateCell<TestDeviceState>(
+                TestDeviceState.getStateByDdms(device.getState()));
         mFastbootEnabled = fastbootEnabled;
     }
 
@@ -74,6 +72,15 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
         return RunUtil.getDefault();
     }
 
+    /**
+     * Creates the {@link DeviceReadinessWatcher} to use.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    DeviceReadinessWatcher createReadinessWatcher() {
+        return new DeviceReadinessWatcher(getIDevice());
+    }
+
     /**
      * Set the time in ms to wait for a device to be online in {@link #waitForDeviceOnline()}.
      */
@@ -82,6 +89,14 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
         mDefaultOnlineTimeout = timeoutMs;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+   
+    public long getDefaultOnlineTimeout() {
+        return mDefaultOnlineTimeout;
+    }
+
     /**
      * Set the time in ms to wait for a device to be available in {@link #waitForDeviceAvailable()}.
      */
@@ -158,6 +173,9 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
     	LOG.info(String.format("Waiting %d ms for device %s shell to be responsive", waitTime,
                 getSerialNumber()));
         long startTime = System.currentTimeMillis();
+        if (createReadinessWatcher().waitForStage(Stage.SHELL, waitTime) != null) {
+            return true;
+        }
         while (System.currentTimeMillis() - startTime < waitTime) {
             final CollectingOutputReceiver receiver = new CollectingOutputReceiver();
             final String cmd = "ls";
@@ -193,7 +211,9 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
         // 3. Device's package manager is responsive
         // 4. Device's external storage is mounted
         //
-        // The current implementation waits for each event to occur in sequence.
+        // The current implementation waits for each event to occur in sequence, using a
+        // single readiness script on the device. If the script fails part way, the remaining
+        // events are polled for from the host.
         //
         // it will track the currently elapsed time and fail if it is
         // greater than waitTime
@@ -204,15 +224,22 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
             return null;
         }
         long elapsedTime = System.currentTimeMillis() - startTime;
-        if (!waitForBootComplete(waitTime - elapsedTime)) {
-            return null;
+        Stage stage = createReadinessWatcher().waitForStage(Stage.STORE_MOUNTED,
+                waitTime - elapsedTime);
+        if (stage == Stage.STORE_MOUNTED) {
+            return device;
         }
         elapsedTime = System.currentTimeMillis() - startTime;
-        if (!waitForPmResponsive(waitTime - elapsedTime)) {
+        if (!isStageReached(stage, Stage.BOOT_COMPLETE)
+                && !waitForBootComplete(waitTime - elapsedTime)) {
             return null;
         }
         elapsedTime = System.currentTimeMillis() - startTime;
-        if (!waitForStoreMount(waitTime - elapsedTime)) {
+        if (isStageReached(stage, Stage.PM_RESPONSIVE)) {
+            if (!waitForStoreMount(waitTime - elapsedTime)) {
+                return null;
+            }
+        } else if (!waitForPmResponsiveAndStoreMount(waitTime - elapsedTime)) {
             return null;
         }
         return device;
@@ -226,6 +253,13 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
         return waitForDeviceAvailable(mDefaultAvailableTimeout);
     }
 
+    /**
+     * @return <code>true</code> if <var>reached</var> is at or past <var>stage</var>
+     */
+    private static boolean isStageReached(Stage reached, Stage stage) {
+        return reached != null && reached.ordinal() >= stage.ordinal();
+    }
+
     /**
      * Blocks until the device's boot complete flag is set
      *
@@ -256,24 +290,34 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
     }
 
     /**
-     * Waits for the device package manager to be responsive.
+     * Waits for the device package manager to be responsive and the external store to be
+     * mounted, checking both with a single compound shell command per poll.
      *
      * @param waitTime time in ms to wait before giving up
-     * @return <code>true</code> if package manage becomes responsive before waitTime expires.
+     * @return <code>true</code> if both are ready before waitTime expires.
      * <code>false</code> otherwise
      */
-    private boolean waitForPmResponsive(final long waitTime) {
-        LOG.info(String.format("Waiting %d ms for device %s package manager",
-                waitTime, getSerialNumber()));
+    private boolean waitForPmResponsiveAndStoreMount(final long waitTime) {
+        Log.i(LOG_TAG, String.format(
+                "Waiting %d ms for device %s package manager and external store", waitTime,
+                getSerialNumber()));
         long startTime = System.currentTimeMillis();
+        boolean pmResponsive = false;
         while (System.currentTimeMillis() - startTime < waitTime) {
             final CollectingOutputReceiver receiver = new CollectingOutputReceiver();
-            final String cmd = "pm path android";
+            final long number = System.currentTimeMillis();
+            final String externalStore = getMountPoint(IDevice.MNT_EXTERNAL_STORAGE);
+            final String testFile = String.format("'%s/%d'", externalStore, number);
+            final String testString = String.format("number %d one", number);
+            final String cmd = String.format(
+                    "pm path android; echo '%s' > %s && cat %s; rm %s", testString,
+                    testFile, testFile, testFile);
             try {
                 getIDevice().executeShellCommand(cmd, receiver, MAX_OP_TIME);
                 String output = receiver.getOutput();
                 Log.v(LOG_TAG, String.format("%s returned %s", cmd, output));
-                if (output.contains("package:")) {
+                pmResponsive |= output.contains("package:");
+                if (pmResponsive && externalStore != null && output.contains(testString)) {
                     return true;
                 }
             } catch (IOException e) {
@@ -287,8 +331,9 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
             }
             getRunUtil().sleep(CHECK_POLL_TIME);
         }
-        Log.w(LOG_TAG, String.format("Device %s package manager is unresponsive",
-                getSerialNumber()));
+        Log.w(LOG_TAG, String.format("Device %s %s after %d ms", getSerialNumber(),
+                pmResponsive ? "external storage is not mounted"
+                        : "package manager is unresponsive", waitTime));
         return false;
     }
 
@@ -379,7 +424,7 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
      */
    
     public TestDeviceState getDeviceState() {
-        return mDeviceState;
+        return mDeviceState.get();
     }
 
     /**
@@ -431,53 +476,20 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
         }
         Log.i(LOG_TAG, String.format("Waiting for device %s to be %s; it is currently %s...",
                 deviceSerial, state, getDeviceState()));
-        DeviceStateListener listener = new DeviceStateListener(state);
-        addDeviceStateListener(listener);
-        synchronized (listener) {
-            try {
-                listener.wait(time);
-            } catch (InterruptedException e) {
-                Log.w(LOG_TAG, "wait for device state interrupted");
-            }
+        try {
+            mDeviceState.awaitValue(state, time);
+        } catch (InterruptedException e) {
+            Log.w(LOG_TAG, "wait for device state interrupted");
         }
-        removeDeviceStateListener(listener);
         return getDeviceState().equals(state);
     }
 
-    /**
-     * @param listener
-     */
-    private void removeDeviceStateListener(DeviceStateListener listener) {
-        synchronized (mStateListeners) {
-            mStateListeners.remove(listener);
-        }
-    }
-
-    /**
-     * @param listener
-     */
-    private void addDeviceStateListener(DeviceStateListener listener) {
-        synchronized (mStateListeners) {
-            mStateListeners.add(listener);
-        }
-    }
-
     /**
      * {@inheritDoc}
      */
    
     public void setState(TestDeviceState deviceState) {
-        mDeviceState = deviceState;
-        // create a copy of listeners to prevent holding mStateListeners lock when notifying
-        // and to protect from list modification when iterating
-        Collection<DeviceStateListener> listenerCopy = new ArrayList<DeviceStateListener>(
-                mStateListeners.size());
-        synchronized (mStateListeners) {
-            listenerCopy.addAll(mStateListeners);
-        }
-        for (DeviceStateListener listener: listenerCopy) {
-            listener.stateChanged(deviceState);
-        }
+        mDeviceState.set(deviceState);
     }
 
    
@@ -490,22 +502,6 @@ class DeviceStateMonitor implements IDeviceStateMonitor {
         }
     }
 
-    private static class DeviceStateListener {
-        private final TestDeviceState mExpectedState;
-
-        public DeviceStateListener(TestDeviceState expectedState) {
-            mExpectedState = expectedState;
-        }
-
-        public void stateChanged(TestDeviceState newState) {
-            if (mExpectedState.equals(newState)) {
-                synchronized (this) {
-                    notify();
-                }
-            }
-        }
-    }
-
     /**
      * An empty implementation of {@link IFastbootListener}
      */
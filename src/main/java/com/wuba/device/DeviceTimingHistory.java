@@ -0,0 +1,382 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wuba.device;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.wuba.utils.StreamUtil;
+
+/**
+ * Records how long devices take to come back during reboots and recoveries, and derives wait
+ * timeouts from it.
+ * <p/>
+ * Durations are kept per device serial and per product type. A timeout is the p99 of the
+ * observed durations times {@link #TIMEOUT_FACTOR}, using the device's own history if it has
+ * enough samples, else the history of its product. It is between the caller's default divided
+ * by {@link #MAX_DEFAULT_MULTIPLE}, but at least {@link #MIN_TIMEOUT}, and the default times
+ * {@link #MAX_DEFAULT_MULTIPLE}. Waits that timed out are kept as samples of their timeout, capped
+ * at the default, so a device that keeps timing out gets longer waits, but only observed
+ * durations can push its timeout further than {@link #TIMEOUT_FACTOR} times the default.
+ * <p/>
+ * A history is saved to a small properties file, so it survives restarts. The default history
+ * is saved to {@link #DEFAULT_STORE_FILE}, unless the {@link #STORE_FILE_PROPERTY} system
+ * property names another file, or is set to {@link #NO_STORE_FILE} to keep it in memory only.
+ */
+public class DeviceTimingHistory {
+    private static Logger LOG = Logger.getLogger("DeviceTimingHistory");
+
+    /** A timed wait of the recovery subsystem. */
+    public enum Phase {
+        /** waiting for the device to be online on adb */
+        ONLINE,
+        /** waiting for the device shell to respond */
+        SHELL,
+        /** waiting for the device to be available for testing */
+        AVAILABLE,
+        /** waiting for a rebooted online device to be available for testing */
+        REBOOT;
+    }
+
+    /** factor applied to the observed p99 duration */
+    static final double TIMEOUT_FACTOR = 1.5;
+    /** min number of samples before a history is trusted */
+    static final int MIN_SAMPLES = 5;
+    /** max number of samples kept per device or product and phase */
+    static final int MAX_SAMPLES = 50;
+    /** max multiple of the caller's default a derived timeout can be, and of it over the min */
+    static final int MAX_DEFAULT_MULTIPLE = 4;
+    /** min derived timeout in ms, unless the caller's default is lower */
+    static final long MIN_TIMEOUT = 5 * 1000;
+    /** waits shorter than this in ms returned immediately, so are not recorded */
+    static final long MIN_DURATION = 1000;
+    /** delay in ms before changes are saved, so a burst of records is saved once */
+    static final long SAVE_DELAY = 5 * 1000;
+
+    /** system property naming the file the default history is saved to */
+    public static final String STORE_FILE_PROPERTY = "devicemanager.timinghistory.file";
+    /** {@link #STORE_FILE_PROPERTY} value keeping the default history in memory only */
+    public static final String NO_STORE_FILE = "none";
+    /** the file the default history is saved to, unless {@link #STORE_FILE_PROPERTY} is set */
+    public static final File DEFAULT_STORE_FILE = new File(System.getProperty("user.home"),
+            ".devicemanager" + File.separator + "timing-history.properties");
+
+    private static final String SERIAL_PREFIX = "serial.";
+    private static final String PRODUCT_PREFIX = "product.";
+    private static final String PRODUCT_OF_PREFIX = "productof.";
+
+    private static DeviceTimingHistory sDefault = null;
+
+    private final File mStoreFile;
+    /** samples in ms, by key. Guarded by this. */
+    private final Map<String, LinkedList<Long>> mSamples = new HashMap<String, LinkedList<Long>>();
+    /** product type by serial. Guarded by this. */
+    private final Map<String, String> mProducts = new HashMap<String, String>();
+    /** executor of the delayed saves, created on first save. Guarded by this. */
+    private ScheduledExecutorService mSaveExecutor = null;
+    /** whether a save is scheduled. Guarded by this. */
+    private boolean mSavePending = false;
+
+    /**
+     * @return the default {@link DeviceTimingHistory}, saved to the file named by the
+     *         {@link #STORE_FILE_PROPERTY} system property if set, else to
+     *         {@link #DEFAULT_STORE_FILE}
+     */
+    public static synchronized DeviceTimingHistory getDefault() {
+        if (sDefault == null) {
+            sDefault = new DeviceTimingHistory(getDefaultStoreFile());
+        }
+        return sDefault;
+    }
+
+    /**
+     * @return the file the default history is saved to, or <code>null</code> if it is kept in
+     *         memory only
+     */
+    static File getDefaultStoreFile() {
+        String path = System.getProperty(STORE_FILE_PROPERTY);
+        if (path == null) {
+            return DEFAULT_STORE_FILE;
+        }
+        path = path.trim();
+        if (path.length() == 0 || NO_STORE_FILE.equalsIgnoreCase(path)) {
+            return null;
+        }
+        return new File(path);
+    }
+
+    /**
+     * Replaces the default {@link DeviceTimingHistory}. Only affects waits set up afterwards.
+     */
+    public static synchronized void setDefault(DeviceTimingHistory history) {
+        sDefault = history;
+    }
+
+    /**
+     * Creates a {@link DeviceTimingHistory}, loading any history saved in given file.
+     *
+     * @param storeFile the file to persist the history to, or <code>null</code> to keep it in
+     *            memory only
+     */
+    public DeviceTimingHistory(File storeFile) {
+        mStoreFile = storeFile;
+        load();
+    }
+
+    /**
+     * Records a completed wait. Waits shorter than {@link #MIN_DURATION} are ignored, as the
+     * device was already there.
+     *
+     * @param phase the {@link Phase}
+     * @param serial the device serial
+     * @param product the device product type, or <code>null</code> if unknown
+     * @param duration the time in ms the wait took
+     */
+    public synchronized void record(Phase phase, String serial, String product, long duration) {
+        if (duration < MIN_DURATION) {
+            return;
+        }
+        addSamples(phase, serial, product, duration);
+    }
+
+    /**
+     * Records a wait that timed out. The actual duration is at least the timeout, so the wait is
+     * kept as a sample of the timeout. The sample is capped at the caller's default, so that
+     * repeated timeouts don't keep raising the timeout on their own.
+     *
+     * @param phase the {@link Phase}
+     * @param serial the device serial
+     * @param product the device product type, or <code>null</code> if unknown
+     * @param timeout the time in ms waited
+     * @param defaultTimeout the default timeout in ms of the wait
+     */
+    public synchronized void recordTimeout(Phase phase, String serial, String product,
+            long timeout, long defaultTimeout) {
+        long duration = Math.min(timeout, defaultTimeout);
+        if (duration <= 0) {
+            return;
+        }
+        addSamples(phase, serial, product, duration);
+    }
+
+    /**
+     * Saves the history now, rather than after {@link #SAVE_DELAY}. No effect if the history is
+     * kept in memory only.
+     */
+    public void flush() {
+        save();
+    }
+
+    /**
+     * Gets the time to wait for given phase.
+     *
+     * @param phase the {@link Phase}
+     * @param serial the device serial
+     * @param defaultTimeout the timeout in ms to use if there is not enough history
+     * @return the timeout in ms
+     */
+    public synchronized long getTimeout(Phase phase, String serial, long defaultTimeout) {
+        List<Long> samples = mSamples.get(getKey(SERIAL_PREFIX, serial, phase));
+        if (samples == null || samples.size() < MIN_SAMPLES) {
+            String product = mProducts.get(serial);
+            samples = product == null ? null
+                    : mSamples.get(getKey(PRODUCT_PREFIX, product, phase));
+        }
+        if (samples == null || samples.size() < MIN_SAMPLES) {
+            return defaultTimeout;
+        }
+        long timeout = (long)(getPercentile(samples, 99) * TIMEOUT_FACTOR);
+        long minTimeout = Math.min(defaultTimeout,
+                Math.max(MIN_TIMEOUT, defaultTimeout / MAX_DEFAULT_MULTIPLE));
+        return Math.max(minTimeout, Math.min(timeout, defaultTimeout * MAX_DEFAULT_MULTIPLE));
+    }
+
+    /**
+     * Gets a percentile of given samples, using the nearest rank.
+     */
+    static long getPercentile(List<Long> samples, int percentile) {
+        List<Long> sorted = new ArrayList<Long>(samples);
+        Collections.sort(sorted);
+        int rank = (int)Math.ceil(percentile / 100.0 * sorted.size());
+        return sorted.get(Math.max(rank, 1) - 1);
+    }
+
+    private void addSamples(Phase phase, String serial, String product, long duration) {
+        addSample(getKey(SERIAL_PREFIX, serial, phase), duration);
+        if (product != null) {
+            mProducts.put(serial, product);
+        }
+        product = mProducts.get(serial);
+        if (product != null) {
+            addSample(getKey(PRODUCT_PREFIX, product, phase), duration);
+        }
+        scheduleSave();
+    }
+
+    private void addSample(String key, long duration) {
+        LinkedList<Long> samples = mSamples.get(key);
+        if (samples == null) {
+            samples = new LinkedList<Long>();
+            mSamples.put(key, samples);
+        }
+        samples.addLast(duration);
+        if (samples.size() > MAX_SAMPLES) {
+            samples.removeFirst();
+        }
+    }
+
+    private static String getKey(String prefix, String name, Phase phase) {
+        return String.format("%s%s.%s", prefix, name, phase);
+    }
+
+    private synchronized void load() {
+        if (mStoreFile == null || !mStoreFile.exists()) {
+            return;
+        }
+        Properties properties = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(mStoreFile);
+            properties.load(in);
+        } catch (IOException e) {
+            LOG.warn(String.format("Failed to load timing history from %s",
+                    mStoreFile.getAbsolutePath()), e);
+            return;
+        } finally {
+            StreamUtil.close(in);
+        }
+        for (String key : properties.stringPropertyNames()) {
+            String value = properties.getProperty(key);
+            if (key.startsWith(PRODUCT_OF_PREFIX)) {
+                mProducts.put(key.substring(PRODUCT_OF_PREFIX.length()), value);
+                continue;
+            }
+            for (String sample : value.split(",")) {
+                try {
+                    addSample(key, Long.parseLong(sample.trim()));
+                } catch (NumberFormatException e) {
+                    // ignore corrupt sample
+                }
+            }
+        }
+    }
+
+    /**
+     * Schedules a save after {@link #SAVE_DELAY}, unless one is already scheduled. Must be called
+     * holding this.
+     */
+    private void scheduleSave() {
+        if (mStoreFile == null || mSavePending) {
+            return;
+        }
+        if (mSaveExecutor == null) {
+            mSaveExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "DeviceTimingHistorySaver");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        mSavePending = true;
+        mSaveExecutor.schedule(new Runnable() {
+            public void run() {
+                save();
+            }
+        }, SAVE_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Copies the history to {@link Properties}. Must be called holding this.
+     */
+    private Properties toProperties() {
+        Properties properties = new Properties();
+        for (Map.Entry<String, LinkedList<Long>> entry : mSamples.entrySet()) {
+            StringBuilder value = new StringBuilder();
+            for (Long sample : entry.getValue()) {
+                if (value.length() > 0) {
+                    value.append(',');
+                }
+                value.append(sample);
+            }
+            properties.setProperty(entry.getKey(), value.toString());
+        }
+        for (Map.Entry<String, String> entry : mProducts.entrySet()) {
+            properties.setProperty(PRODUCT_OF_PREFIX + entry.getKey(), entry.getValue());
+        }
+        return properties;
+    }
+
+    private void save() {
+        if (mStoreFile == null) {
+            return;
+        }
+        Properties properties;
+        synchronized (this) {
+            mSavePending = false;
+            properties = toProperties();
+        }
+        // the file is written outside the lock, so records are never blocked on disk io
+        synchronized (mStoreFile) {
+            writeProperties(properties);
+        }
+    }
+
+    private void writeProperties(Properties properties) {
+        File parent = mStoreFile.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            LOG.warn(String.format("Failed to create %s", parent.getAbsolutePath()));
+            return;
+        }
+        // write to a temp file first, so a crash never leaves a truncated history
+        File tmpFile = new File(mStoreFile.getAbsolutePath() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(tmpFile);
+            properties.store(out, "device boot and recovery durations in ms");
+        } catch (IOException e) {
+            LOG.warn(String.format("Failed to save timing history to %s",
+                    tmpFile.getAbsolutePath()), e);
+            return;
+        } finally {
+            StreamUtil.close(out);
+        }
+        if (!tmpFile.renameTo(mStoreFile)) {
+            mStoreFile.delete();
+            if (!tmpFile.renameTo(mStoreFile)) {
+                LOG.warn(String.format("Failed to save timing history to %s",
+                        mStoreFile.getAbsolutePath()));
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wuba.device;
+
+import com.android.ddmlib.IDevice;
+import com.wuba.device.IDeviceManager.FreeDeviceState;
+
+/**
+ * A policy for choosing between several available devices that match an allocation request.
+ * <p/>
+ * Among the matching devices, the one with the highest score is allocated. Devices with equal
+ * scores are allocated in FIFO order.
+ */
+public interface IAllocationScorer {
+
+    /**
+     * Scores given available device for an allocation request.
+     * <p/>
+     * Called with the available device queue lock held, so implementations must not issue adb
+     * commands, and should use the <var>attributes</var> snapshot instead.
+     *
+     * @param device the available {@link IDevice} that matches <var>options</var>
+     * @param attributes the {@link DeviceAttributes} snapshot of <var>device</var>
+     * @param options the {@link IDeviceSelection} of the allocation request
+     * @return the score of the device. Higher is better.
+     */
+    public int score(IDevice device, DeviceAttributes attributes, IDeviceSelection options);
+
+    /**
+     * Notification that a device has been freed, before it is returned to the available device
+     * queue.
+     * <p/>
+     * Called on the thread freeing the device, so implementations must not issue adb commands.
+     * State that needs the device should be updated in {@link #refresh(IDevice)}.
+     *
+     * @param device the {@link IDevice} being freed
+     * @param state the {@link FreeDeviceState} the device was freed with
+     */
+    public void deviceFreed(IDevice device, FreeDeviceState state);
+
+    /**
+     * Refreshes any state the scorer keeps about an available device.
+     * <p/>
+     * Called periodically from a background thread, so implementations may issue adb commands.
+     *
+     * @param device the available {@link IDevice}
+     */
+    public void refresh(IDevice device);
+}
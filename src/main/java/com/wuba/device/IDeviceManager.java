@@ -19,6 +19,7 @@ package com.wuba.device;
 import java.io.PrintWriter;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.Future;
 
 import com.android.ddmlib.AndroidDebugBridge;
 import com.android.ddmlib.IDevice;
@@ -103,6 +104,42 @@ public interface IDeviceManager {
      */
     public ITestDevice allocateDevice(long timeout, IDeviceSelection options);
 
+    /**
+     * Request several devices for testing that meet certain criteria.
+     * <p/>
+     * Devices are allocated atomically: either all <var>count</var> devices are allocated, or
+     * none are. A partial set of matching devices is never held while waiting for the rest.
+     *
+     * @param count the number of devices to allocate
+     * @param timeout max time in ms to wait for the devices to become available.
+     * @param options the {@link IDeviceSelection} the devices should meet.
+     * @return a {@link List} of <var>count</var> {@link ITestDevice}s for testing, or
+     *         <code>null</code> if timeout expired before enough devices became available
+     */
+    public List<ITestDevice> allocateDevices(int count, long timeout, IDeviceSelection options);
+
+    /**
+     * Request a device for testing that meets certain criteria, without blocking the calling
+     * thread.
+     * <p/>
+     * The request waits in the same queue, with the same priority rules, as the blocking
+     * allocation requests. Cancelling the returned {@link Future} withdraws the request, or
+     * returns the device to the available pool if it was allocated concurrently.
+     *
+     * @param options the {@link IDeviceSelection} the device should meet.
+     * @return a {@link Future} of the allocated {@link ITestDevice}
+     */
+    public Future<ITestDevice> allocateDeviceAsync(IDeviceSelection options);
+
+    /**
+     * Gets the lease on an allocated device. The holder of the device must renew the lease
+     * before it expires, or the device will be reclaimed.
+     *
+     * @param device the allocated {@link ITestDevice}
+     * @return the {@link DeviceLease}, or <code>null</code> if the device is not allocated
+     */
+    public DeviceLease getLease(ITestDevice device);
+
     /**
      * Rudely allocate a device, even if its not currently available.
      * <p/>
@@ -124,6 +161,16 @@ public interface IDeviceManager {
      */
     public void freeDevice(ITestDevice device, FreeDeviceState state);
 
+    /**
+     * Reports a test run that failed because of the given allocated device.
+     * <p/>
+     * Lowers the device's health score, so a device that keeps failing runs is quarantined when
+     * it is next freed. Reports for devices that are not allocated are ignored.
+     *
+     * @param device the allocated {@link ITestDevice} the run failed on
+     */
+    public void reportRunFailure(ITestDevice device);
+
     /**
      * Helper method to launch emulator.
      * <p/>
@@ -253,4 +300,17 @@ public interface IDeviceManager {
     public void registerObserver(IDeviceStateObserver observer);
 
 	public void removeObserver(IDeviceStateObserver observer);
+
+    /**
+     * Subscribes to incremental {@link DeviceEvent}s, replaying retained events after the given
+     * sequence first.
+     *
+     * @see IDeviceMonitor#subscribe(IDeviceEventListener, long)
+     */
+    public boolean subscribe(IDeviceEventListener listener, long fromSequence);
+
+    /**
+     * Stops delivering {@link DeviceEvent}s to the given listener.
+     */
+    public void unsubscribe(IDeviceEventListener listener);
 }
@@ -27,12 +27,27 @@ import java.util.Map;
  * batching needs to be performed within the {@link IDeviceMonitor} instance.
  */
 public interface IDeviceMonitor {
+	/** listed state of an allocated device */
+	public static final String STATE_ALLOCATED = "Allocated";
+	/** listed state of an available device */
+	public static final String STATE_AVAILABLE = "Available";
+	/** listed state of a visible device that can't be allocated */
+	public static final String STATE_UNAVAILABLE = "Unavailable";
+	/** listed state of a visible device held out of the pool as unhealthy */
+	public static final String STATE_QUARANTINED = "Quarantined";
+
 	/**
 	 * A method that will be called after all of the Monitor's @Option fields
 	 * have been set.
 	 */
 	public void run();
 
+	/**
+	 * Stops the monitor's threads. Observers and listeners are not notified
+	 * after this returns.
+	 */
+	public void terminate();
+
 	/**
 	 * A {@link Runnable}-like class that should return the known devices and
 	 * their states. This class allows the {@link IDeviceMonitor} to fetch
@@ -54,11 +69,53 @@ public interface IDeviceMonitor {
 	 * updated. Monitor implementations should limit the amount of processing
 	 * and IDeviceManager/DeviceLister interaction they do in this method.
 	 *
-	 * TODO: consider passing in serial and new state.
+	 * @see #deviceStateChanged(String, String)
 	 */
 	public void notifyDeviceStateChange();
 
+	/**
+	 * Signals a single device transition, at the point the manager makes it,
+	 * so that a {@link DeviceEvent} is published for every transition even if
+	 * several happen between two listings. Does nothing if the device is
+	 * already in that state.
+	 *
+	 * @param serial
+	 *            the device serial
+	 * @param state
+	 *            the new listed state, or <code>null</code> if the device is
+	 *            no longer listed
+	 */
+	public void deviceStateChanged(String serial, String state);
+
 	public void registerObserver(IDeviceStateObserver observer);
 
 	public void removeObserver(IDeviceStateObserver observer);
+
+	/**
+	 * Subscribes to incremental {@link DeviceEvent}s.
+	 * <p/>
+	 * Retained events after <var>fromSequence</var> are replayed to the
+	 * listener before any new event. Pass 0 to receive every retained event,
+	 * or {@link #getLastSequence()} to only receive new events.
+	 *
+	 * @param listener
+	 *            the {@link IDeviceEventListener}
+	 * @param fromSequence
+	 *            the sequence of the last event the listener has applied
+	 * @return <code>false</code> if events after <var>fromSequence</var> have
+	 *         already been discarded, in which case the listener should
+	 *         rebuild its view from a {@link DeviceLister} listing
+	 */
+	public boolean subscribe(IDeviceEventListener listener, long fromSequence);
+
+	/**
+	 * Stops delivering {@link DeviceEvent}s to the given listener.
+	 */
+	public void unsubscribe(IDeviceEventListener listener);
+
+	/**
+	 * @return the sequence of the last published {@link DeviceEvent}, or 0 if
+	 *         none was published yet
+	 */
+	public long getLastSequence();
 }
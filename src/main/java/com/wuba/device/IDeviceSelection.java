@@ -20,12 +20,14 @@ import java.util.Collection;
 import java.util.Map;
 
 import com.android.ddmlib.IDevice;
-import com.wuba.utils.ConditionPriorityBlockingQueue.IMatcher;
+import com.wuba.utils.ConditionPriorityBlockingQueue.IIndexedMatcher;
 
 /**
  * Interface for device selection criteria.
+ * <p/>
+ * The index constraints must be expressed in terms of the {@link DeviceIndexer} attributes.
  */
-public interface IDeviceSelection extends IMatcher<IDevice> {
+public interface IDeviceSelection extends IIndexedMatcher<IDevice> {
 
     /**
      * Gets a copy of the serial numbers
@@ -76,6 +78,16 @@ public interface IDeviceSelection extends IMatcher<IDevice> {
      */
     public boolean nullDeviceRequested();
 
+    /**
+     * Determine if given device is a match, using a snapshot of its attributes. Never issues an
+     * adb command.
+     *
+     * @param device the {@link IDevice}
+     * @param attributes the {@link DeviceAttributes} snapshot of <var>device</var>
+     * @return <code>true</code> if the device matches
+     */
+    public boolean matches(IDevice device, DeviceAttributes attributes);
+
     /**
      * Gets the given devices product type
      *
@@ -100,6 +112,27 @@ public interface IDeviceSelection extends IMatcher<IDevice> {
      */
     public Integer getBatteryLevel(IDevice device);
 
+    /**
+     * Gets a copy of the preferred package list. Devices that already have these packages
+     * installed are favoured, but devices without them still match.
+     *
+     * @return a {@link Collection} of package names
+     */
+    public Collection<String> getPreferredPackages();
+
+    /**
+     * @return the name of the tenant the request is made for, or <code>null</code> for the
+     *         default tenant
+     * @see TenantAllocationScheduler
+     */
+    public String getTenant();
+
+    /**
+     * @return the priority of the request, or <code>null</code> to use the tenant's priority.
+     *         Higher values are served first.
+     */
+    public Integer getPriority();
+
     /**
      * Set the serial numbers inclusion list, replacing any existing values.
      */
@@ -159,6 +159,11 @@ public interface IDeviceStateMonitor {
      */
     public void setDefaultOnlineTimeout(long timeoutMs);
 
+    /**
+     * @return the time in ms to wait for a device to be online in {@link #waitForDeviceOnline()}
+     */
+    public long getDefaultOnlineTimeout();
+
     /**
      * Set the time in ms to wait for a device to be available in {@link #waitForDeviceAvailable()}.
      */
@@ -64,6 +64,14 @@ interface IManagedTestDevice extends ITestDevice {
      */
     public void setFastbootEnabled(boolean fastbootEnabled);
 
+    /**
+     * Sets the {@link DeviceHealthTracker} the device reports its liveness probes and
+     * unresponsive errors to.
+     *
+     * @param healthTracker the {@link DeviceHealthTracker}, or <code>null</code> to report nothing
+     */
+    public void setHealthTracker(DeviceHealthTracker healthTracker);
+
     /**
      * Invoke recovery on the device.
      *
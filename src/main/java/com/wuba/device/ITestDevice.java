@@ -232,6 +232,9 @@ public interface ITestDevice {
 	 * Note this method should only be used for read-only properties that won't
 	 * change after device comes online. For volatile properties, use
 	 * {@link #getPropertySync(String)}
+	 * <p/>
+	 * Read-only <code>ro.*</code> properties are served from the
+	 * {@link #getPropertySnapshot()}, other properties are queried live.
 	 *
 	 * @param name
 	 *            the property name
@@ -254,6 +257,24 @@ public interface ITestDevice {
 	public String getPropertySync(String name)
 			throws DeviceNotAvailableException;
 
+	/**
+	 * Retrieve all device properties, fetched with a single getprop call.
+	 * <p/>
+	 * The snapshot is reused until it expires, the device is rebooted or
+	 * recovered, or the device state changes.
+	 *
+	 * @return the {@link DevicePropertySnapshot}
+	 * @throws DeviceNotAvailableException
+	 */
+	public DevicePropertySnapshot getPropertySnapshot()
+			throws DeviceNotAvailableException;
+
+	/**
+	 * Discard the current property snapshot, so the next property read
+	 * issues a new getprop.
+	 */
+	public void invalidatePropertySnapshot();
+
 	/**
 	 * Executes the given adb shell command, retrying multiple times if command
 	 * fails.
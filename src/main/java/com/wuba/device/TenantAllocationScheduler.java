@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wuba.device;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applies per-tenant quotas and priorities to device allocation, and records how long each
+ * tenant waits for devices.
+ * <p/>
+ * A tenant is a name shared by the allocation requests of one user of the device pool, see
+ * {@link IDeviceSelection#getTenant()}. Requests without a tenant belong to
+ * {@link #DEFAULT_TENANT}.
+ * <p/>
+ * Quotas and priorities should be configured before devices are allocated.
+ */
+public class TenantAllocationScheduler {
+
+    /** the tenant of requests that don't specify one */
+    public static final String DEFAULT_TENANT = "default";
+
+    /** the max number of concurrently allocated devices, by tenant */
+    private final Map<String, Quota> mQuotas = new ConcurrentHashMap<String, Quota>();
+    /** the default request priority, by tenant */
+    private final Map<String, Integer> mPriorities = new ConcurrentHashMap<String, Integer>();
+    /**
+     * the asynchronous requests waiting for quota, by tenant. Guarded by this object's lock
+     */
+    private final Map<String, LinkedList<Runnable>> mPendingAcquires =
+            new HashMap<String, LinkedList<Runnable>>();
+    private final ConcurrentMap<String, TenantStats> mStats =
+            new ConcurrentHashMap<String, TenantStats>();
+
+    /**
+     * The quota of a tenant, whose size can be changed while permits are held.
+     */
+    private static class Quota extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        /** the max number of permits. Guarded by the scheduler's lock */
+        private int mMaxPermits;
+
+        Quota(int maxPermits) {
+            super(maxPermits, true);
+            mMaxPermits = maxPermits;
+        }
+
+        /**
+         * Removes permits, possibly leaving fewer than zero available until held permits are
+         * released.
+         */
+        void shrink(int count) {
+            reducePermits(count);
+        }
+    }
+
+    /**
+     * Allocation wait time statistics of a tenant.
+     */
+    public static class TenantStats {
+        private long mAllocationCount = 0;
+        private long mTimeoutCount = 0;
+        private long mCancelCount = 0;
+        private long mTotalWaitTime = 0;
+        private long mMaxWaitTime = 0;
+
+        synchronized void recordAllocation(long waitTime) {
+            mAllocationCount++;
+            mTotalWaitTime += waitTime;
+            mMaxWaitTime = Math.max(mMaxWaitTime, waitTime);
+        }
+
+        synchronized void recordTimeout() {
+            mTimeoutCount++;
+        }
+
+        synchronized void recordCancellation() {
+            mCancelCount++;
+        }
+
+        /**
+         * @return the number of successful allocation requests
+         */
+        public synchronized long getAllocationCount() {
+            return mAllocationCount;
+        }
+
+        /**
+         * @return the number of allocation requests that timed out
+         */
+        public synchronized long getTimeoutCount() {
+            return mTimeoutCount;
+        }
+
+        /**
+         * @return the number of asynchronous allocation requests cancelled by their caller
+         */
+        public synchronized long getCancelCount() {
+            return mCancelCount;
+        }
+
+        /**
+         * @return the average time in ms successful requests waited for devices
+         */
+        public synchronized long getAverageWaitTime() {
+            return mAllocationCount == 0 ? 0 : mTotalWaitTime / mAllocationCount;
+        }
+
+        /**
+         * @return the longest time in ms a successful request waited for devices
+         */
+        public synchronized long getMaxWaitTime() {
+            return mMaxWaitTime;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format(
+                    "allocations=%d timeouts=%d cancels=%d avg-wait=%dms max-wait=%dms",
+                    mAllocationCount, mTimeoutCount, mCancelCount, getAverageWaitTime(),
+                    mMaxWaitTime);
+        }
+    }
+
+    /**
+     * Limits the number of devices given tenant may have allocated at one time.
+     * <p/>
+     * Changing the quota of a tenant that holds devices keeps counting those devices against the
+     * new quota.
+     *
+     * @param tenant the tenant name
+     * @param maxDevices the max number of concurrently allocated devices
+     */
+    public void setTenantQuota(String tenant, int maxDevices) {
+        int added;
+        synchronized (this) {
+            Quota quota = mQuotas.get(tenant);
+            if (quota == null) {
+                mQuotas.put(tenant, new Quota(maxDevices));
+                return;
+            }
+            added = maxDevices - quota.mMaxPermits;
+            quota.mMaxPermits = maxDevices;
+            if (added < 0) {
+                quota.shrink(-added);
+            }
+        }
+        if (added > 0) {
+            // blocked and waiting asynchronous requests may use the new permits
+            release(tenant, added);
+        }
+    }
+
+    /**
+     * Sets the default priority of given tenant's requests. Requests that set their own priority
+     * override it.
+     *
+     * @param tenant the tenant name
+     * @param priority the priority. Higher values are served first
+     */
+    public void setTenantPriority(String tenant, int priority) {
+        mPriorities.put(tenant, priority);
+    }
+
+    /**
+     * Gets the tenant of given request.
+     */
+    String getTenant(IDeviceSelection options) {
+        String tenant = options.getTenant();
+        return tenant == null ? DEFAULT_TENANT : tenant;
+    }
+
+    /**
+     * Gets the priority of given request.
+     */
+    int getPriority(IDeviceSelection options) {
+        if (options.getPriority() != null) {
+            return options.getPriority();
+        }
+        Integer priority = mPriorities.get(getTenant(options));
+        return priority == null ? 0 : priority;
+    }
+
+    /**
+     * Reserves quota for <var>count</var> devices for given tenant, waiting up to
+     * <var>timeout</var> ms for it to become available.
+     *
+     * @return <code>true</code> if the quota was reserved
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean acquire(String tenant, int count, long timeout) throws InterruptedException {
+        Quota quota = mQuotas.get(tenant);
+        if (quota == null || quota.tryAcquire(count, timeout, TimeUnit.MILLISECONDS)) {
+            return true;
+        }
+        // quota released while this call was first in line is left for asynchronous requests
+        handOffQuota(tenant, quota);
+        return false;
+    }
+
+    /**
+     * Reserves quota for one device for given tenant without blocking. If the tenant is at its
+     * quota, <var>onAcquired</var> is queued, and run by the thread that releases quota.
+     *
+     * @param onAcquired the {@link Runnable} to run once the quota is reserved
+     */
+    void acquireAsync(String tenant, Runnable onAcquired) {
+        Quota quota = mQuotas.get(tenant);
+        synchronized (this) {
+            LinkedList<Runnable> pending = mPendingAcquires.get(tenant);
+            // never overtake the requests already waiting
+            if (quota != null && ((pending != null && !pending.isEmpty())
+                    || !tryAcquireFair(quota))) {
+                if (pending == null) {
+                    pending = new LinkedList<Runnable>();
+                    mPendingAcquires.put(tenant, pending);
+                }
+                pending.add(onAcquired);
+                return;
+            }
+        }
+        onAcquired.run();
+    }
+
+    /**
+     * Cancels an asynchronous quota request queued by
+     * {@link #acquireAsync(String, Runnable)}.
+     *
+     * @return <code>true</code> if the request was still waiting for quota
+     */
+    synchronized boolean cancelAcquire(String tenant, Runnable onAcquired) {
+        LinkedList<Runnable> pending = mPendingAcquires.get(tenant);
+        return pending != null && pending.remove(onAcquired);
+    }
+
+    /**
+     * Returns quota for <var>count</var> devices of given tenant, then passes any available quota
+     * on to waiting asynchronous requests.
+     */
+    void release(String tenant, int count) {
+        Quota quota = mQuotas.get(tenant);
+        if (quota == null) {
+            return;
+        }
+        quota.release(count);
+        handOffQuota(tenant, quota);
+    }
+
+    /**
+     * Reserves available quota of given tenant for its waiting asynchronous requests, in arrival
+     * order. A shrunk quota has none available until enough devices are freed, and blocked
+     * {@link #acquire(String, int, long)} calls are served first.
+     */
+    private void handOffQuota(String tenant, Quota quota) {
+        List<Runnable> acquired = new ArrayList<Runnable>();
+        synchronized (this) {
+            LinkedList<Runnable> pending = mPendingAcquires.get(tenant);
+            while (pending != null && !pending.isEmpty() && tryAcquireFair(quota)) {
+                acquired.add(pending.removeFirst());
+            }
+        }
+        for (Runnable onAcquired : acquired) {
+            onAcquired.run();
+        }
+    }
+
+    /**
+     * Takes one permit of given quota if one is available and no thread is blocked on it.
+     */
+    private static boolean tryAcquireFair(Quota quota) {
+        try {
+            // unlike tryAcquire(), honours the fairness of the semaphore
+            return quota.tryAcquire(0, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Records a successful allocation request of given tenant.
+     *
+     * @param waitTime the time in ms the request waited for devices
+     */
+    void recordAllocation(String tenant, long waitTime) {
+        getStats(tenant).recordAllocation(waitTime);
+    }
+
+    /**
+     * Records an allocation request of given tenant that timed out.
+     */
+    void recordTimeout(String tenant) {
+        getStats(tenant).recordTimeout();
+    }
+
+    /**
+     * Records an asynchronous allocation request of given tenant that was cancelled by its caller.
+     */
+    void recordCancellation(String tenant) {
+        getStats(tenant).recordCancellation();
+    }
+
+    private TenantStats getStats(String tenant) {
+        TenantStats stats = mStats.get(tenant);
+        if (stats == null) {
+            mStats.putIfAbsent(tenant, new TenantStats());
+            stats = mStats.get(tenant);
+        }
+        return stats;
+    }
+
+    /**
+     * @return the allocation wait time statistics, by tenant
+     */
+    public Map<String, TenantStats> getStats() {
+        return new HashMap<String, TenantStats>(mStats);
+    }
+}
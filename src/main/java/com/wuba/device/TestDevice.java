@@ -30,6 +30,7 @@ import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -55,6 +56,8 @@ import com.android.ddmlib.SyncService;
 import com.android.ddmlib.TimeoutException;
 import com.android.ddmlib.testrunner.IRemoteAndroidTestRunner;
 import com.android.ddmlib.testrunner.ITestRunListener;
+import com.wuba.device.DeviceActionPolicy.Action;
+import com.wuba.device.DeviceTimingHistory.Phase;
 import com.wuba.device.DumpsysPackageParser.PackageInfo;
 import com.wuba.utils.ArrayUtil;
 import com.wuba.utils.ByteArrayInputStreamSource;
@@ -75,6 +78,8 @@ public class TestDevice implements IManagedTestDevice {
 	private static Logger LOG = Logger.getLogger("TestDevice.class");
 	/** the default number of command retry attempts to perform */
 	static final int MAX_RETRY_ATTEMPTS = 2;
+	/** the max time in ms to wait for a device to come back in a reconnect */
+	private static final long RECONNECT_TIMEOUT = 5 * 1000;
 	private static final String BUGREPORT_CMD = "bugreport";
 	static final String LIST_PACKAGES_CMD = "pm list packages -f";
 	private static final Pattern PACKAGE_REGEX = Pattern
@@ -144,6 +149,55 @@ public class TestDevice implements IManagedTestDevice {
 
 	private Boolean mIsEncryptionSupported = null;
 
+	/** the last getprop snapshot, or null if it was invalidated */
+	private volatile DevicePropertySnapshot mPropertySnapshot = null;
+
+	private DeviceActionPolicy mActionPolicy = DeviceActionPolicy.getDefault();
+	private final DeviceCircuitBreaker mCircuitBreaker = new DeviceCircuitBreaker();
+	private DeviceHealthTracker mHealthTracker = null;
+	/** the liveness probe results of all devices */
+	private static final LivenessProbeStats sProbeStats = new LivenessProbeStats();
+
+	/**
+	 * Counts the liveness probes run instead of a full recovery, and how many
+	 * recoveries they avoided.
+	 */
+	public static class LivenessProbeStats {
+		private long mProbes = 0;
+		private long mRecoveriesAvoided = 0;
+		private long mTotalProbeTime = 0;
+
+		synchronized void record(boolean alive, long probeTime) {
+			mProbes++;
+			if (alive) {
+				mRecoveriesAvoided++;
+			}
+			mTotalProbeTime += probeTime;
+		}
+
+		/**
+		 * @return the number of probes run
+		 */
+		public synchronized long getProbeCount() {
+			return mProbes;
+		}
+
+		/**
+		 * @return the number of probes that found the device alive, ie the
+		 *         number of full recoveries avoided
+		 */
+		public synchronized long getRecoveriesAvoided() {
+			return mRecoveriesAvoided;
+		}
+
+		/**
+		 * @return the average time in ms a probe took, or 0 if none was run
+		 */
+		public synchronized long getAverageProbeTime() {
+			return mProbes == 0 ? 0 : mTotalProbeTime / mProbes;
+		}
+	}
+
 	private int retryAttempts = 1;
 
 	private AdbChimpDevice chimpDevice = null;
@@ -275,6 +329,7 @@ public class TestDevice implements IManagedTestDevice {
 			synchronized (currentDevice) {
 				mIDevice = newDevice;
 			}
+			invalidatePropertySnapshot();
 			mMonitor.setIDevice(mIDevice);
 		}
 	}
@@ -333,20 +388,119 @@ public class TestDevice implements IManagedTestDevice {
 
 	public String getProperty(final String name)
 			throws DeviceNotAvailableException {
-		final String[] result = new String[1];
+		if (DevicePropertySnapshot.isReadOnly(name)) {
+			return getPropertySnapshot().getProperty(name);
+		}
+		// other properties may change at any time, a snapshot would serve
+		// stale values
+		return getPropertySync(name);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+
+	public DevicePropertySnapshot getPropertySnapshot()
+			throws DeviceNotAvailableException {
+		DevicePropertySnapshot snapshot = mPropertySnapshot;
+		if (snapshot != null
+				&& !snapshot.isExpired(mOptions.getPropertySnapshotTtl())) {
+			return snapshot;
+		}
+		final CollectingOutputReceiver receiver = new CollectingOutputReceiver();
 		DeviceAction propAction = new DeviceAction() {
 
 			public boolean run() throws IOException, TimeoutException,
 					AdbCommandRejectedException,
 					ShellCommandUnresponsiveException, InstallException,
 					SyncException {
-				result[0] = getIDevice().getPropertyCacheOrSync(name);
+				getIDevice().executeShellCommand(
+						DevicePropertySnapshot.GETPROP_CMD, receiver);
 				return true;
 			}
 
 		};
 		performDeviceAction("getprop", propAction, MAX_RETRY_ATTEMPTS);
-		return result[0];
+		snapshot = DevicePropertySnapshot.parse(receiver.getOutput());
+		if (snapshot.isEmpty()) {
+			// don't cache a failed dump, so the next call retries
+			LOG.warn(String.format("getprop returned no properties on %s",
+					getSerialNumber()));
+		} else {
+			mPropertySnapshot = snapshot;
+		}
+		return snapshot;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+
+	public void invalidatePropertySnapshot() {
+		mPropertySnapshot = null;
+	}
+
+	/**
+	 * Gets a property without retries or recovery, preferring the ddmlib cache
+	 * and falling back to the property snapshot. If there is no valid
+	 * snapshot, a single getprop is attempted.
+	 * 
+	 * @param name
+	 *            the property name
+	 * @return the property value, or <code>null</code> if it could not be
+	 *         retrieved
+	 */
+	private String getCachedProperty(String name) {
+		String value = getIDevice().getProperty(name);
+		if (value != null) {
+			return value;
+		}
+		DevicePropertySnapshot snapshot = mPropertySnapshot;
+		if (snapshot == null
+				|| snapshot.isExpired(mOptions.getPropertySnapshotTtl())) {
+			if (!TestDeviceState.ONLINE.equals(getDeviceState())) {
+				return null;
+			}
+			snapshot = capturePropertySnapshotOnce();
+			if (snapshot == null) {
+				return null;
+			}
+		}
+		return snapshot.getProperty(name);
+	}
+
+	/**
+	 * Runs getprop once, without the retries and recovery of
+	 * {@link #getPropertySnapshot()}.
+	 * 
+	 * @return the new snapshot, or <code>null</code> if getprop failed
+	 */
+	private DevicePropertySnapshot capturePropertySnapshotOnce() {
+		CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+		try {
+			getIDevice().executeShellCommand(
+					DevicePropertySnapshot.GETPROP_CMD, receiver, mCmdTimeout,
+					TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			logDeviceActionException("getprop", e);
+			return null;
+		} catch (AdbCommandRejectedException e) {
+			logDeviceActionException("getprop", e);
+			return null;
+		} catch (ShellCommandUnresponsiveException e) {
+			logDeviceActionException("getprop", e);
+			return null;
+		} catch (IOException e) {
+			logDeviceActionException("getprop", e);
+			return null;
+		}
+		DevicePropertySnapshot snapshot = DevicePropertySnapshot
+				.parse(receiver.getOutput());
+		if (snapshot.isEmpty()) {
+			return null;
+		}
+		mPropertySnapshot = snapshot;
+		return snapshot;
 	}
 
 	/**
@@ -469,7 +623,7 @@ public class TestDevice implements IManagedTestDevice {
 	}
 
 	public String getBuildId() {
-		String bid = getIDevice().getProperty(BUILD_ID_PROP);
+		String bid = getCachedProperty(BUILD_ID_PROP);
 		if (bid == null) {
 			LOG.warn(String.format("Could not get device %s build id.",
 					getSerialNumber()));
@@ -483,8 +637,8 @@ public class TestDevice implements IManagedTestDevice {
 	 */
 
 	public String getBuildFlavor() {
-		String productName = getIDevice().getProperty(PRODUCT_NAME_PROP);
-		String buildType = getIDevice().getProperty(BUILD_TYPE_PROP);
+		String productName = getCachedProperty(PRODUCT_NAME_PROP);
+		String buildType = getCachedProperty(BUILD_TYPE_PROP);
 		if (productName == null || buildType == null) {
 			LOG.warn(String.format("Could not get device %s build flavor.",
 					getSerialNumber()));
@@ -1346,6 +1500,7 @@ public class TestDevice implements IManagedTestDevice {
 			}
 			recoverDeviceFromBootloader();
 		}
+		recordUnresponsiveError();
 		throw new DeviceUnresponsiveException(
 				String.format(
 						"Attempted fastboot %s multiple "
@@ -1483,14 +1638,20 @@ public class TestDevice implements IManagedTestDevice {
 			throws DeviceNotAvailableException {
 		// 如果成功直接返回,如果失败就要重试
 		for (int i = 0; i < retryAttempts + 1; i++) {
+			Exception failure;
 			try {
-				return action.run();
+				boolean result = action.run();
+				mCircuitBreaker.recordSuccess();
+				return result;
 			} catch (TimeoutException e) {
 				logDeviceActionException(actionDescription, e);
+				failure = e;
 			} catch (IOException e) {
 				logDeviceActionException(actionDescription, e);
+				failure = e;
 			} catch (InstallException e) {
 				logDeviceActionException(actionDescription, e);
+				failure = e;
 			} catch (SyncException e) {
 				logDeviceActionException(actionDescription, e);
 				// a SyncException is not necessarily a device communication
@@ -1503,19 +1664,23 @@ public class TestDevice implements IManagedTestDevice {
 					// retried
 					return false;
 				}
+				failure = e;
 			} catch (AdbCommandRejectedException e) {
 				logDeviceActionException(actionDescription, e);
+				failure = e;
 			} catch (ShellCommandUnresponsiveException e) {
 				LOG.warn(String.format(
 						"Device %s stopped responding when attempting %s",
 						getSerialNumber(), actionDescription));
+				failure = e;
+			}
+			mCircuitBreaker.recordFailure();
+			if (!handleDeviceActionFailure(actionDescription, failure, i)) {
+				return false;
 			}
-			// TODO: currently treat all exceptions the same. In future consider
-			// different recovery
-			// mechanisms for time out's vs IOExceptions
-			recoverDevice();
 		}
 		if (retryAttempts > 0) {
+			recordUnresponsiveError();
 			throw new DeviceUnresponsiveException(
 					String.format(
 							"Attempted %s multiple times "
@@ -1525,6 +1690,136 @@ public class TestDevice implements IManagedTestDevice {
 		return false;
 	}
 
+	/**
+	 * Prepares the retry of a failed device action, as decided by the
+	 * {@link DeviceActionPolicy}.
+	 * 
+	 * @param actionDescription
+	 *            the action's description
+	 * @param e
+	 *            the exception the action failed with
+	 * @param attempt
+	 *            the number of previous failed attempts of the action
+	 * @return <code>false</code> if the action should not be retried
+	 * @throws DeviceNotAvailableException
+	 *             if recovery failed
+	 */
+	private boolean handleDeviceActionFailure(String actionDescription,
+			Exception e, int attempt) throws DeviceNotAvailableException {
+		Action policyAction = mActionPolicy.getAction(e, actionDescription,
+				attempt);
+		if (mRecoveryMode.equals(RecoveryMode.NONE)
+				&& !policyAction.equals(Action.FAIL)) {
+			// recovery is off, eg while recovering: only pause before the
+			// retry, never reconnect or probe
+			recoverDevice();
+			return true;
+		}
+		if (policyAction.compareTo(Action.RECOVER) < 0
+				&& mCircuitBreaker.isOpen()) {
+			// this device keeps failing, don't waste time on light retries
+			policyAction = Action.RECOVER;
+		}
+		LOG.debug(String.format("Handling failure of %s on %s with %s",
+				actionDescription, getSerialNumber(), policyAction));
+		switch (policyAction) {
+		case RETRY:
+			break;
+		case BACKOFF_RETRY:
+			getRunUtil().sleep(mActionPolicy.getBackoffTime(attempt));
+			break;
+		case RECONNECT:
+			if (!reconnectDevice()) {
+				recoverDevice();
+			}
+			break;
+		case PROBE:
+			if (!probeDevice()) {
+				recoverDevice();
+			}
+			break;
+		case FAIL:
+			return false;
+		default:
+			recoverDevice();
+			break;
+		}
+		return true;
+	}
+
+	/**
+	 * Waits briefly for the device to be online and responsive again, without
+	 * the pauses of a full recovery.
+	 * 
+	 * @return <code>true</code> if the device is responsive
+	 */
+	private boolean reconnectDevice() {
+		LOG.info(String.format("Attempting reconnect on %s", getSerialNumber()));
+		return mMonitor.waitForDeviceOnline(RECONNECT_TIMEOUT) != null
+				&& mMonitor.waitForDeviceShell(RECONNECT_TIMEOUT);
+	}
+
+	/**
+	 * Checks the device still answers a trivial shell command, ie that only
+	 * the failed command was stuck.
+	 * 
+	 * @return <code>true</code> if the device is alive
+	 */
+	private boolean probeDevice() {
+		long start = System.currentTimeMillis();
+		long latency = DeviceHealthTracker.probeShellLatency(getIDevice());
+		boolean alive = latency >= 0;
+		sProbeStats.record(alive, System.currentTimeMillis() - start);
+		if (alive && mHealthTracker != null) {
+			// only the failed command was stuck. A failed probe is followed by
+			// a recovery, which is penalized on its own
+			mHealthTracker.recordShellLatency(getSerialNumber(), latency);
+		}
+		LOG.info(String.format("Liveness probe of %s %s", getSerialNumber(),
+				alive ? "succeeded, skipping recovery" : "failed"));
+		return alive;
+	}
+
+	/**
+	 * Gets the {@link LivenessProbeStats} of all devices.
+	 */
+	public static LivenessProbeStats getLivenessProbeStats() {
+		return sProbeStats;
+	}
+
+	/**
+	 * Gets the number of times this device failed so often in a row that
+	 * its device actions went straight to recovery.
+	 */
+	public long getCircuitBreakerOpenCount() {
+		return mCircuitBreaker.getOpenCount();
+	}
+
+	/**
+	 * Sets the {@link DeviceActionPolicy} deciding how failed device actions
+	 * are retried.
+	 */
+	public void setDeviceActionPolicy(DeviceActionPolicy policy) {
+		mActionPolicy = policy;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+
+	public void setHealthTracker(DeviceHealthTracker healthTracker) {
+		mHealthTracker = healthTracker;
+	}
+
+	/**
+	 * Reports that device actions gave up on this device.
+	 */
+	private void recordUnresponsiveError() {
+		if (mHealthTracker != null) {
+			mHealthTracker.recordUnresponsiveError(getSerialNumber());
+		}
+	}
+
 	/**
 	 * Log an entry for given exception
 	 * 
@@ -1579,8 +1874,14 @@ public class TestDevice implements IManagedTestDevice {
 			return;
 		}
 		LOG.info(String.format("Attempting recovery on %s", getSerialNumber()));
-		mRecovery.recoverDevice(mMonitor,
-				mRecoveryMode.equals(RecoveryMode.ONLINE));
+		invalidatePropertySnapshot();
+		try {
+			mRecovery.recoverDevice(mMonitor,
+					mRecoveryMode.equals(RecoveryMode.ONLINE));
+		} catch (DeviceUnresponsiveException e) {
+			recordUnresponsiveError();
+			throw e;
+		}
 		if (mRecoveryMode.equals(RecoveryMode.AVAILABLE)) {
 			// turn off recovery mode to prevent reentrant recovery
 			// TODO: look for a better way to handle this, such as doing
@@ -2020,10 +2321,20 @@ public class TestDevice implements IManagedTestDevice {
 
 		setRecoveryMode(cachedRecoveryMode);
 
-		if (mMonitor.waitForDeviceAvailable(mOptions.getRebootTimeout()) != null) {
+		DeviceTimingHistory history = DeviceTimingHistory.getDefault();
+		String product = getIDevice().getProperty(
+				DeviceSelectionOptions.DEVICE_PRODUCT_PROPERTY);
+		long timeout = history.getTimeout(Phase.REBOOT, getSerialNumber(),
+				mOptions.getRebootTimeout());
+		long startTime = System.currentTimeMillis();
+		if (mMonitor.waitForDeviceAvailable(timeout) != null) {
+			history.record(Phase.REBOOT, getSerialNumber(), product,
+					System.currentTimeMillis() - startTime);
 			postBootSetup();
 			return;
 		} else {
+			history.recordTimeout(Phase.REBOOT, getSerialNumber(), product,
+					timeout, mOptions.getRebootTimeout());
 			recoverDevice();
 		}
 	}
@@ -2084,6 +2395,7 @@ public class TestDevice implements IManagedTestDevice {
 					"device %s in fastboot. Rebooting to userspace.",
 					getSerialNumber()));
 			executeFastbootCommand("reboot");
+			invalidatePropertySnapshot();
 		} else {
 			LOG.info(String.format("Rebooting device %s", getSerialNumber()));
 			doAdbReboot(null);
@@ -2106,6 +2418,7 @@ public class TestDevice implements IManagedTestDevice {
 			public boolean run() throws TimeoutException, IOException,
 					AdbCommandRejectedException {
 				getIDevice().reboot(into);
+				invalidatePropertySnapshot();
 				return true;
 			}
 		};
@@ -2539,6 +2852,7 @@ public class TestDevice implements IManagedTestDevice {
 				return;
 			}
 			mState = deviceState;
+			invalidatePropertySnapshot();
 			LOG.debug(String.format("Device %s state is now %s",
 					getSerialNumber(), deviceState));
 			mMonitor.setState(deviceState);
@@ -44,6 +44,8 @@ public class TestDeviceOptions {
 
     private long mAvailableTimeout = 6 * 60 * 1000;
 
+    private long mPropertySnapshotTtl = 5 * 60 * 1000;
+
     private String mCommPort = null;
     
     
@@ -201,4 +203,19 @@ public class TestDeviceOptions {
     public long getAvailableTimeout() {
         return mAvailableTimeout;
     }
+
+    /**
+     * @return the time in ms a device property snapshot is served before getprop is re-issued.
+     */
+    public long getPropertySnapshotTtl() {
+        return mPropertySnapshotTtl;
+    }
+
+    /**
+     * @param propertySnapshotTtl the time in ms a device property snapshot is served before
+     * getprop is re-issued.
+     */
+    public void setPropertySnapshotTtl(long propertySnapshotTtl) {
+        mPropertySnapshotTtl = propertySnapshotTtl;
+    }
 }
@@ -23,6 +23,7 @@ import com.android.ddmlib.AdbCommandRejectedException;
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.Log;
 import com.android.ddmlib.TimeoutException;
+import com.wuba.device.DeviceTimingHistory.Phase;
 import com.wuba.utils.IRunUtil;
 import com.wuba.utils.RunUtil;
 
@@ -54,6 +55,9 @@ public class WaitDeviceRecovery implements IDeviceRecovery {
 
 	protected boolean mDisableUnresponsiveReboot = false;
 
+	private DeviceTimingHistory mTimingHistory = DeviceTimingHistory
+			.getDefault();
+
 	/**
 	 * Get the {@link RunUtil} instance to use.
 	 * <p/>
@@ -70,6 +74,13 @@ public class WaitDeviceRecovery implements IDeviceRecovery {
 		mWaitTime = waitTime;
 	}
 
+	/**
+	 * Sets the {@link DeviceTimingHistory} wait timeouts are derived from.
+	 */
+	void setTimingHistory(DeviceTimingHistory timingHistory) {
+		mTimingHistory = timingHistory;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -86,38 +97,123 @@ public class WaitDeviceRecovery implements IDeviceRecovery {
 		monitor.waitForDeviceBootloaderStateUpdate();
 
 		if (monitor.getDeviceState().equals(TestDeviceState.FASTBOOT)) {
-			Log.i(LOG_TAG,
-					String.format(
-							"Found device %s in fastboot but expected online. Rebooting...",
-							monitor.getSerialNumber()));
-			// TODO: retry if failed
-			getRunUtil().runTimedCmd(20 * 1000, "fastboot", "-s",
-					monitor.getSerialNumber(), "reboot");
+			rebootFastbootDevice(monitor.getSerialNumber());
 		}
 
+		recoverOnlineDevice(monitor, recoverUntilOnline);
+	}
+
+	/**
+	 * Reboots a device found in fastboot while it was expected online.
+	 * 
+	 * @param serial
+	 *            the device serial
+	 */
+	void rebootFastbootDevice(String serial) {
+		Log.i(LOG_TAG, String.format(
+				"Found device %s in fastboot but expected online. Rebooting...",
+				serial));
+		// TODO: retry if failed
+		getRunUtil().runTimedCmd(20 * 1000, "fastboot", "-s", serial, "reboot");
+	}
+
+	/**
+	 * Performs the part of {@link #recoverDevice(IDeviceStateMonitor, boolean)}
+	 * following the initial pause and fastboot check: waits for the device to
+	 * be online, then responsive.
+	 * 
+	 * @param monitor
+	 *            the {@link IDeviceStateMonitor}
+	 * @param recoverUntilOnline
+	 *            if true, return as soon as device is online on adb
+	 * @throws DeviceNotAvailableException
+	 *             if device could not be recovered
+	 */
+	void recoverOnlineDevice(IDeviceStateMonitor monitor,
+			boolean recoverUntilOnline) throws DeviceNotAvailableException {
 		// wait for device online
-		IDevice device = monitor.waitForDeviceOnline();
+		IDevice device = waitForDeviceOnline(monitor);
 		if (device == null) {
 			handleDeviceNotAvailable(monitor, recoverUntilOnline);
 			return;
 		}
+		String product = device
+				.getProperty(DeviceSelectionOptions.DEVICE_PRODUCT_PROPERTY);
 		// occasionally device is erroneously reported as online - double check
 		// that we can shell
 		// into device
-		if (!monitor.waitForDeviceShell(mShellWaitTime)) {
+		long timeout = mTimingHistory.getTimeout(Phase.SHELL,
+				monitor.getSerialNumber(), mShellWaitTime);
+		long startTime = System.currentTimeMillis();
+		if (!monitor.waitForDeviceShell(timeout)) {
+			mTimingHistory.recordTimeout(Phase.SHELL,
+					monitor.getSerialNumber(), product, timeout,
+					mShellWaitTime);
 			// treat this as a not available device
 			handleDeviceNotAvailable(monitor, recoverUntilOnline);
 			return;
 		}
+		mTimingHistory.record(Phase.SHELL, monitor.getSerialNumber(), product,
+				System.currentTimeMillis() - startTime);
 
 		if (!recoverUntilOnline) {
-			if (monitor.waitForDeviceAvailable(mWaitTime) == null) {
+			timeout = mTimingHistory.getTimeout(Phase.AVAILABLE,
+					monitor.getSerialNumber(), mWaitTime);
+			startTime = System.currentTimeMillis();
+			if (monitor.waitForDeviceAvailable(timeout) != null) {
+				mTimingHistory.record(Phase.AVAILABLE,
+						monitor.getSerialNumber(), product,
+						System.currentTimeMillis() - startTime);
+			} else {
+				mTimingHistory.recordTimeout(Phase.AVAILABLE,
+						monitor.getSerialNumber(), product, timeout,
+						mWaitTime);
 				// device is online but not responsive
 				handleDeviceUnresponsive(device, monitor);
 			}
 		}
 	}
 
+	/**
+	 * Gets the longest time in ms a
+	 * {@link #recoverOnlineDevice(IDeviceStateMonitor, boolean)} of given
+	 * device may take, including the reboot of an unresponsive device.
+	 */
+	long getMaxOnlineRecoveryTime(IDeviceStateMonitor monitor) {
+		String serial = monitor.getSerialNumber();
+		return mTimingHistory.getTimeout(Phase.ONLINE, serial,
+				monitor.getDefaultOnlineTimeout())
+				+ mTimingHistory
+						.getTimeout(Phase.SHELL, serial, mShellWaitTime)
+				+ mTimingHistory.getTimeout(Phase.AVAILABLE, serial, mWaitTime)
+				+ monitor.getDefaultOnlineTimeout() + mWaitTime;
+	}
+
+	/**
+	 * Waits for the device to be online, for the time learned from its
+	 * history or the monitor's default.
+	 * 
+	 * @return the online {@link IDevice} or <code>null</code>
+	 */
+	private IDevice waitForDeviceOnline(IDeviceStateMonitor monitor) {
+		long defaultTimeout = monitor.getDefaultOnlineTimeout();
+		long timeout = mTimingHistory.getTimeout(Phase.ONLINE,
+				monitor.getSerialNumber(), defaultTimeout);
+		long startTime = System.currentTimeMillis();
+		IDevice device = monitor.waitForDeviceOnline(timeout);
+		if (device != null) {
+			mTimingHistory.record(Phase.ONLINE, monitor.getSerialNumber(),
+					device.getProperty(
+							DeviceSelectionOptions.DEVICE_PRODUCT_PROPERTY),
+					System.currentTimeMillis() - startTime);
+		} else {
+			// the product is remembered from earlier samples, if any
+			mTimingHistory.recordTimeout(Phase.ONLINE,
+					monitor.getSerialNumber(), null, timeout, defaultTimeout);
+		}
+		return device;
+	}
+
 	/**
 	 * Handle situation where device is online but unresponsive.
 	 * 
@@ -16,11 +16,19 @@
 package com.wuba.utils;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
@@ -30,10 +38,26 @@ import java.util.concurrent.locks.ReentrantLock;
  * A thread-safe class with {@link PriorityBlockingQueue}-like operations that can retrieve objects
  * that match a certain condition.
  * <p/>
- * Iteration is also thread-safe, but not consistent. A copy of the queue is made at iterator
- * creation time, and that copy is used as the iteration target. If queue is modified during
- * iteration, a {@link ConcurrentModificationException} will not be thrown, but the iterator
- * will also not reflect the modified contents.
+ * Iteration is also thread-safe, but not consistent. An immutable snapshot of the queue is used as
+ * the iteration target. If queue is modified during iteration, a
+ * {@link ConcurrentModificationException} will not be thrown, but the iterator will also not
+ * reflect the modified contents. The snapshot is rebuilt once per modifying call, when it releases
+ * the queue lock, so iterating, {@link #getCopy()}, {@link #size()} and {@link #contains(Object)}
+ * never take the queue lock.
+ * <p/>
+ * Listeners of asynchronous polls are always called after the queue lock is released, including
+ * when the element is added by a call that holds the lock, such as
+ * {@link #addUnique(IMatcher, Object)}.
+ * <p/>
+ * If created with a {@link IIndexer}, the queue holds at most one element per key, and keeps a
+ * hash index of the element keys and attributes. {@link IIndexedMatcher}'s are then only
+ * evaluated against the elements that satisfy their key and attribute constraints, rather than
+ * against every element in the queue.
+ * <p/>
+ * Waiting threads may be given a priority. An added element is handed directly to the highest
+ * priority waiter that matches it, so it can not be taken by a lower priority or non-blocking
+ * poll in between. Optionally, waiters gain priority the longer they wait, so low priority
+ * waiters are not starved.
  * <p/>
  * @see {@link PriorityBlockingQueue}
  */
@@ -69,29 +93,243 @@ public class ConditionPriorityBlockingQueue<T> implements Iterable<T> {
         }
     }
 
-    private static class ConditionMatcherPair<T> {
-        private final IMatcher<T> mMatcher;
+    /**
+     * An interface for extracting the index keys of elements held by an indexed
+     * {@link ConditionPriorityBlockingQueue}.
+     *
+     * @param <T>
+     */
+    public static interface IIndexer<T> {
+        /**
+         * Get the unique key of given <var>element</var>.
+         *
+         * @param element the object to index
+         * @return the element key. Must not be <code>null</code>
+         */
+        String getKey(T element);
+
+        /**
+         * Get the secondary attributes of given <var>element</var>.
+         *
+         * @param element the object to index
+         * @return a {@link Map} of attribute names to values. A <code>null</code> value means the
+         *         attribute is unknown for this element.
+         */
+        Map<String, String> getAttributes(T element);
+    }
+
+    /**
+     * A {@link IMatcher} that can describe the index values an element must have to match.
+     * <p/>
+     * Constraints are only used to narrow down the candidate elements: {@link #matches(Object)}
+     * is still evaluated for each candidate, so it must not accept an element that violates the
+     * constraints. Elements with an unknown attribute value are always considered candidates,
+     * elements that do not have a constrained attribute at all never are.
+     * <p/>
+     * The constraints of a waiting matcher are also used to only wake the waiters that could
+     * accept an added element.
+     *
+     * @param <T>
+     */
+    public static interface IIndexedMatcher<T> extends IMatcher<T> {
+        /**
+         * @return the keys of the elements that can match, or <code>null</code> if any key can
+         *         match
+         */
+        Collection<String> getKeyConstraint();
+
+        /**
+         * @return a {@link Map} of attribute names to the values that can match. Attributes that
+         *         are not present in the map are unconstrained. May be <code>null</code>
+         */
+        Map<String, Collection<String>> getAttributeConstraints();
+    }
+
+    /**
+     * An element held by an indexed queue.
+     */
+    private static class IndexEntry<T> {
+        private final T mElement;
+        private final String mKey;
+        private final Map<String, String> mAttributes;
+        /** the insertion order of the element, used for FIFO prioritization */
+        private long mSequence;
+
+        IndexEntry(T element, String key, Map<String, String> attributes) {
+            mElement = element;
+            mKey = key;
+            mAttributes = attributes;
+        }
+    }
+
+    /**
+     * A callback for an asynchronous poll.
+     *
+     * @see ConditionPriorityBlockingQueue#pollAsync(IMatcher, Comparator, int, IHandoffListener)
+     */
+    public static interface IHandoffListener<T> {
+        /**
+         * Called when a matching element was retrieved for the poll. Called without the queue
+         * lock held. The element is no longer in the queue, so it is the listener's
+         * responsibility, and must not throw.
+         *
+         * @param element the retrieved element
+         */
+        public void elementAvailable(T element);
+    }
+
+    /**
+     * A handle to a pending asynchronous poll.
+     */
+    public static interface IPendingPoll {
+        /**
+         * Cancels the poll.
+         *
+         * @return <code>true</code> if the poll was cancelled, <code>false</code> if an element
+         *         was already handed to its listener
+         */
+        public boolean cancel();
+    }
+
+    /**
+     * A thread, or an asynchronous poll, waiting for an element.
+     */
+    private static class Waiter<T> {
+        /** the condition of the waiting thread, or <code>null</code> for an asynchronous poll */
         private final Condition mCondition;
+        /** the listener of an asynchronous poll, or <code>null</code> */
+        private final IHandoffListener<T> mListener;
+        /** the requested priority. Higher values are served first */
+        private final int mPriority;
+        /** the time in ns the thread started waiting */
+        private final long mStartTime;
+        /** the element handed directly to this waiter, or <code>null</code> */
+        private T mHandoff = null;
+
+        Waiter(Condition condition, int priority) {
+            this(condition, priority, null);
+        }
 
-        ConditionMatcherPair(IMatcher<T> m, Condition c) {
-            mMatcher = m;
-            mCondition = c;
+        Waiter(Condition condition, int priority, IHandoffListener<T> listener) {
+            mCondition = condition;
+            mListener = listener;
+            mPriority = priority;
+            mStartTime = System.nanoTime();
         }
     }
 
-    /** the list of current objects */
+    /**
+     * A group of threads waiting for an element that meets the same condition.
+     * <p/>
+     * Waiters whose matchers are equal share a group, so each added element is evaluated once
+     * per group rather than once per waiting thread.
+     */
+    private static class WaiterGroup<T> {
+        private final IMatcher<T> mMatcher;
+        /** the waiting threads, in arrival order */
+        private final LinkedList<Waiter<T>> mWaiters = new LinkedList<Waiter<T>>();
+        /** the registration order of the group */
+        private final long mSequence;
+        /** the key constraint of the matcher, or <code>null</code> */
+        private final Set<String> mKeys;
+        /** the attribute constraints of the matcher */
+        private final Map<String, Set<String>> mAttributes;
+        /** the attribute the group is registered under, or <code>null</code> */
+        private String mIndexAttribute = null;
+        /**
+         * <code>true</code> if the waiters need several elements at once. Batch waiters are
+         * signalled on every matching element, without consuming the signal of single waiters.
+         */
+        private final boolean mBatch;
+
+        WaiterGroup(IMatcher<T> matcher, boolean batch, long sequence, Set<String> keys,
+                Map<String, Set<String>> attributes) {
+            mMatcher = matcher;
+            mBatch = batch;
+            mSequence = sequence;
+            mKeys = keys;
+            mAttributes = attributes;
+        }
+
+        /**
+         * Cheaply determine if given entry satisfies the index constraints of this group.
+         */
+        boolean accepts(IndexEntry<?> entry) {
+            if (mKeys != null && !mKeys.contains(entry.mKey)) {
+                return false;
+            }
+            for (Map.Entry<String, Set<String>> constraint : mAttributes.entrySet()) {
+                if (!entry.mAttributes.containsKey(constraint.getKey())) {
+                    return false;
+                }
+                String value = entry.mAttributes.get(constraint.getKey());
+                if (value != null && !constraint.getValue().contains(value)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /** orders {@link WaiterGroup}s by registration order */
+    private static final Comparator<WaiterGroup<?>> WAITER_ORDER = new Comparator<WaiterGroup<?>>() {
+        public int compare(WaiterGroup<?> g1, WaiterGroup<?> g2) {
+            return g1.mSequence < g2.mSequence ? -1 : (g1.mSequence == g2.mSequence ? 0 : 1);
+        }
+    };
+
+    /** the list of current objects. Only used if queue is not indexed */
     private final List<T> mList;
 
+    /** the optional {@link IIndexer}. If <code>null</code> the queue is not indexed */
+    private final IIndexer<T> mIndexer;
+    /** map of element key to entry, in insertion order. Only used if queue is indexed */
+    private final LinkedHashMap<String, IndexEntry<T>> mKeyIndex;
+    /** map of attribute name to attribute value to entries. Only used if queue is indexed */
+    private final Map<String, Map<String, Set<IndexEntry<T>>>> mAttributeIndex;
+    /** the sequence number to assign to the next added element */
+    private long mNextSequence = 0;
+
+    /** an immutable copy of the queue contents, as of the last modifying call */
+    private volatile List<T> mSnapshot = Collections.emptyList();
+    /** whether the queue was modified since the snapshot was taken. Guarded by mLock */
+    private boolean mModified = false;
+    /**
+     * the asynchronous waiters handed an element, whose listeners are called once the lock is
+     * released. Guarded by mLock
+     */
+    private final List<Waiter<T>> mPendingHandoffs = new ArrayList<Waiter<T>>();
+    /** the number of elements in queue */
+    private volatile int mSize = 0;
+    /**
+     * a copy of the key index that can be read without the lock. Only used if queue is
+     * indexed
+     */
+    private final Map<String, T> mKeySnapshot = new ConcurrentHashMap<String, T>();
+
     /** the global lock */
     private final ReentrantLock mLock = new ReentrantLock(true);
     /**
-     * List of {@link IMatcher}'s that are waiting for an object to be added to queue that meets
-     * their criteria
+     * List of {@link WaiterGroup}'s that are waiting for an object to be added to queue that meets
+     * their criteria, in registration order
      */
-    private final List<ConditionMatcherPair<T>> mWaitingMatcherList;
+    private final List<WaiterGroup<T>> mWaiterGroups;
+    /** map of element key to the waiter groups constrained on that key */
+    private final Map<String, List<WaiterGroup<T>>> mKeyWaiters;
+    /** map of attribute name to attribute value to the waiter groups registered on it */
+    private final Map<String, Map<String, List<WaiterGroup<T>>>> mAttributeWaiters;
+    /** the waiter groups that have no usable index constraint */
+    private final List<WaiterGroup<T>> mUnindexedWaiters;
+    /** the sequence number to assign to the next waiter group */
+    private long mNextWaiterSequence = 0;
 
     private final Comparator<T> mComparator;
 
+    /**
+     * the time in ns a waiter must wait to gain one priority level, or 0 if waiters do not age
+     */
+    private volatile long mAgingNanos = 0;
+
     /**
      * Creates a {@link ConditionPriorityBlockingQueue}
      * <p/>
@@ -107,9 +345,47 @@ public class ConditionPriorityBlockingQueue<T> implements Iterable<T> {
      * @param c the {@link Comparator} used to prioritize the queue.
      */
     public ConditionPriorityBlockingQueue(Comparator<T> c) {
+        this(c, null);
+    }
+
+    /**
+     * Creates an indexed {@link ConditionPriorityBlockingQueue}.
+     * <p/>
+     * The queue will hold at most one element per {@link IIndexer#getKey(Object)}: adding an
+     * element replaces any existing element with the same key.
+     *
+     * @param c the {@link Comparator} used to prioritize the queue. If <code>null</code>,
+     *            elements will be prioritized in FIFO order.
+     * @param indexer the {@link IIndexer} used to index elements. If <code>null</code> the queue
+     *            is not indexed.
+     */
+    public ConditionPriorityBlockingQueue(Comparator<T> c, IIndexer<T> indexer) {
         mComparator = c;
+        mIndexer = indexer;
         mList = new LinkedList<T>();
-        mWaitingMatcherList = new LinkedList<ConditionMatcherPair<T>>();
+        mKeyIndex = new LinkedHashMap<String, IndexEntry<T>>();
+        mAttributeIndex = new HashMap<String, Map<String, Set<IndexEntry<T>>>>();
+        mWaiterGroups = new LinkedList<WaiterGroup<T>>();
+        mKeyWaiters = new HashMap<String, List<WaiterGroup<T>>>();
+        mAttributeWaiters = new HashMap<String, Map<String, List<WaiterGroup<T>>>>();
+        mUnindexedWaiters = new LinkedList<WaiterGroup<T>>();
+    }
+
+    /**
+     * Sets how fast waiting threads gain priority.
+     *
+     * @param time the time a waiter must wait to gain one priority level, or 0 to disable aging
+     * @param unit the {@link TimeUnit} of time
+     */
+    public void setPriorityAging(long time, TimeUnit unit) {
+        mAgingNanos = unit.toNanos(time);
+    }
+
+    /**
+     * @return <code>true</code> if this queue was created with a {@link IIndexer}
+     */
+    public boolean isIndexed() {
+        return mIndexer != null;
     }
 
     /**
@@ -129,23 +405,52 @@ public class ConditionPriorityBlockingQueue<T> implements Iterable<T> {
      * @return the minimum matched element or <code>null</code> if there are no matching elements
      */
     public T poll(IMatcher<T> matcher) {
+        return poll(matcher, null);
+    }
+
+    /**
+     * Retrieves and removes the minimum element T in the queue where <var>matcher.matches(T)</var>
+     * is <code>true</code>, as judged by the given <var>comparator</var>.
+     *
+     * @param matcher the {@link IMatcher} to use to evaluate elements
+     * @param comparator the {@link Comparator} to use for this request, or <code>null</code> to
+     *            use the queue's {@link Comparator}
+     * @return the minimum matched element or <code>null</code> if there are no matching elements
+     */
+    public T poll(IMatcher<T> matcher, Comparator<T> comparator) {
         mLock.lock();
         try {
+            if (isIndexed()) {
+                IndexEntry<T> minEntry = null;
+                for (IndexEntry<T> entry : getCandidates(matcher)) {
+                    if (matcher.matches(entry.mElement)
+                            && compareEntries(entry, minEntry, comparator) < 0) {
+                        minEntry = entry;
+                    }
+                }
+                if (minEntry != null) {
+                    removeEntry(minEntry);
+                    invalidateSnapshot();
+                    return minEntry.mElement;
+                }
+                return null;
+            }
             // reference to the current min object
             T minObject = null;
             ListIterator<T> iter = mList.listIterator();
             while (iter.hasNext()) {
                 T obj = iter.next();
-                if (matcher.matches(obj) && compareObjects(obj, minObject) < 0) {
+                if (matcher.matches(obj) && compareObjects(obj, minObject, comparator) < 0) {
                     minObject = obj;
                 }
             }
             if (minObject != null) {
                 mList.remove(minObject);
+                invalidateSnapshot();
             }
             return minObject;
         } finally {
-            mLock.unlock();
+            unlock();
         }
     }
 
@@ -175,8 +480,46 @@ public class ConditionPriorityBlockingQueue<T> implements Iterable<T> {
      * @return the minimum matched element or <code>null</code> if there are no matching elements
      */
     public T poll(long timeout, TimeUnit unit, IMatcher<T> matcher) throws InterruptedException {
+        return poll(timeout, unit, matcher, null);
+    }
+
+    /**
+     * Retrieves and removes the minimum element T in the queue where <var>matcher.matches(T)</var>
+     * is <code>true</code>, as judged by the given <var>comparator</var>.
+     * <p/>
+     * Blocks up to <var>timeout</var> time for an element to become available.
+     *
+     * @param timeout the amount of time to wait for an element to become available
+     * @param unit the {@link TimeUnit} of timeout
+     * @param matcher the {@link IMatcher} to use to evaluate elements
+     * @param comparator the {@link Comparator} to use for this request, or <code>null</code> to
+     *            use the queue's {@link Comparator}
+     * @return the minimum matched element or <code>null</code> if there are no matching elements
+     */
+    public T poll(long timeout, TimeUnit unit, IMatcher<T> matcher, Comparator<T> comparator)
+            throws InterruptedException {
+        return poll(timeout, unit, matcher, comparator, 0);
+    }
+
+    /**
+     * Retrieves and removes the minimum element T in the queue where <var>matcher.matches(T)</var>
+     * is <code>true</code>, as judged by the given <var>comparator</var>.
+     * <p/>
+     * Blocks up to <var>timeout</var> time for an element to become available. While blocked,
+     * added elements are handed to the waiter with the highest (aged) priority first.
+     *
+     * @param timeout the amount of time to wait for an element to become available
+     * @param unit the {@link TimeUnit} of timeout
+     * @param matcher the {@link IMatcher} to use to evaluate elements
+     * @param comparator the {@link Comparator} to use for this request, or <code>null</code> to
+     *            use the queue's {@link Comparator}
+     * @param priority the priority of this request. Higher values are served first
+     * @return the minimum matched element or <code>null</code> if there are no matching elements
+     */
+    public T poll(long timeout, TimeUnit unit, IMatcher<T> matcher, Comparator<T> comparator,
+            int priority) throws InterruptedException {
         Long nanos = unit.toNanos(timeout);
-        return blockingPoll(nanos, matcher);
+        return blockingPoll(nanos, matcher, comparator, priority);
     }
 
     /**
@@ -189,45 +532,234 @@ public class ConditionPriorityBlockingQueue<T> implements Iterable<T> {
      * @param nanos the amount of time in ns to wait for an element to become available. If
      *            <code>null</code> will wait indefinitely
      * @param matcher the {@link IMatcher} to use to evaluate elements
+     * @param comparator the {@link Comparator} to use for this request, or <code>null</code>
+     * @param priority the priority of this request
      * @return the minimum matched element or <code>null</code> if there are no matching elements
      * @throws InterruptedException
      */
-    private T blockingPoll(Long nanos, IMatcher<T> matcher) throws InterruptedException {
+    private T blockingPoll(Long nanos, IMatcher<T> matcher, Comparator<T> comparator,
+            int priority) throws InterruptedException {
         mLock.lockInterruptibly();
         try {
+            Waiter<T> me = new Waiter<T>(mLock.newCondition(), priority);
+            WaiterGroup<T> myGroup = addWaiter(matcher, false, me);
             T matchedObj = null;
-            Condition myCondition = mLock.newCondition();
-            ConditionMatcherPair<T> myMatcherPair = new ConditionMatcherPair<T>(matcher,
-                    myCondition);
-            mWaitingMatcherList.add(myMatcherPair);
             try {
-                while ((matchedObj = poll(matcher)) == null && (nanos == null || nanos > 0)) {
+                matchedObj = poll(matcher, comparator);
+                while (matchedObj == null && me.mHandoff == null
+                        && (nanos == null || nanos > 0)) {
                     if (nanos != null) {
-                        nanos = myCondition.awaitNanos(nanos);
+                        nanos = me.mCondition.awaitNanos(nanos);
                     } else {
-                        myCondition.await();
+                        me.mCondition.await();
+                    }
+                    if (me.mHandoff == null) {
+                        matchedObj = poll(matcher, comparator);
                     }
                 }
+                if (matchedObj == null) {
+                    matchedObj = me.mHandoff;
+                }
             } catch (InterruptedException ie) {
-                // TODO: do we need to propagate to non-interrupted thread?
+                // don't lose an element handed off just before the interrupt
+                T handoff = me.mHandoff;
+                if (handoff != null) {
+                    me.mHandoff = null;
+                    add(handoff);
+                }
                 throw ie;
             } finally {
-                mWaitingMatcherList.remove(myMatcherPair);
+                removeWaiter(myGroup, me);
             }
-
-            assert matchedObj != null;
             return matchedObj;
         } finally {
-            mLock.unlock();
+            unlock();
+        }
+    }
+
+    /**
+     * Retrieves and removes the minimum element T in the queue where <var>matcher.matches(T)</var>
+     * is <code>true</code>, without blocking the calling thread.
+     * <p/>
+     * If there is a matching element, <var>listener</var> is called with it before this method
+     * returns. Otherwise the poll waits alongside the blocking polls, with the same priority
+     * rules, and <var>listener</var> is called by the thread that adds the element it is handed.
+     *
+     * @param matcher the {@link IMatcher} to use to evaluate elements
+     * @param comparator the {@link Comparator} to use for this request, or <code>null</code> to
+     *            use the queue's {@link Comparator}
+     * @param priority the priority of this request. Higher values are served first
+     * @param listener the {@link IHandoffListener} to call with the retrieved element
+     * @return the {@link IPendingPoll} handle used to cancel the poll
+     */
+    public IPendingPoll pollAsync(IMatcher<T> matcher, Comparator<T> comparator, int priority,
+            IHandoffListener<T> listener) {
+        T matchedObj;
+        Waiter<T> waiter = null;
+        WaiterGroup<T> group = null;
+        mLock.lock();
+        try {
+            matchedObj = poll(matcher, comparator);
+            if (matchedObj == null) {
+                waiter = new Waiter<T>(null, priority, listener);
+                group = addWaiter(matcher, false, waiter);
+            }
+        } finally {
+            unlock();
+        }
+        if (matchedObj != null) {
+            listener.elementAvailable(matchedObj);
+        }
+        return new PendingPoll(group, waiter);
+    }
+
+    /**
+     * The {@link IPendingPoll} of a waiting asynchronous poll.
+     */
+    private class PendingPoll implements IPendingPoll {
+        /** the group of the waiter, or <code>null</code> if the poll was satisfied at once */
+        private final WaiterGroup<T> mGroup;
+        private final Waiter<T> mWaiter;
+
+        PendingPoll(WaiterGroup<T> group, Waiter<T> waiter) {
+            mGroup = group;
+            mWaiter = waiter;
+        }
+
+        public boolean cancel() {
+            if (mGroup == null) {
+                return false;
+            }
+            mLock.lock();
+            try {
+                if (!mGroup.mWaiters.contains(mWaiter)) {
+                    // already handed off
+                    return false;
+                }
+                removeWaiter(mGroup, mWaiter);
+                return true;
+            } finally {
+                unlock();
+            }
+        }
+    }
+
+    /**
+     * Retrieves and removes <var>count</var> elements T in the queue where
+     * <var>matcher.matches(T)</var> is <code>true</code>, in priority order.
+     * <p/>
+     * Elements are retrieved atomically: either all <var>count</var> elements are removed in one
+     * pass, or none are. Blocks up to <var>timeout</var> time for enough elements to become
+     * available.
+     *
+     * @param count the number of elements to retrieve
+     * @param timeout the amount of time to wait for the elements to become available
+     * @param unit the {@link TimeUnit} of timeout
+     * @param matcher the {@link IMatcher} to use to evaluate elements
+     * @return the {@link List} of <var>count</var> matched elements or <code>null</code> if there
+     *         were not enough matching elements before the timeout expired
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public List<T> poll(int count, long timeout, TimeUnit unit, IMatcher<T> matcher)
+            throws InterruptedException {
+        return poll(count, timeout, unit, matcher, null);
+    }
+
+    /**
+     * Retrieves and removes <var>count</var> elements T in the queue where
+     * <var>matcher.matches(T)</var> is <code>true</code>, in the order given by
+     * <var>comparator</var>.
+     *
+     * @param comparator the {@link Comparator} to use for this request, or <code>null</code> to
+     *            use the queue's {@link Comparator}
+     * @see #poll(int, long, TimeUnit, IMatcher)
+     */
+    public List<T> poll(int count, long timeout, TimeUnit unit, IMatcher<T> matcher,
+            Comparator<T> comparator) throws InterruptedException {
+        if (count < 1) {
+            throw new IllegalArgumentException("count must be positive");
+        }
+        long nanos = unit.toNanos(timeout);
+        mLock.lockInterruptibly();
+        try {
+            List<T> matchedObjs = null;
+            Waiter<T> me = new Waiter<T>(mLock.newCondition(), 0);
+            WaiterGroup<T> myGroup = addWaiter(matcher, true, me);
+            try {
+                while ((matchedObjs = pollAll(count, matcher, comparator)) == null && nanos > 0) {
+                    nanos = me.mCondition.awaitNanos(nanos);
+                }
+            } finally {
+                removeWaiter(myGroup, me);
+            }
+            return matchedObjs;
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Retrieves and removes <var>count</var> matching elements, if there are enough of them.
+     *
+     * @return the {@link List} of matched elements in priority order, or <code>null</code> if
+     *         there were less than <var>count</var> matching elements
+     */
+    private List<T> pollAll(int count, IMatcher<T> matcher, final Comparator<T> comparator) {
+        mLock.lock();
+        try {
+            List<T> matchedObjs = new ArrayList<T>(count);
+            if (isIndexed()) {
+                List<IndexEntry<T>> matchedEntries = new ArrayList<IndexEntry<T>>();
+                for (IndexEntry<T> entry : getCandidates(matcher)) {
+                    if (matcher.matches(entry.mElement)) {
+                        matchedEntries.add(entry);
+                    }
+                }
+                if (matchedEntries.size() < count) {
+                    return null;
+                }
+                Collections.sort(matchedEntries, new Comparator<IndexEntry<T>>() {
+                    public int compare(IndexEntry<T> e1, IndexEntry<T> e2) {
+                        return e1 == e2 ? 0 : compareEntries(e1, e2, comparator);
+                    }
+                });
+                for (IndexEntry<T> entry : matchedEntries.subList(0, count)) {
+                    removeEntry(entry);
+                    matchedObjs.add(entry.mElement);
+                }
+            } else {
+                for (T obj : mList) {
+                    if (matcher.matches(obj)) {
+                        matchedObjs.add(obj);
+                    }
+                }
+                if (matchedObjs.size() < count) {
+                    return null;
+                }
+                Comparator<T> c = comparator != null ? comparator : mComparator;
+                if (c != null) {
+                    // stable sort, so equal elements stay in FIFO order
+                    Collections.sort(matchedObjs, c);
+                }
+                matchedObjs = new ArrayList<T>(matchedObjs.subList(0, count));
+                for (T obj : matchedObjs) {
+                    mList.remove(obj);
+                }
+            }
+            invalidateSnapshot();
+            return matchedObjs;
+        } finally {
+            unlock();
         }
     }
 
     /**
-     * Compare given <var>object</var> against given <var>minObject</var> using this class'
-     * {@link Comparator}.
+     * Compare given <var>object</var> against given <var>minObject</var> using the request's
+     * {@link Comparator}, or this class' {@link Comparator} if there is none.
      *
      * @param object the object to compare
      * @param minObject the current minimum object to use as basis for comparison
+     * @param comparator the request's {@link Comparator}, or <code>null</code>
      * @return -1 if <var>object</var> is less than <var>minObject</var> or <var>minObject</var> is
      *         null.<br/>
      *         0 if the two objects are equal.<br/>
@@ -236,13 +768,363 @@ public class ConditionPriorityBlockingQueue<T> implements Iterable<T> {
      *         <var>minObject</var> is not null, because <var>minObject</var> represents an
      *         <var>object</var> that is earlier in the queue.
      */
-    private int compareObjects(T object, T minObject) {
+    private int compareObjects(T object, T minObject, Comparator<T> comparator) {
+        Comparator<T> c = comparator != null ? comparator : mComparator;
         if (minObject == null) {
             return -1;
-        } else if (mComparator == null) {
+        } else if (c == null) {
             return 1;
         } else {
-            return mComparator.compare(object, minObject);
+            return c.compare(object, minObject);
+        }
+    }
+
+    /**
+     * Compare given index <var>entry</var> against given <var>minEntry</var> using the request's
+     * or this class' {@link Comparator}, falling back to insertion order for equal elements.
+     *
+     * @see #compareObjects(Object, Object, Comparator)
+     */
+    private int compareEntries(IndexEntry<T> entry, IndexEntry<T> minEntry,
+            Comparator<T> comparator) {
+        Comparator<T> c = comparator != null ? comparator : mComparator;
+        if (minEntry == null) {
+            return -1;
+        }
+        if (c != null) {
+            int result = c.compare(entry.mElement, minEntry.mElement);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return entry.mSequence < minEntry.mSequence ? -1 : 1;
+    }
+
+    /**
+     * Get the index entries that may match given <var>matcher</var>. Must be called with the lock
+     * held.
+     *
+     * @param matcher the {@link IMatcher} to find candidates for
+     * @return the {@link Collection} of candidate entries, in no particular order
+     */
+    private Collection<IndexEntry<T>> getCandidates(IMatcher<T> matcher) {
+        if (!(matcher instanceof IIndexedMatcher)) {
+            return mKeyIndex.values();
+        }
+        IIndexedMatcher<T> indexedMatcher = (IIndexedMatcher<T>) matcher;
+        Collection<String> keys = indexedMatcher.getKeyConstraint();
+        if (keys != null) {
+            Collection<IndexEntry<T>> candidates = new ArrayList<IndexEntry<T>>(keys.size());
+            for (String key : new HashSet<String>(keys)) {
+                IndexEntry<T> entry = mKeyIndex.get(key);
+                if (entry != null) {
+                    candidates.add(entry);
+                }
+            }
+            return candidates;
+        }
+        Collection<IndexEntry<T>> candidates = mKeyIndex.values();
+        Map<String, Collection<String>> constraints = indexedMatcher.getAttributeConstraints();
+        if (constraints == null) {
+            return candidates;
+        }
+        // use the most selective attribute constraint
+        for (Map.Entry<String, Collection<String>> constraint : constraints.entrySet()) {
+            Map<String, Set<IndexEntry<T>>> buckets = mAttributeIndex.get(constraint.getKey());
+            if (buckets == null || constraint.getValue() == null) {
+                continue;
+            }
+            Collection<IndexEntry<T>> attributeCandidates = new ArrayList<IndexEntry<T>>();
+            // elements with an unknown value may still match
+            addBucket(attributeCandidates, buckets.get(null));
+            for (String value : new HashSet<String>(constraint.getValue())) {
+                if (value != null) {
+                    addBucket(attributeCandidates, buckets.get(value));
+                }
+            }
+            if (attributeCandidates.size() < candidates.size()) {
+                candidates = attributeCandidates;
+            }
+        }
+        return candidates;
+    }
+
+    private void addBucket(Collection<IndexEntry<T>> candidates, Set<IndexEntry<T>> bucket) {
+        if (bucket != null) {
+            candidates.addAll(bucket);
+        }
+    }
+
+    /**
+     * Adds given entry to the index, replacing any existing entry with the same key, and assigns
+     * its sequence number. Must be called with the lock held.
+     */
+    private void addEntry(IndexEntry<T> entry) {
+        IndexEntry<T> existingEntry = mKeyIndex.get(entry.mKey);
+        if (existingEntry != null) {
+            removeEntry(existingEntry);
+        }
+        entry.mSequence = mNextSequence++;
+        mKeyIndex.put(entry.mKey, entry);
+        mKeySnapshot.put(entry.mKey, entry.mElement);
+        for (Map.Entry<String, String> attribute : entry.mAttributes.entrySet()) {
+            Map<String, Set<IndexEntry<T>>> buckets = mAttributeIndex.get(attribute.getKey());
+            if (buckets == null) {
+                buckets = new HashMap<String, Set<IndexEntry<T>>>();
+                mAttributeIndex.put(attribute.getKey(), buckets);
+            }
+            Set<IndexEntry<T>> bucket = buckets.get(attribute.getValue());
+            if (bucket == null) {
+                bucket = new HashSet<IndexEntry<T>>();
+                buckets.put(attribute.getValue(), bucket);
+            }
+            bucket.add(entry);
+        }
+    }
+
+    /**
+     * Removes given entry from the index. Must be called with the lock held.
+     */
+    private void removeEntry(IndexEntry<T> entry) {
+        mKeyIndex.remove(entry.mKey);
+        mKeySnapshot.remove(entry.mKey);
+        for (Map.Entry<String, String> attribute : entry.mAttributes.entrySet()) {
+            Map<String, Set<IndexEntry<T>>> buckets = mAttributeIndex.get(attribute.getKey());
+            Set<IndexEntry<T>> bucket = buckets.get(attribute.getValue());
+            bucket.remove(entry);
+            if (bucket.isEmpty()) {
+                buckets.remove(attribute.getValue());
+            }
+        }
+    }
+
+    /**
+     * Records a modification of the queue contents. Must be called with the lock held, after
+     * every modification. The snapshot is rebuilt when the lock is released.
+     */
+    private void invalidateSnapshot() {
+        mModified = true;
+        mSize = isIndexed() ? mKeyIndex.size() : mList.size();
+    }
+
+    /**
+     * Releases the lock. When the outermost hold is released, publishes a new snapshot if the
+     * queue was modified, then calls the listeners of the asynchronous polls handed an element.
+     */
+    private void unlock() {
+        List<Waiter<T>> handoffs = null;
+        if (mLock.getHoldCount() == 1) {
+            if (mModified) {
+                List<T> snapshot;
+                if (isIndexed()) {
+                    snapshot = new ArrayList<T>(mKeyIndex.size());
+                    for (IndexEntry<T> entry : mKeyIndex.values()) {
+                        snapshot.add(entry.mElement);
+                    }
+                } else {
+                    snapshot = new ArrayList<T>(mList);
+                }
+                mSnapshot = Collections.unmodifiableList(snapshot);
+                mModified = false;
+            }
+            if (!mPendingHandoffs.isEmpty()) {
+                handoffs = new ArrayList<Waiter<T>>(mPendingHandoffs);
+                mPendingHandoffs.clear();
+            }
+        }
+        mLock.unlock();
+        if (handoffs != null) {
+            for (Waiter<T> waiter : handoffs) {
+                waiter.mListener.elementAvailable(waiter.mHandoff);
+            }
+        }
+    }
+
+    /**
+     * Get the index entry holding given <var>object</var>. Must be called with the lock held.
+     *
+     * @return the {@link IndexEntry} or <code>null</code> if object is not in queue
+     */
+    private IndexEntry<T> getEntry(T object) {
+        IndexEntry<T> entry = mKeyIndex.get(mIndexer.getKey(object));
+        if (entry != null && entry.mElement.equals(object)) {
+            return entry;
+        }
+        return null;
+    }
+
+    /**
+     * Creates the index entry for given <var>element</var>.
+     * <p/>
+     * Index values are extracted before taking the lock, to keep the lock hold time short.
+     */
+    private IndexEntry<T> createEntry(T element) {
+        String key = mIndexer.getKey(element);
+        if (key == null) {
+            throw new NullPointerException("element key must not be null");
+        }
+        Map<String, String> attributes = mIndexer.getAttributes(element);
+        if (attributes == null) {
+            attributes = new HashMap<String, String>(0);
+        } else {
+            attributes = new HashMap<String, String>(attributes);
+        }
+        return new IndexEntry<T>(element, key, attributes);
+    }
+
+    /**
+     * Registers a waiting thread for given <var>matcher</var>, joining the group of an equal
+     * matcher if one exists. Must be called with the lock held.
+     *
+     * @return the {@link WaiterGroup} the waiter was added to
+     */
+    private WaiterGroup<T> addWaiter(IMatcher<T> matcher, boolean batch, Waiter<T> waiter) {
+        for (WaiterGroup<T> group : mWaiterGroups) {
+            if (group.mBatch == batch && group.mMatcher.equals(matcher)) {
+                group.mWaiters.add(waiter);
+                return group;
+            }
+        }
+        Set<String> keys = null;
+        Map<String, Set<String>> attributes = new HashMap<String, Set<String>>();
+        if (isIndexed() && matcher instanceof IIndexedMatcher) {
+            IIndexedMatcher<T> indexedMatcher = (IIndexedMatcher<T>) matcher;
+            if (indexedMatcher.getKeyConstraint() != null) {
+                keys = new HashSet<String>(indexedMatcher.getKeyConstraint());
+            }
+            Map<String, Collection<String>> constraints = indexedMatcher.getAttributeConstraints();
+            if (constraints != null) {
+                for (Map.Entry<String, Collection<String>> constraint : constraints.entrySet()) {
+                    if (constraint.getValue() != null) {
+                        attributes.put(constraint.getKey(),
+                                new HashSet<String>(constraint.getValue()));
+                    }
+                }
+            }
+        }
+        WaiterGroup<T> group = new WaiterGroup<T>(matcher, batch, mNextWaiterSequence++, keys,
+                attributes);
+        group.mWaiters.add(waiter);
+        mWaiterGroups.add(group);
+        if (keys != null) {
+            for (String key : keys) {
+                getWaiterList(mKeyWaiters, key).add(group);
+            }
+        } else if (!attributes.isEmpty()) {
+            // register under the most selective attribute
+            for (Map.Entry<String, Set<String>> constraint : attributes.entrySet()) {
+                if (group.mIndexAttribute == null || constraint.getValue().size()
+                        < attributes.get(group.mIndexAttribute).size()) {
+                    group.mIndexAttribute = constraint.getKey();
+                }
+            }
+            Map<String, List<WaiterGroup<T>>> valueWaiters = mAttributeWaiters.get(
+                    group.mIndexAttribute);
+            if (valueWaiters == null) {
+                valueWaiters = new HashMap<String, List<WaiterGroup<T>>>();
+                mAttributeWaiters.put(group.mIndexAttribute, valueWaiters);
+            }
+            for (String value : attributes.get(group.mIndexAttribute)) {
+                getWaiterList(valueWaiters, value).add(group);
+            }
+        } else {
+            mUnindexedWaiters.add(group);
+        }
+        return group;
+    }
+
+    /**
+     * Unregisters a waiting thread, discarding its group if it was the last waiter. Does nothing
+     * if the waiter was already unregistered when it was handed an element. Must be called with
+     * the lock held.
+     */
+    private void removeWaiter(WaiterGroup<T> group, Waiter<T> waiter) {
+        if (!group.mWaiters.remove(waiter) || !group.mWaiters.isEmpty()) {
+            return;
+        }
+        mWaiterGroups.remove(group);
+        if (group.mKeys != null) {
+            for (String key : group.mKeys) {
+                removeFromWaiterList(mKeyWaiters, key, group);
+            }
+        } else if (group.mIndexAttribute != null) {
+            Map<String, List<WaiterGroup<T>>> valueWaiters = mAttributeWaiters.get(
+                    group.mIndexAttribute);
+            for (String value : group.mAttributes.get(group.mIndexAttribute)) {
+                removeFromWaiterList(valueWaiters, value, group);
+            }
+            if (valueWaiters.isEmpty()) {
+                mAttributeWaiters.remove(group.mIndexAttribute);
+            }
+        } else {
+            mUnindexedWaiters.remove(group);
+        }
+    }
+
+    private List<WaiterGroup<T>> getWaiterList(Map<String, List<WaiterGroup<T>>> waiterMap,
+            String value) {
+        List<WaiterGroup<T>> waiters = waiterMap.get(value);
+        if (waiters == null) {
+            waiters = new LinkedList<WaiterGroup<T>>();
+            waiterMap.put(value, waiters);
+        }
+        return waiters;
+    }
+
+    private void removeFromWaiterList(Map<String, List<WaiterGroup<T>>> waiterMap, String value,
+            WaiterGroup<T> group) {
+        List<WaiterGroup<T>> waiters = waiterMap.get(value);
+        if (waiters != null) {
+            waiters.remove(group);
+            if (waiters.isEmpty()) {
+                waiterMap.remove(value);
+            }
+        }
+    }
+
+    /**
+     * Get the waiter groups that could accept the element of given index <var>entry</var>, in
+     * registration order. Must be called with the lock held.
+     *
+     * @param entry the {@link IndexEntry} of the added element, or <code>null</code> if queue is
+     *            not indexed
+     * @return the {@link List} of candidate {@link WaiterGroup}s
+     */
+    private List<WaiterGroup<T>> getWaiterCandidates(IndexEntry<T> entry) {
+        if (entry == null) {
+            return mWaiterGroups;
+        }
+        Set<WaiterGroup<T>> candidates = new HashSet<WaiterGroup<T>>();
+        addAcceptingWaiters(candidates, mKeyWaiters.get(entry.mKey), entry);
+        for (Map.Entry<String, String> attribute : entry.mAttributes.entrySet()) {
+            Map<String, List<WaiterGroup<T>>> valueWaiters = mAttributeWaiters.get(
+                    attribute.getKey());
+            if (valueWaiters == null) {
+                continue;
+            }
+            if (attribute.getValue() == null) {
+                // value is unknown, so any group registered on this attribute may accept it
+                for (List<WaiterGroup<T>> waiters : valueWaiters.values()) {
+                    addAcceptingWaiters(candidates, waiters, entry);
+                }
+            } else {
+                addAcceptingWaiters(candidates, valueWaiters.get(attribute.getValue()), entry);
+            }
+        }
+        addAcceptingWaiters(candidates, mUnindexedWaiters, entry);
+        List<WaiterGroup<T>> orderedCandidates = new ArrayList<WaiterGroup<T>>(candidates);
+        Collections.sort(orderedCandidates, WAITER_ORDER);
+        return orderedCandidates;
+    }
+
+    private void addAcceptingWaiters(Set<WaiterGroup<T>> candidates,
+            List<WaiterGroup<T>> waiters, IndexEntry<T> entry) {
+        if (waiters != null) {
+            for (WaiterGroup<T> group : waiters) {
+                if (group.accepts(entry)) {
+                    candidates.add(group);
+                }
+            }
         }
     }
 
@@ -268,12 +1150,17 @@ public class ConditionPriorityBlockingQueue<T> implements Iterable<T> {
      * @throws InterruptedException if interrupted while waiting
      */
     public T take(IMatcher<T> matcher) throws InterruptedException {
-        return blockingPoll(null, matcher);
+        return blockingPoll(null, matcher, null, 0);
     }
 
     /**
      * Inserts the specified element into this queue. As the queue is unbounded this method will
      * never block.
+     * <p/>
+     * If a thread is waiting for a matching element, the element is handed directly to the
+     * matching waiter with the highest priority, earliest waiter first, and is not inserted. If
+     * the queue is indexed, only the waiters whose index constraints accept the element are
+     * evaluated.
      *
      * @param addedElement the element to add
      * @return <code>true</code>
@@ -282,23 +1169,85 @@ public class ConditionPriorityBlockingQueue<T> implements Iterable<T> {
      * @throws NullPointerException if the specified element is null
      */
     public boolean add(T addedElement) {
+        IndexEntry<T> entry = null;
+        if (isIndexed()) {
+            entry = createEntry(addedElement);
+        }
         mLock.lock();
         try {
-            boolean ok = mList.add(addedElement);
-            assert ok;
+            List<WaiterGroup<T>> candidates = getWaiterCandidates(entry);
+            WaiterGroup<T> handoffGroup = null;
+            Waiter<T> handoffWaiter = null;
+            long handoffPriority = Long.MIN_VALUE;
+            long now = System.nanoTime();
+            for (WaiterGroup<T> group : candidates) {
+                if (group.mBatch) {
+                    continue;
+                }
+                // only evaluate the matcher if the group has a better waiter
+                Waiter<T> bestWaiter = null;
+                long bestPriority = handoffPriority;
+                for (Waiter<T> waiter : group.mWaiters) {
+                    long priority = getEffectivePriority(waiter, now);
+                    if (priority > bestPriority) {
+                        bestWaiter = waiter;
+                        bestPriority = priority;
+                    }
+                }
+                if (bestWaiter != null && group.mMatcher.matches(addedElement)) {
+                    handoffGroup = group;
+                    handoffWaiter = bestWaiter;
+                    handoffPriority = bestPriority;
+                }
+            }
+            if (handoffWaiter != null) {
+                if (entry != null && mKeyIndex.containsKey(entry.mKey)) {
+                    // the handed off element still replaces the one with the same key
+                    removeEntry(mKeyIndex.get(entry.mKey));
+                    invalidateSnapshot();
+                }
+                handoffWaiter.mHandoff = addedElement;
+                removeWaiter(handoffGroup, handoffWaiter);
+                if (handoffWaiter.mCondition != null) {
+                    handoffWaiter.mCondition.signal();
+                } else {
+                    mPendingHandoffs.add(handoffWaiter);
+                }
+                return true;
+            }
 
-            for (ConditionMatcherPair<T> matcherPair : mWaitingMatcherList) {
-                if (matcherPair.mMatcher.matches(addedElement)) {
-                    matcherPair.mCondition.signal();
-                    break;
+            if (entry != null) {
+                addEntry(entry);
+            } else {
+                boolean ok = mList.add(addedElement);
+                assert ok;
+            }
+            invalidateSnapshot();
+            for (WaiterGroup<T> group : candidates) {
+                if (group.mBatch && group.mMatcher.matches(addedElement)) {
+                    // each batch waiter may need a different number of elements
+                    for (Waiter<T> waiter : group.mWaiters) {
+                        waiter.mCondition.signal();
+                    }
                 }
             }
             return true;
         } finally {
-            mLock.unlock();
+            unlock();
         }
     }
 
+    /**
+     * Gets the priority of given waiter, including the priority gained by waiting.
+     */
+    private long getEffectivePriority(Waiter<T> waiter, long now) {
+        long priority = waiter.mPriority;
+        if (mAgingNanos > 0) {
+            priority += (now - waiter.mStartTime) / mAgingNanos;
+        }
+        return priority;
+    }
+
     /**
      * Removes all elements from this queue.
      */
@@ -306,8 +1255,12 @@ public class ConditionPriorityBlockingQueue<T> implements Iterable<T> {
         mLock.lock();
         try {
             mList.clear();
+            mKeyIndex.clear();
+            mKeySnapshot.clear();
+            mAttributeIndex.clear();
+            invalidateSnapshot();
         } finally {
-            mLock.unlock();
+            unlock();
         }
     }
 
@@ -315,7 +1268,7 @@ public class ConditionPriorityBlockingQueue<T> implements Iterable<T> {
      * {@inheritDoc}
      */
     public Iterator<T> iterator() {
-        return getCopy().iterator();
+        return mSnapshot.iterator();
     }
 
     /**
@@ -323,14 +1276,7 @@ public class ConditionPriorityBlockingQueue<T> implements Iterable<T> {
      * @return
      */
     public List<T> getCopy() {
-        mLock.lock();
-        try {
-            List<T> l = new ArrayList<T>(size());
-            l.addAll(mList);
-            return l;
-        } finally {
-            mLock.unlock();
-        }
+        return new ArrayList<T>(mSnapshot);
     }
 
     /**
@@ -341,11 +1287,27 @@ public class ConditionPriorityBlockingQueue<T> implements Iterable<T> {
      *         otherwise.
      */
     public boolean contains(T object) {
+        if (isIndexed()) {
+            return object.equals(mKeySnapshot.get(mIndexer.getKey(object)));
+        }
+        return mSnapshot.contains(object);
+    }
+
+    /**
+     * Gets the number of threads and asynchronous polls waiting for an element.
+     * <p/>
+     * Exposed for unit testing
+     */
+    int getWaiterCount() {
         mLock.lock();
         try {
-            return mList.contains(object);
+            int count = 0;
+            for (WaiterGroup<T> group : mWaiterGroups) {
+                count += group.mWaiters.size();
+            }
+            return count;
         } finally {
-            mLock.unlock();
+            unlock();
         }
     }
 
@@ -353,12 +1315,7 @@ public class ConditionPriorityBlockingQueue<T> implements Iterable<T> {
      * @return the number of elements in queue
      */
     public int size() {
-        mLock.lock();
-        try {
-            return mList.size();
-        } finally {
-            mLock.unlock();
-        }
+        return mSize;
     }
 
     /**
@@ -371,14 +1328,30 @@ public class ConditionPriorityBlockingQueue<T> implements Iterable<T> {
     public boolean remove(T object) {
         mLock.lock();
         try {
-            return mList.remove(object);
+            if (isIndexed()) {
+                IndexEntry<T> entry = getEntry(object);
+                if (entry == null) {
+                    return false;
+                }
+                removeEntry(entry);
+                invalidateSnapshot();
+                return true;
+            }
+            if (mList.remove(object)) {
+                invalidateSnapshot();
+                return true;
+            }
+            return false;
         } finally {
-            mLock.unlock();
+            unlock();
         }
     }
 
     /**
      * Adds a item to this queue, replacing any existing object that matches given condition
+     * <p/>
+     * If the queue is indexed, use a {@link IIndexedMatcher} constrained on the object key to
+     * avoid scanning the queue.
      *
      * @param matcher the matcher to evaluate existing objects
      * @param object the object to add
@@ -391,7 +1364,7 @@ public class ConditionPriorityBlockingQueue<T> implements Iterable<T> {
             add(object);
             return removedObj;
         } finally {
-            mLock.unlock();
+            unlock();
         }
     }
 }
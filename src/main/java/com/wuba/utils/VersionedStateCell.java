@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wuba.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A single value that threads can block on until it satisfies a predicate.
+ * <p/>
+ * Every {@link #set(Object)} increments a version number. Readers never lock, and waiters check
+ * the value under the same lock the writer signals with, so no transition can be missed between
+ * the check and the wait. Setting a value allocates nothing.
+ *
+ * @param <T> the type of the value
+ */
+public class VersionedStateCell<T> {
+
+    /**
+     * A predicate on the cell value.
+     *
+     * @param <T> the type of the value
+     */
+    public static interface IPredicate<T> {
+
+        /**
+         * @return <code>true</code> if the given value is the one being waited for
+         */
+        public boolean apply(T value);
+    }
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mChanged = mLock.newCondition();
+    private volatile T mValue;
+    private volatile long mVersion = 0;
+
+    /**
+     * Creates a {@link VersionedStateCell}.
+     *
+     * @param initialValue the initial value, at version 0
+     */
+    public VersionedStateCell(T initialValue) {
+        mValue = initialValue;
+    }
+
+    /**
+     * @return the current value
+     */
+    public T get() {
+        return mValue;
+    }
+
+    /**
+     * @return the number of times the value has been set
+     */
+    public long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Sets the value and wakes up all waiters.
+     *
+     * @param value the new value
+     * @return the new version
+     */
+    public long set(T value) {
+        mLock.lock();
+        try {
+            mValue = value;
+            mVersion++;
+            mChanged.signalAll();
+            return mVersion;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the value equals the given value.
+     *
+     * @param expected the value to wait for
+     * @param timeout the max time in ms to wait
+     * @return <code>true</code> if the value equals <var>expected</var> on return
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitValue(T expected, long timeout) throws InterruptedException {
+        mLock.lock();
+        try {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+            while (!equal(expected, mValue)) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = mChanged.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the value satisfies the given predicate.
+     *
+     * @param predicate the {@link IPredicate} to wait for
+     * @param timeout the max time in ms to wait
+     * @return <code>true</code> if the value satisfies <var>predicate</var> on return
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean await(IPredicate<T> predicate, long timeout) throws InterruptedException {
+        mLock.lock();
+        try {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+            while (!predicate.apply(mValue)) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = mChanged.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the value is set past the given version.
+     *
+     * @param version the version last observed by the caller
+     * @param timeout the max time in ms to wait
+     * @return the current version, which is still <var>version</var> on timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public long awaitChange(long version, long timeout) throws InterruptedException {
+        mLock.lock();
+        try {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+            while (mVersion == version && nanos > 0) {
+                nanos = mChanged.awaitNanos(nanos);
+            }
+            return mVersion;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wuba.device;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.android.ddmlib.InstallException;
+import com.android.ddmlib.ShellCommandUnresponsiveException;
+import com.android.ddmlib.TimeoutException;
+import com.wuba.device.DeviceActionPolicy.Action;
+
+/**
+ * Unit tests for {@link DeviceActionPolicy}.
+ */
+public class DeviceActionPolicyTest {
+
+    private DeviceActionPolicy mPolicy;
+
+    @BeforeMethod
+    public void setUp() {
+        mPolicy = DeviceActionPolicy.createDefault();
+    }
+
+    /**
+     * Test the actions of the default rules.
+     */
+    @Test
+    public void testGetAction_defaults() {
+        assertEquals(mPolicy.getAction(new TimeoutException(), "shell ls", 0),
+                Action.BACKOFF_RETRY);
+        assertEquals(mPolicy.getAction(new IOException(), "push foo", 0), Action.RECONNECT);
+        assertEquals(mPolicy.getAction(new ShellCommandUnresponsiveException(), "shell ls", 0),
+                Action.PROBE);
+        assertEquals(mPolicy.getAction(new InstallException("fail"), "install foo", 0),
+                Action.RECOVER);
+    }
+
+    /**
+     * Test that an exception without a rule triggers full recovery.
+     */
+    @Test
+    public void testGetAction_noRule() {
+        assertEquals(mPolicy.getAction(new IllegalStateException(), "shell ls", 0),
+                Action.RECOVER);
+    }
+
+    /**
+     * Test that a rule for the operation class wins over a rule for any operation.
+     */
+    @Test
+    public void testGetAction_operationPrecedence() {
+        assertEquals(mPolicy.getAction(new IOException(), "reboot", 0), Action.RETRY);
+        assertEquals(mPolicy.getAction(new IOException(), "rebooting", 0), Action.RECONNECT);
+        // even over a rule for a closer exception superclass
+        mPolicy.setAction(EOFException.class, null, Action.BACKOFF_RETRY);
+        assertEquals(mPolicy.getAction(new EOFException(), "reboot", 0), Action.RETRY);
+        assertEquals(mPolicy.getAction(new EOFException(), "shell ls", 0),
+                Action.BACKOFF_RETRY);
+    }
+
+    /**
+     * Test that the rule for the closest exception superclass wins.
+     */
+    @Test
+    public void testGetAction_closestSuperclass() {
+        mPolicy.setAction(Exception.class, null, Action.FAIL);
+        assertEquals(mPolicy.getAction(new EOFException(), "shell ls", 0), Action.RECONNECT);
+        assertEquals(mPolicy.getAction(new IllegalStateException(), "shell ls", 0),
+                Action.FAIL);
+    }
+
+    /**
+     * Test that setting an action replaces the rule for the same exception and operation.
+     */
+    @Test
+    public void testSetAction_replace() {
+        mPolicy.setAction(IOException.class, null, Action.PROBE);
+        assertEquals(mPolicy.getAction(new IOException(), "shell ls", 0), Action.PROBE);
+        assertEquals(mPolicy.getAction(new IOException(), "reboot", 0), Action.RETRY);
+    }
+
+    /**
+     * Test that light actions escalate to full recovery after the max light attempts.
+     */
+    @Test
+    public void testGetAction_escalation() {
+        IOException e = new IOException();
+        assertEquals(mPolicy.getAction(e, "shell ls", 0), Action.RECONNECT);
+        assertEquals(mPolicy.getAction(e, "shell ls", 1), Action.RECONNECT);
+        assertEquals(mPolicy.getAction(e, "shell ls", 2), Action.RECOVER);
+        mPolicy.setMaxLightAttempts(0);
+        assertEquals(mPolicy.getAction(e, "shell ls", 0), Action.RECOVER);
+    }
+
+    /**
+     * Test that a failure not worth retrying is never escalated.
+     */
+    @Test
+    public void testGetAction_failNotEscalated() {
+        mPolicy.setAction(IllegalStateException.class, null, Action.FAIL);
+        assertEquals(mPolicy.getAction(new IllegalStateException(), "shell ls", 5),
+                Action.FAIL);
+    }
+
+    /**
+     * Test that the backoff grows with the attempts, within the jitter and max bounds.
+     */
+    @Test
+    public void testGetBackoffTime() {
+        for (int i = 0; i < 20; i++) {
+            long backoff = mPolicy.getBackoffTime(0);
+            assertTrue(backoff >= DeviceActionPolicy.BACKOFF_BASE_TIME / 2, "backoff too short");
+            assertTrue(backoff <= DeviceActionPolicy.BACKOFF_BASE_TIME * 3 / 2, "backoff too long");
+            backoff = mPolicy.getBackoffTime(100);
+            assertTrue(backoff >= DeviceActionPolicy.BACKOFF_MAX_TIME / 2, "backoff too short");
+            assertTrue(backoff <= DeviceActionPolicy.BACKOFF_MAX_TIME * 3 / 2, "backoff too long");
+        }
+    }
+
+    /**
+     * Test parsing the operation class of an action description.
+     */
+    @Test
+    public void testGetOperation() {
+        assertEquals(DeviceActionPolicy.getOperation("shell ls -l"), "shell");
+        assertEquals(DeviceActionPolicy.getOperation("reboot"), "reboot");
+    }
+}
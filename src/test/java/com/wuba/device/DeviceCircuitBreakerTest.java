@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wuba.device;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link DeviceCircuitBreaker}.
+ */
+public class DeviceCircuitBreakerTest {
+
+    private DeviceCircuitBreaker mBreaker;
+
+    @BeforeMethod
+    public void setUp() {
+        mBreaker = new DeviceCircuitBreaker();
+    }
+
+    /**
+     * Test that the breaker opens on the threshold-th consecutive failure.
+     */
+    @Test
+    public void testRecordFailure_threshold() {
+        for (int i = 1; i < DeviceCircuitBreaker.FAILURE_THRESHOLD; i++) {
+            mBreaker.recordFailure();
+            assertFalse(mBreaker.isOpen());
+        }
+        mBreaker.recordFailure();
+        assertTrue(mBreaker.isOpen());
+        assertEquals(mBreaker.getOpenCount(), 1);
+        // further failures while open don't count as new opens
+        mBreaker.recordFailure();
+        assertEquals(mBreaker.getOpenCount(), 1);
+    }
+
+    /**
+     * Test that a success closes the breaker and resets the failure count.
+     */
+    @Test
+    public void testRecordSuccess() {
+        for (int i = 0; i < DeviceCircuitBreaker.FAILURE_THRESHOLD; i++) {
+            mBreaker.recordFailure();
+        }
+        mBreaker.recordSuccess();
+        assertFalse(mBreaker.isOpen());
+        for (int i = 1; i < DeviceCircuitBreaker.FAILURE_THRESHOLD; i++) {
+            mBreaker.recordFailure();
+            assertFalse(mBreaker.isOpen());
+        }
+        mBreaker.recordFailure();
+        assertTrue(mBreaker.isOpen());
+        assertEquals(mBreaker.getOpenCount(), 2);
+    }
+
+    /**
+     * Test that failures interrupted by a success don't open the breaker.
+     */
+    @Test
+    public void testRecordFailure_notConsecutive() {
+        for (int i = 0; i < DeviceCircuitBreaker.FAILURE_THRESHOLD * 2; i++) {
+            mBreaker.recordFailure();
+            mBreaker.recordSuccess();
+        }
+        assertFalse(mBreaker.isOpen());
+        assertEquals(mBreaker.getOpenCount(), 0);
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wuba.device;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link DeviceHealthTracker}.
+ */
+public class DeviceHealthTrackerTest {
+
+    private static final String SERIAL = "serial";
+    private static final double DELTA = 0.01;
+
+    private long mCurrentTime;
+    private DeviceHealthTracker mTracker;
+
+    @BeforeMethod
+    public void setUp() {
+        mCurrentTime = 1000 * 1000;
+        mTracker = new DeviceHealthTracker() {
+            @Override
+            long getCurrentTime() {
+                return mCurrentTime;
+            }
+        };
+    }
+
+    /**
+     * Test that a device without any recorded problem is fully healthy.
+     */
+    @Test
+    public void testGetScore_noHistory() {
+        assertEquals(mTracker.getScore(SERIAL), DeviceHealthTracker.MAX_SCORE, DELTA);
+        assertFalse(mTracker.shouldQuarantine(SERIAL));
+        assertTrue(mTracker.canReadmit(SERIAL));
+        assertTrue(mTracker.getScores().isEmpty());
+    }
+
+    /**
+     * Test that each kind of problem adds its penalty.
+     */
+    @Test
+    public void testPenalties() {
+        double score = DeviceHealthTracker.MAX_SCORE;
+        mTracker.recordRecovery(SERIAL);
+        score -= DeviceHealthTracker.RECOVERY_PENALTY;
+        assertEquals(mTracker.getScore(SERIAL), score, DELTA);
+        mTracker.recordUnresponsive(SERIAL);
+        score -= DeviceHealthTracker.UNRESPONSIVE_PENALTY;
+        assertEquals(mTracker.getScore(SERIAL), score, DELTA);
+        mTracker.recordUnresponsiveError(SERIAL);
+        score -= DeviceHealthTracker.UNRESPONSIVE_ERROR_PENALTY;
+        assertEquals(mTracker.getScore(SERIAL), score, DELTA);
+        mTracker.recordRunFailure(SERIAL);
+        score -= DeviceHealthTracker.RUN_FAILURE_PENALTY;
+        assertEquals(mTracker.getScore(SERIAL), score, DELTA);
+        assertEquals(mTracker.getScores().get(SERIAL), score, DELTA);
+        // other devices are not affected
+        assertEquals(mTracker.getScore("other"), DeviceHealthTracker.MAX_SCORE, DELTA);
+    }
+
+    /**
+     * Test that penalty points are halved every half life.
+     */
+    @Test
+    public void testGetScore_decay() {
+        mTracker.recordUnresponsive(SERIAL);
+        mTracker.recordRecovery(SERIAL);
+        assertEquals(mTracker.getScore(SERIAL), 60, DELTA);
+        mCurrentTime += DeviceHealthTracker.PENALTY_HALF_LIFE;
+        assertEquals(mTracker.getScore(SERIAL), 80, DELTA);
+        mCurrentTime += DeviceHealthTracker.PENALTY_HALF_LIFE / 2;
+        assertEquals(mTracker.getScore(SERIAL), 100 - 20 / Math.sqrt(2), DELTA);
+        mCurrentTime += DeviceHealthTracker.PENALTY_HALF_LIFE / 2;
+        assertEquals(mTracker.getScore(SERIAL), 90, DELTA);
+    }
+
+    /**
+     * Test that a new penalty adds to the decayed penalty, and restarts its decay.
+     */
+    @Test
+    public void testGetScore_decayThenPenalty() {
+        mTracker.recordUnresponsive(SERIAL);
+        mCurrentTime += DeviceHealthTracker.PENALTY_HALF_LIFE;
+        mTracker.recordUnresponsive(SERIAL);
+        assertEquals(mTracker.getScore(SERIAL), 55, DELTA);
+        mCurrentTime += DeviceHealthTracker.PENALTY_HALF_LIFE;
+        assertEquals(mTracker.getScore(SERIAL), 77.5, DELTA);
+    }
+
+    /**
+     * Test that a device is quarantined strictly below the quarantine threshold, and re-admitted
+     * at the higher readmit threshold, so it doesn't flap between the two.
+     */
+    @Test
+    public void testThresholds() {
+        // 100 - 30 - 15 = 55: neither quarantined nor healthy enough to be re-admitted
+        mTracker.recordUnresponsive(SERIAL);
+        mTracker.recordRunFailure(SERIAL);
+        assertFalse(mTracker.shouldQuarantine(SERIAL));
+        assertFalse(mTracker.canReadmit(SERIAL));
+        // 50 is not below the threshold
+        mTracker.recordProbe(SERIAL, false, -1);
+        assertEquals(mTracker.getScore(SERIAL), DeviceHealthTracker.QUARANTINE_THRESHOLD, DELTA);
+        assertFalse(mTracker.shouldQuarantine(SERIAL));
+        mTracker.recordProbe(SERIAL, false, -1);
+        assertTrue(mTracker.shouldQuarantine(SERIAL));
+    }
+
+    /**
+     * Test the round trip of a device through quarantine: penalized below the quarantine
+     * threshold, held out while probes fail, re-admitted after enough successful probes.
+     */
+    @Test
+    public void testQuarantineRoundTrip() {
+        mTracker.recordUnresponsive(SERIAL);
+        mTracker.recordUnresponsive(SERIAL);
+        assertEquals(mTracker.getScore(SERIAL), 40, DELTA);
+        assertTrue(mTracker.shouldQuarantine(SERIAL));
+
+        mTracker.recordProbe(SERIAL, false, -1);
+        assertEquals(mTracker.getScore(SERIAL), 35, DELTA);
+        assertFalse(mTracker.canReadmit(SERIAL));
+
+        // 50, then 65: still held out
+        mTracker.recordProbe(SERIAL, true, 50);
+        mTracker.recordProbe(SERIAL, true, 50);
+        assertEquals(mTracker.getScore(SERIAL), 65, DELTA);
+        assertFalse(mTracker.shouldQuarantine(SERIAL));
+        assertFalse(mTracker.canReadmit(SERIAL));
+
+        mTracker.recordProbe(SERIAL, true, 50);
+        assertEquals(mTracker.getScore(SERIAL), 80, DELTA);
+        assertTrue(mTracker.canReadmit(SERIAL));
+
+        // credits never raise the score above the max
+        for (int i = 0; i < 5; i++) {
+            mTracker.recordProbe(SERIAL, true, 50);
+        }
+        assertEquals(mTracker.getScore(SERIAL), DeviceHealthTracker.MAX_SCORE, DELTA);
+        mTracker.recordRecovery(SERIAL);
+        assertEquals(mTracker.getScore(SERIAL),
+                DeviceHealthTracker.MAX_SCORE - DeviceHealthTracker.RECOVERY_PENALTY, DELTA);
+    }
+
+    /**
+     * Test that a persistently slow shell is penalized, up to the max latency penalty, while it
+     * lasts.
+     */
+    @Test
+    public void testRecordShellLatency() {
+        mTracker.recordShellLatency(SERIAL, DeviceHealthTracker.SLOW_SHELL_LATENCY);
+        assertEquals(mTracker.getScore(SERIAL), DeviceHealthTracker.MAX_SCORE, DELTA);
+        mTracker.recordShellLatency(SERIAL, 60 * 1000);
+        assertEquals(mTracker.getScore(SERIAL),
+                DeviceHealthTracker.MAX_SCORE - DeviceHealthTracker.MAX_LATENCY_PENALTY, DELTA);
+        // the average latency comes back down with fast samples
+        for (int i = 0; i < 50; i++) {
+            mTracker.recordShellLatency(SERIAL, 10);
+        }
+        assertEquals(mTracker.getScore(SERIAL), DeviceHealthTracker.MAX_SCORE, DELTA);
+    }
+}
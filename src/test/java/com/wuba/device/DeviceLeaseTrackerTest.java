@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wuba.device;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.util.List;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link DeviceLeaseTracker} and {@link DeviceLease}.
+ */
+public class DeviceLeaseTrackerTest {
+
+    private static final String SERIAL = "serial";
+    private static final long TTL = 50;
+
+    private DeviceLeaseTracker mTracker;
+
+    @BeforeMethod
+    public void setUp() {
+        mTracker = new DeviceLeaseTracker();
+        mTracker.setTtl(TTL);
+    }
+
+    /**
+     * Test that renewing a held lease extends it.
+     */
+    @Test
+    public void testRenew() throws Exception {
+        DeviceLease lease = mTracker.grant(SERIAL);
+        long expiry = lease.getExpiryTime();
+        Thread.sleep(5);
+        assertTrue(lease.renew());
+        assertTrue(lease.getExpiryTime() > expiry);
+        assertEquals(mTracker.getRenewalCount(), 1);
+        assertTrue(mTracker.removeExpired().isEmpty());
+    }
+
+    /**
+     * Test that an expired lease is removed once, and can't be renewed afterwards.
+     */
+    @Test
+    public void testRemoveExpired() throws Exception {
+        DeviceLease lease = mTracker.grant(SERIAL);
+        Thread.sleep(TTL * 2);
+        List<DeviceLease> expired = mTracker.removeExpired();
+        assertEquals(expired.size(), 1);
+        assertSame(expired.get(0), lease);
+        assertNull(mTracker.get(SERIAL));
+        assertTrue(mTracker.removeExpired().isEmpty());
+        assertFalse(lease.renew());
+        assertEquals(mTracker.getExpiredCount(), 1);
+        assertEquals(mTracker.getRenewalCount(), 0);
+    }
+
+    /**
+     * Test that an expired lease can't be renewed even before it is reaped.
+     */
+    @Test
+    public void testRenew_expired() throws Exception {
+        DeviceLease lease = mTracker.grant(SERIAL);
+        Thread.sleep(TTL * 2);
+        assertFalse(lease.renew());
+        assertEquals(mTracker.removeExpired().size(), 1);
+    }
+
+    /**
+     * Test that a released lease can't be renewed.
+     */
+    @Test
+    public void testRenew_released() {
+        DeviceLease lease = mTracker.grant(SERIAL);
+        mTracker.release(SERIAL);
+        assertFalse(lease.renew());
+        assertEquals(mTracker.getReleasedCount(), 1);
+        assertEquals(mTracker.getActiveCount(), 0);
+    }
+
+    /**
+     * Test that the lease of a reclaimed device can't be renewed once the device is allocated
+     * again, and that the new lease is not affected.
+     */
+    @Test
+    public void testRenew_reclaimed() throws Exception {
+        DeviceLease lease = mTracker.grant(SERIAL);
+        Thread.sleep(TTL * 2);
+        assertEquals(mTracker.removeExpired().size(), 1);
+        mTracker.recordReclaim(true);
+        DeviceLease newLease = mTracker.grant(SERIAL);
+        assertFalse(lease.renew());
+        assertTrue(newLease.renew());
+        assertSame(mTracker.get(SERIAL), newLease);
+        assertEquals(mTracker.getReclaimedAvailableCount(), 1);
+        assertEquals(mTracker.getReclaimedUnavailableCount(), 0);
+    }
+
+    /**
+     * Test that leases never expire when no time to live is set.
+     */
+    @Test
+    public void testGrant_noTtl() throws Exception {
+        mTracker.setTtl(0);
+        DeviceLease lease = mTracker.grant(SERIAL);
+        Thread.sleep(TTL);
+        assertTrue(mTracker.removeExpired().isEmpty());
+        assertTrue(lease.renew());
+    }
+}
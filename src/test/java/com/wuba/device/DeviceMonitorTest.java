@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wuba.device;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.android.ddmlib.IDevice;
+import com.wuba.device.DeviceMonitor.ObserverStats;
+import com.wuba.device.IDeviceMonitor.DeviceLister;
+
+/**
+ * Unit tests for {@link DeviceMonitor}.
+ */
+public class DeviceMonitorTest {
+
+    private DeviceMonitor mMonitor;
+    private AtomicInteger mListCount;
+
+    @BeforeMethod
+    public void setUp() {
+        mMonitor = new DeviceMonitor();
+        mListCount = new AtomicInteger();
+        mMonitor.setDeviceLister(new DeviceLister() {
+            @Override
+            public Map<IDevice, String> listDevices() {
+                mListCount.incrementAndGet();
+                return new HashMap<IDevice, String>();
+            }
+        });
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        mMonitor.terminate();
+    }
+
+    /**
+     * An observer counting its updates.
+     */
+    private static class CountingObserver implements IDeviceStateObserver {
+        final AtomicInteger mUpdateCount = new AtomicInteger();
+        final CountDownLatch mUpdated = new CountDownLatch(1);
+
+        @Override
+        public void updateDeviceDevice(DeviceLister lister) {
+            mUpdateCount.incrementAndGet();
+            mUpdated.countDown();
+        }
+    }
+
+    /**
+     * An event listener collecting its events.
+     */
+    private static class CollectingListener implements IDeviceEventListener {
+        final BlockingQueue<DeviceEvent> mEvents = new LinkedBlockingQueue<DeviceEvent>();
+
+        @Override
+        public void deviceChanged(DeviceEvent event) {
+            mEvents.add(event);
+        }
+
+        DeviceEvent next() throws InterruptedException {
+            return mEvents.poll(2, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Test that a burst of changes within the notify window results in a single listing, shared
+     * by all observers.
+     */
+    @Test
+    public void testNotify_coalesced() throws Exception {
+        CountingObserver observer1 = new CountingObserver();
+        CountingObserver observer2 = new CountingObserver();
+        mMonitor.registerObserver(observer1);
+        mMonitor.registerObserver(observer2);
+        mMonitor.setNotifyWindow(200);
+        mMonitor.run();
+        for (int i = 0; i < 20; i++) {
+            mMonitor.notifyDeviceStateChange();
+        }
+        assertTrue(observer1.mUpdated.await(2, TimeUnit.SECONDS));
+        assertTrue(observer2.mUpdated.await(2, TimeUnit.SECONDS));
+        Thread.sleep(400);
+        assertEquals(mListCount.get(), 1);
+        assertEquals(observer1.mUpdateCount.get(), 1);
+        assertEquals(observer2.mUpdateCount.get(), 1);
+    }
+
+    /**
+     * Test that changes are delivered on the caller thread before the monitor is started.
+     */
+    @Test
+    public void testNotify_notStarted() throws Exception {
+        CountingObserver observer = new CountingObserver();
+        mMonitor.registerObserver(observer);
+        mMonitor.notifyDeviceStateChange();
+        assertEquals(mListCount.get(), 1);
+        assertTrue(observer.mUpdated.await(2, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Test that a slow observer skips to the latest listing, without delaying other observers.
+     */
+    @Test
+    public void testNotify_slowObserver() throws Exception {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger slowCount = new AtomicInteger();
+        IDeviceStateObserver slowObserver = new IDeviceStateObserver() {
+            @Override
+            public void updateDeviceDevice(DeviceLister lister) {
+                slowCount.incrementAndGet();
+                entered.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        CountingObserver fastObserver = new CountingObserver();
+        mMonitor.registerObserver(slowObserver);
+        mMonitor.registerObserver(fastObserver);
+        mMonitor.setNotifyWindow(0);
+        mMonitor.run();
+
+        mMonitor.notifyDeviceStateChange();
+        assertTrue(entered.await(2, TimeUnit.SECONDS));
+        for (int i = 0; i < 3; i++) {
+            Thread.sleep(100);
+            mMonitor.notifyDeviceStateChange();
+        }
+        Thread.sleep(200);
+        // the fast observer got every listing while the slow one was blocked
+        assertEquals(fastObserver.mUpdateCount.get(), mListCount.get());
+        assertTrue(mListCount.get() >= 3);
+        release.countDown();
+        Thread.sleep(200);
+
+        ObserverStats stats = mMonitor.getObserverStats().get(slowObserver);
+        // one listing was blocked, the latest pending one was delivered after it
+        assertEquals(slowCount.get(), 2);
+        assertEquals(stats.getDeliveredCount(), 2);
+        assertEquals(stats.getSkippedCount(), mListCount.get() - 2);
+        assertTrue(stats.getMaxLag() >= 100);
+    }
+
+    /**
+     * Test that observers are not notified after the monitor is terminated.
+     */
+    @Test
+    public void testTerminate() throws Exception {
+        CountingObserver observer = new CountingObserver();
+        mMonitor.registerObserver(observer);
+        mMonitor.run();
+        mMonitor.terminate();
+        mMonitor.notifyDeviceStateChange();
+        Thread.sleep(100);
+        assertEquals(mListCount.get(), 0);
+        assertEquals(observer.mUpdateCount.get(), 0);
+    }
+
+    /**
+     * Test that each transition is published once, with consecutive sequences and its type.
+     */
+    @Test
+    public void testDeviceStateChanged_sequence() throws Exception {
+        CollectingListener listener = new CollectingListener();
+        assertTrue(mMonitor.subscribe(listener, mMonitor.getLastSequence()));
+        mMonitor.deviceStateChanged("serial", IDeviceMonitor.STATE_AVAILABLE);
+        mMonitor.deviceStateChanged("serial", IDeviceMonitor.STATE_ALLOCATED);
+        // not a transition
+        mMonitor.deviceStateChanged("serial", IDeviceMonitor.STATE_ALLOCATED);
+        mMonitor.deviceStateChanged("serial", IDeviceMonitor.STATE_AVAILABLE);
+        mMonitor.deviceStateChanged("serial", IDeviceMonitor.STATE_UNAVAILABLE);
+        mMonitor.deviceStateChanged("serial", null);
+        mMonitor.deviceStateChanged("unknown", null);
+
+        DeviceEvent.Type[] expectedTypes = new DeviceEvent.Type[] {DeviceEvent.Type.ADDED,
+                DeviceEvent.Type.ALLOCATED, DeviceEvent.Type.FREED,
+                DeviceEvent.Type.STATE_CHANGED, DeviceEvent.Type.REMOVED};
+        String previousState = null;
+        for (int i = 0; i < expectedTypes.length; i++) {
+            DeviceEvent event = listener.next();
+            assertEquals(event.getSequence(), i + 1);
+            assertEquals(event.getType(), expectedTypes[i]);
+            assertEquals(event.getSerial(), "serial");
+            assertEquals(event.getPreviousState(), previousState);
+            previousState = event.getState();
+        }
+        assertNull(previousState);
+        assertNull(listener.mEvents.poll(100, TimeUnit.MILLISECONDS));
+        assertEquals(mMonitor.getLastSequence(), expectedTypes.length);
+    }
+
+    /**
+     * Test that a subscriber resumes after the last event it applied, retained events being
+     * replayed before new ones.
+     */
+    @Test
+    public void testSubscribe_resume() throws Exception {
+        mMonitor.deviceStateChanged("serial1", IDeviceMonitor.STATE_AVAILABLE);
+        mMonitor.deviceStateChanged("serial2", IDeviceMonitor.STATE_AVAILABLE);
+        mMonitor.deviceStateChanged("serial1", IDeviceMonitor.STATE_ALLOCATED);
+        CollectingListener listener = new CollectingListener();
+        assertTrue(mMonitor.subscribe(listener, 1));
+        mMonitor.deviceStateChanged("serial2", IDeviceMonitor.STATE_ALLOCATED);
+        for (long sequence = 2; sequence <= 4; sequence++) {
+            assertEquals(listener.next().getSequence(), sequence);
+        }
+        assertNull(listener.mEvents.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Test that resuming before the oldest retained event is reported as incomplete.
+     */
+    @Test
+    public void testSubscribe_discarded() throws Exception {
+        int count = DeviceMonitor.MAX_RETAINED_EVENTS + 10;
+        for (int i = 0; i < count; i++) {
+            mMonitor.deviceStateChanged("serial", i % 2 == 0 ? IDeviceMonitor.STATE_AVAILABLE
+                    : IDeviceMonitor.STATE_ALLOCATED);
+        }
+        assertEquals(mMonitor.getLastSequence(), count);
+        CollectingListener listener = new CollectingListener();
+        assertFalse(mMonitor.subscribe(listener, 0));
+        // the oldest retained events are still delivered
+        assertEquals(listener.next().getSequence(), 11);
+
+        CollectingListener resumed = new CollectingListener();
+        assertTrue(mMonitor.subscribe(resumed, count - 1));
+        assertEquals(resumed.next().getSequence(), count);
+        assertNull(resumed.mEvents.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Test that an unsubscribed listener receives no more events.
+     */
+    @Test
+    public void testUnsubscribe() throws Exception {
+        CollectingListener listener = new CollectingListener();
+        mMonitor.subscribe(listener, 0);
+        mMonitor.deviceStateChanged("serial", IDeviceMonitor.STATE_AVAILABLE);
+        assertEquals(listener.next().getSequence(), 1);
+        mMonitor.unsubscribe(listener);
+        mMonitor.deviceStateChanged("serial", IDeviceMonitor.STATE_ALLOCATED);
+        assertNull(listener.mEvents.poll(100, TimeUnit.MILLISECONDS));
+    }
+}
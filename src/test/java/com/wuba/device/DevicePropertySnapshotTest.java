@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wuba.device;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link DevicePropertySnapshot}.
+ */
+public class DevicePropertySnapshotTest {
+
+    /**
+     * Test parsing typical getprop output.
+     */
+    @Test
+    public void testParse() {
+        DevicePropertySnapshot snapshot = DevicePropertySnapshot.parse(
+                "[ro.product.name]: [hammerhead]\n"
+                + "[ro.build.version.sdk]: [23]\r\n"
+                + "  [sys.boot_completed]: [1]  \n");
+        assertEquals(snapshot.getProperties().size(), 3);
+        assertEquals(snapshot.getProperty("ro.product.name"), "hammerhead");
+        assertEquals(snapshot.getProperty("ro.build.version.sdk"), "23");
+        assertEquals(snapshot.getProperty("sys.boot_completed"), "1");
+        assertNull(snapshot.getProperty("ro.product.board"));
+        assertFalse(snapshot.isEmpty());
+    }
+
+    /**
+     * Test that empty values are kept, and values may contain brackets.
+     */
+    @Test
+    public void testParse_values() {
+        DevicePropertySnapshot snapshot = DevicePropertySnapshot.parse(
+                "[ro.empty]: []\n[ro.brackets]: [a [b] c]\n");
+        assertEquals(snapshot.getProperty("ro.empty"), "");
+        assertEquals(snapshot.getProperty("ro.brackets"), "a [b] c");
+    }
+
+    /**
+     * Test that lines which are not properties are skipped.
+     */
+    @Test
+    public void testParse_garbage() {
+        DevicePropertySnapshot snapshot = DevicePropertySnapshot.parse(
+                "error: device offline\n\n[ro.serialno]: [abc]\n[broken\n");
+        assertEquals(snapshot.getProperties().size(), 1);
+        assertEquals(snapshot.getProperty("ro.serialno"), "abc");
+    }
+
+    /**
+     * Test that no output gives an empty snapshot.
+     */
+    @Test
+    public void testParse_empty() {
+        assertTrue(DevicePropertySnapshot.parse(null).isEmpty());
+        assertTrue(DevicePropertySnapshot.parse("").isEmpty());
+    }
+
+    /**
+     * Test that a snapshot expires after its time to live.
+     */
+    @Test
+    public void testIsExpired() {
+        DevicePropertySnapshot snapshot = DevicePropertySnapshot.parse("[a]: [b]");
+        assertFalse(snapshot.isExpired(60 * 1000));
+        assertTrue(snapshot.isExpired(0));
+    }
+
+    /**
+     * Test that only ro.* properties are considered read-only.
+     */
+    @Test
+    public void testIsReadOnly() {
+        assertTrue(DevicePropertySnapshot.isReadOnly("ro.build.id"));
+        assertFalse(DevicePropertySnapshot.isReadOnly("sys.boot_completed"));
+        assertFalse(DevicePropertySnapshot.isReadOnly("dev.bootcomplete"));
+        assertFalse(DevicePropertySnapshot.isReadOnly("persist.ro.foo"));
+    }
+}
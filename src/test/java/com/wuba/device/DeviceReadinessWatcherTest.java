@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wuba.device;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+import com.wuba.device.DeviceReadinessWatcher.Stage;
+import com.wuba.device.DeviceReadinessWatcher.StageReceiver;
+
+/**
+ * Unit tests for {@link DeviceReadinessWatcher}.
+ */
+public class DeviceReadinessWatcherTest {
+
+    private static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    /**
+     * Test that the script only checks the stages up to the target.
+     */
+    @Test
+    public void testGetScript_stages() {
+        String shell = DeviceReadinessWatcher.getScript(Stage.SHELL, 5);
+        assertEquals(shell, "echo READY_SHELL");
+
+        String boot = DeviceReadinessWatcher.getScript(Stage.BOOT_COMPLETE, 5);
+        assertTrue(boot.startsWith("echo READY_SHELL; "));
+        assertTrue(boot.endsWith("echo READY_BOOT_COMPLETE"));
+        assertFalse(boot.contains(Stage.PM_RESPONSIVE.getMarker()));
+
+        String pm = DeviceReadinessWatcher.getScript(Stage.PM_RESPONSIVE, 5);
+        assertTrue(pm.contains(Stage.BOOT_COMPLETE.getMarker()));
+        assertTrue(pm.endsWith("echo READY_PM_RESPONSIVE"));
+        assertFalse(pm.contains(Stage.STORE_MOUNTED.getMarker()));
+    }
+
+    /**
+     * Test that the package manager and storage stages are checked concurrently.
+     */
+    @Test
+    public void testGetScript_concurrent() {
+        String script = DeviceReadinessWatcher.getScript(Stage.STORE_MOUNTED, 5);
+        assertTrue(script.contains(") & ("));
+        assertTrue(script.endsWith(") & wait"));
+        assertTrue(script.indexOf(Stage.BOOT_COMPLETE.getMarker())
+                < script.indexOf(Stage.PM_RESPONSIVE.getMarker()));
+    }
+
+    /**
+     * Test that the max number of polls is substituted in each polling loop.
+     */
+    @Test
+    public void testGetScript_maxPolls() {
+        String script = DeviceReadinessWatcher.getScript(Stage.STORE_MOUNTED, 42);
+        assertFalse(script.contains("%1$d"));
+        int count = 0;
+        for (int i = script.indexOf("-ge 42"); i >= 0; i = script.indexOf("-ge 42", i + 1)) {
+            count++;
+        }
+        assertEquals(count, 3);
+    }
+
+    /**
+     * Test that the stages are reported as their markers are received.
+     */
+    @Test
+    public void testStageReceiver_inOrder() {
+        StageReceiver receiver = new StageReceiver(Stage.PM_RESPONSIVE, NO_DEADLINE);
+        assertNull(receiver.getStage());
+        receiver.processNewLines(new String[] {"READY_SHELL"});
+        assertEquals(receiver.getStage(), Stage.SHELL);
+        assertFalse(receiver.isCancelled());
+        receiver.processNewLines(new String[] {"READY_BOOT_COMPLETE", "READY_PM_RESPONSIVE"});
+        assertEquals(receiver.getStage(), Stage.PM_RESPONSIVE);
+        assertTrue(receiver.isCancelled());
+    }
+
+    /**
+     * Test that a stage reported before its predecessors only counts once they are reached.
+     */
+    @Test
+    public void testStageReceiver_outOfOrder() {
+        StageReceiver receiver = new StageReceiver(Stage.STORE_MOUNTED, NO_DEADLINE);
+        receiver.processNewLines(new String[] {"READY_SHELL", "READY_BOOT_COMPLETE",
+                "READY_STORE_MOUNTED"});
+        assertEquals(receiver.getStage(), Stage.BOOT_COMPLETE);
+        assertFalse(receiver.isCancelled());
+        receiver.processNewLines(new String[] {"READY_PM_RESPONSIVE"});
+        assertEquals(receiver.getStage(), Stage.STORE_MOUNTED);
+        assertTrue(receiver.isCancelled());
+    }
+
+    /**
+     * Test that markers are recognized in raw shell output with carriage returns and noise.
+     */
+    @Test
+    public void testStageReceiver_rawOutput() throws Exception {
+        StageReceiver receiver = new StageReceiver(Stage.BOOT_COMPLETE, NO_DEADLINE);
+        byte[] output = "READY_SHELL\r\nsh: getprop: not ready\r\nREADY_BOOT_COMPLETE \r\n"
+                .getBytes("UTF-8");
+        receiver.addOutput(output, 0, output.length);
+        assertEquals(receiver.getStage(), Stage.BOOT_COMPLETE);
+    }
+
+    /**
+     * Test that unknown lines and partial markers don't report a stage.
+     */
+    @Test
+    public void testStageReceiver_noMarker() {
+        StageReceiver receiver = new StageReceiver(Stage.SHELL, NO_DEADLINE);
+        receiver.processNewLines(new String[] {"", "READY_", "echo READY_SHELL",
+                "READY_SHELLX"});
+        assertNull(receiver.getStage());
+        assertFalse(receiver.isCancelled());
+    }
+
+    /**
+     * Test that the receiver cancels the command once the deadline has passed.
+     */
+    @Test
+    public void testStageReceiver_deadline() {
+        StageReceiver receiver = new StageReceiver(Stage.BOOT_COMPLETE,
+                System.currentTimeMillis() - 1);
+        receiver.processNewLines(new String[] {"READY_SHELL"});
+        assertTrue(receiver.isCancelled());
+        assertEquals(receiver.getStage(), Stage.SHELL);
+    }
+}
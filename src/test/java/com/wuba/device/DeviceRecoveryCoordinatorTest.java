@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wuba.device;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.wuba.utils.IRunUtil;
+import com.wuba.utils.RunUtil;
+
+/**
+ * Unit tests for {@link DeviceRecoveryCoordinator}.
+ */
+public class DeviceRecoveryCoordinatorTest {
+
+    private FakeManager mManager;
+    private FakeRecovery mRecovery;
+    private DeviceRecoveryCoordinator mCoordinator;
+
+    /**
+     * A {@link CtsDeviceManager} whose batch pause can be held, and whose fastboot poll is faked.
+     */
+    private static class FakeManager extends CtsDeviceManager {
+        volatile CountDownLatch mPauseGate = new CountDownLatch(0);
+        volatile RuntimeException mPauseFailure = null;
+        volatile Set<String> mFastbootSerials = null;
+        volatile RuntimeException mFastbootFailure = null;
+
+        @Override
+        IRunUtil getRunUtil() {
+            return new RunUtil() {
+                @Override
+                public void sleep(long time) {
+                    RuntimeException failure = mPauseFailure;
+                    if (failure != null) {
+                        mPauseFailure = null;
+                        throw failure;
+                    }
+                    try {
+                        mPauseGate.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+        }
+
+        @Override
+        Set<String> getDevicesOnFastboot() {
+            if (mFastbootFailure != null) {
+                throw mFastbootFailure;
+            }
+            return mFastbootSerials;
+        }
+    }
+
+    /**
+     * A {@link WaitDeviceRecovery} recording the per device steps instead of performing them.
+     */
+    private static class FakeRecovery extends WaitDeviceRecovery {
+        final Map<String, List<Boolean>> mRecoveries = new HashMap<String, List<Boolean>>();
+        final List<String> mFastbootReboots = Collections.synchronizedList(
+                new ArrayList<String>());
+        final Set<String> mFailingSerials = Collections.synchronizedSet(new HashSet<String>());
+        volatile CountDownLatch mRecoveryGate = new CountDownLatch(0);
+
+        @Override
+        void recoverOnlineDevice(IDeviceStateMonitor monitor, boolean recoverUntilOnline)
+                throws DeviceNotAvailableException {
+            String serial = monitor.getSerialNumber();
+            synchronized (mRecoveries) {
+                if (!mRecoveries.containsKey(serial)) {
+                    mRecoveries.put(serial, new ArrayList<Boolean>());
+                }
+                mRecoveries.get(serial).add(recoverUntilOnline);
+            }
+            try {
+                mRecoveryGate.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (mFailingSerials.contains(serial)) {
+                throw new DeviceNotAvailableException(String.format("Could not find device %s",
+                        serial));
+            }
+        }
+
+        @Override
+        void rebootFastbootDevice(String serial) {
+            mFastbootReboots.add(serial);
+        }
+
+        List<Boolean> getRecoveries(String serial) {
+            synchronized (mRecoveries) {
+                List<Boolean> recoveries = mRecoveries.get(serial);
+                return recoveries == null ? new ArrayList<Boolean>()
+                        : new ArrayList<Boolean>(recoveries);
+            }
+        }
+    }
+
+    @BeforeMethod
+    public void setUp() {
+        mManager = new FakeManager();
+        mRecovery = new FakeRecovery();
+        mCoordinator = new DeviceRecoveryCoordinator(mManager, mRecovery, true);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        mCoordinator.terminate();
+    }
+
+    private IDeviceStateMonitor createMonitor(String serial) {
+        return new DeviceStateMonitor(mManager, new StubDevice(serial), false);
+    }
+
+    /**
+     * Test that a coordinated recovery blocks until the device is recovered.
+     */
+    @Test
+    public void testRecoverDevice() throws Exception {
+        mCoordinator.getDeviceRecovery().recoverDevice(createMonitor("serial"), false);
+        assertEquals(mRecovery.getRecoveries("serial"), Collections.singletonList(false));
+        assertTrue(mManager.getHealthTracker().getScore("serial")
+                < DeviceHealthTracker.MAX_SCORE);
+    }
+
+    /**
+     * Test that a failed recovery is rethrown to the requester.
+     */
+    @Test
+    public void testRecoverDevice_failed() {
+        mRecovery.mFailingSerials.add("serial");
+        try {
+            mCoordinator.getDeviceRecovery().recoverDevice(createMonitor("serial"), false);
+            fail("DeviceNotAvailableException not thrown");
+        } catch (DeviceNotAvailableException e) {
+            assertTrue(e.getMessage().contains("serial"));
+        }
+    }
+
+    /**
+     * Test that requests within one pause form one batch, and that concurrent requests for a
+     * device share its recovery, recovering fully if any requester needs it.
+     */
+    @Test
+    public void testRequestRecovery_batch() throws Exception {
+        mManager.mPauseGate = new CountDownLatch(1);
+        mManager.mFastbootSerials = Collections.singleton("serial2");
+        IDeviceStateMonitor monitor1 = createMonitor("serial1");
+        Future<Void> future1 = mCoordinator.requestRecovery(monitor1, true);
+        Future<Void> future1Again = mCoordinator.requestRecovery(createMonitor("serial1"), false);
+        Future<Void> future2 = mCoordinator.requestRecovery(createMonitor("serial2"), true);
+        assertSame(future1Again, future1);
+        mManager.mPauseGate.countDown();
+        future1.get(5, TimeUnit.SECONDS);
+        future2.get(5, TimeUnit.SECONDS);
+        assertEquals(mRecovery.getRecoveries("serial1"), Collections.singletonList(false));
+        assertEquals(mRecovery.getRecoveries("serial2"), Collections.singletonList(true));
+        // only the device found in fastboot is rebooted
+        assertEquals(mRecovery.mFastbootReboots, Collections.singletonList("serial2"));
+    }
+
+    /**
+     * Test that a request made after its batch was taken gets a new recovery.
+     */
+    @Test
+    public void testRequestRecovery_nextBatch() throws Exception {
+        mRecovery.mRecoveryGate = new CountDownLatch(1);
+        Future<Void> future1 = mCoordinator.requestRecovery(createMonitor("serial"), true);
+        // wait for the first recovery to start
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mRecovery.getRecoveries("serial").isEmpty()
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Future<Void> future2 = mCoordinator.requestRecovery(createMonitor("serial"), true);
+        assertTrue(future1 != future2);
+        mRecovery.mRecoveryGate.countDown();
+        future1.get(5, TimeUnit.SECONDS);
+        future2.get(5, TimeUnit.SECONDS);
+        assertEquals(mRecovery.getRecoveries("serial").size(), 2);
+    }
+
+    /**
+     * Test that the requests of a batch still run if its pause fails, and that later requests
+     * start a new batch.
+     */
+    @Test
+    public void testRunBatch_pauseFailed() throws Exception {
+        mManager.mPauseFailure = new RuntimeException("pause failed");
+        Future<Void> future = mCoordinator.requestRecovery(createMonitor("serial1"), false);
+        future.get(5, TimeUnit.SECONDS);
+        assertEquals(mRecovery.getRecoveries("serial1").size(), 1);
+        mCoordinator.requestRecovery(createMonitor("serial2"), false).get(5, TimeUnit.SECONDS);
+        assertEquals(mRecovery.getRecoveries("serial2").size(), 1);
+    }
+
+    /**
+     * Test that the requests of a batch still run if its fastboot poll fails.
+     */
+    @Test
+    public void testRunBatch_fastbootFailed() throws Exception {
+        mManager.mFastbootFailure = new RuntimeException("fastboot failed");
+        Future<Void> future = mCoordinator.requestRecovery(createMonitor("serial"), false);
+        future.get(5, TimeUnit.SECONDS);
+        assertEquals(mRecovery.getRecoveries("serial").size(), 1);
+    }
+
+    /**
+     * Test that a requester stops waiting on a recovery that takes too long.
+     */
+    @Test
+    public void testRecoverDevice_timeout() throws Exception {
+        mCoordinator = new DeviceRecoveryCoordinator(mManager, mRecovery, false) {
+            @Override
+            long getRecoveryTimeout(IDeviceStateMonitor monitor) {
+                return 100;
+            }
+        };
+        mRecovery.mRecoveryGate = new CountDownLatch(1);
+        try {
+            mCoordinator.getDeviceRecovery().recoverDevice(createMonitor("serial"), false);
+            fail("DeviceNotAvailableException not thrown");
+        } catch (DeviceNotAvailableException e) {
+            assertTrue(e.getMessage().contains("Timed out"));
+        } finally {
+            mRecovery.mRecoveryGate.countDown();
+        }
+    }
+
+    /**
+     * Test that a request made after terminate is recovered on the caller thread.
+     */
+    @Test
+    public void testRequestRecovery_terminated() throws Exception {
+        mCoordinator.terminate();
+        Future<Void> future = mCoordinator.requestRecovery(createMonitor("serial"), false);
+        assertTrue(future.isDone());
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            fail("recovery failed", e.getCause());
+        }
+    }
+}
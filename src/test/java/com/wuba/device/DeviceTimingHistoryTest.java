@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wuba.device;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.wuba.device.DeviceTimingHistory.Phase;
+
+/**
+ * Unit tests for {@link DeviceTimingHistory}.
+ */
+public class DeviceTimingHistoryTest {
+
+    private static final long DEFAULT_TIMEOUT = 10 * 1000;
+
+    private DeviceTimingHistory mHistory;
+
+    @BeforeMethod
+    public void setUp() {
+        mHistory = new DeviceTimingHistory(null);
+    }
+
+    private void record(Phase phase, String serial, String product, long duration, int count) {
+        for (int i = 0; i < count; i++) {
+            mHistory.record(phase, serial, product, duration);
+        }
+    }
+
+    /**
+     * Test the nearest rank percentiles of given samples.
+     */
+    @Test
+    public void testGetPercentile() {
+        List<Long> samples = new ArrayList<Long>();
+        for (long i = 100; i > 0; i--) {
+            samples.add(i);
+        }
+        assertEquals(DeviceTimingHistory.getPercentile(samples, 50), 50);
+        assertEquals(DeviceTimingHistory.getPercentile(samples, 99), 99);
+        assertEquals(DeviceTimingHistory.getPercentile(samples, 100), 100);
+        assertEquals(DeviceTimingHistory.getPercentile(samples, 0), 1);
+        assertEquals(DeviceTimingHistory.getPercentile(Arrays.asList(7L), 99), 7);
+    }
+
+    /**
+     * Test that the default is used until there are enough samples.
+     */
+    @Test
+    public void testGetTimeout_notEnoughSamples() {
+        assertEquals(mHistory.getTimeout(Phase.ONLINE, "serial", DEFAULT_TIMEOUT),
+                DEFAULT_TIMEOUT);
+        record(Phase.ONLINE, "serial", null, 20 * 1000, DeviceTimingHistory.MIN_SAMPLES - 1);
+        assertEquals(mHistory.getTimeout(Phase.ONLINE, "serial", DEFAULT_TIMEOUT),
+                DEFAULT_TIMEOUT);
+        record(Phase.ONLINE, "serial", null, 20 * 1000, 1);
+        assertEquals(mHistory.getTimeout(Phase.ONLINE, "serial", DEFAULT_TIMEOUT), 30 * 1000);
+        // other phases have no history
+        assertEquals(mHistory.getTimeout(Phase.SHELL, "serial", DEFAULT_TIMEOUT),
+                DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Test that a device without enough history of its own uses the history of its product.
+     */
+    @Test
+    public void testGetTimeout_productFallback() {
+        record(Phase.REBOOT, "serial1", "product", 20 * 1000, DeviceTimingHistory.MIN_SAMPLES);
+        mHistory.record(Phase.REBOOT, "serial2", "product", 12 * 1000);
+        assertEquals(mHistory.getTimeout(Phase.REBOOT, "serial2", DEFAULT_TIMEOUT), 30 * 1000);
+        // a device of unknown product has no fallback
+        assertEquals(mHistory.getTimeout(Phase.REBOOT, "serial3", DEFAULT_TIMEOUT),
+                DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Test that a derived timeout may be below the default, but never below the min timeout.
+     */
+    @Test
+    public void testGetTimeout_belowDefault() {
+        record(Phase.AVAILABLE, "serial", null, 20 * 1000, DeviceTimingHistory.MIN_SAMPLES);
+        assertEquals(mHistory.getTimeout(Phase.AVAILABLE, "serial", 100 * 1000), 30 * 1000);
+        // at most the max multiple below the default
+        assertEquals(mHistory.getTimeout(Phase.AVAILABLE, "serial", 200 * 1000),
+                200 * 1000 / DeviceTimingHistory.MAX_DEFAULT_MULTIPLE);
+        record(Phase.SHELL, "fast", null, 2 * 1000, DeviceTimingHistory.MIN_SAMPLES);
+        assertEquals(mHistory.getTimeout(Phase.SHELL, "fast", DEFAULT_TIMEOUT),
+                DeviceTimingHistory.MIN_TIMEOUT);
+        // a default below the min timeout is kept
+        assertEquals(mHistory.getTimeout(Phase.SHELL, "fast", 4 * 1000), 4 * 1000);
+    }
+
+    /**
+     * Test that a derived timeout is never above the max multiple of the default.
+     */
+    @Test
+    public void testGetTimeout_bounds() {
+        record(Phase.SHELL, "slow", null, 100 * 1000, DeviceTimingHistory.MIN_SAMPLES);
+        assertEquals(mHistory.getTimeout(Phase.SHELL, "slow", DEFAULT_TIMEOUT),
+                DEFAULT_TIMEOUT * DeviceTimingHistory.MAX_DEFAULT_MULTIPLE);
+    }
+
+    /**
+     * Test that waits which returned immediately are not recorded.
+     */
+    @Test
+    public void testRecord_immediate() {
+        record(Phase.AVAILABLE, "serial", null, 0, DeviceTimingHistory.MIN_SAMPLES);
+        record(Phase.AVAILABLE, "serial", null, 20 * 1000, DeviceTimingHistory.MIN_SAMPLES - 1);
+        assertEquals(mHistory.getTimeout(Phase.AVAILABLE, "serial", DEFAULT_TIMEOUT),
+                DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Test that timed out waits count as samples of their timeout, capped at the default.
+     */
+    @Test
+    public void testRecordTimeout() {
+        record(Phase.AVAILABLE, "serial", null, 8 * 1000, DeviceTimingHistory.MIN_SAMPLES - 1);
+        mHistory.recordTimeout(Phase.AVAILABLE, "serial", null, 9 * 1000, DEFAULT_TIMEOUT);
+        assertEquals(mHistory.getTimeout(Phase.AVAILABLE, "serial", DEFAULT_TIMEOUT),
+                (long)(9 * 1000 * DeviceTimingHistory.TIMEOUT_FACTOR));
+        mHistory.recordTimeout(Phase.AVAILABLE, "serial", null, 20 * 1000, DEFAULT_TIMEOUT);
+        assertEquals(mHistory.getTimeout(Phase.AVAILABLE, "serial", DEFAULT_TIMEOUT),
+                (long)(DEFAULT_TIMEOUT * DeviceTimingHistory.TIMEOUT_FACTOR));
+    }
+
+    /**
+     * Test that a device that keeps timing out doesn't keep raising its timeout.
+     */
+    @Test
+    public void testRecordTimeout_repeated() {
+        long maxTimeout = (long)(DEFAULT_TIMEOUT * DeviceTimingHistory.TIMEOUT_FACTOR);
+        for (int i = 0; i < DeviceTimingHistory.MAX_SAMPLES; i++) {
+            long timeout = mHistory.getTimeout(Phase.ONLINE, "serial", DEFAULT_TIMEOUT);
+            assertTrue(timeout <= maxTimeout);
+            mHistory.recordTimeout(Phase.ONLINE, "serial", null, timeout, DEFAULT_TIMEOUT);
+        }
+        assertEquals(mHistory.getTimeout(Phase.ONLINE, "serial", DEFAULT_TIMEOUT), maxTimeout);
+        // longer observed durations still raise it
+        record(Phase.ONLINE, "serial", null, 3 * DEFAULT_TIMEOUT, DeviceTimingHistory.MIN_SAMPLES);
+        assertEquals(mHistory.getTimeout(Phase.ONLINE, "serial", DEFAULT_TIMEOUT),
+                DEFAULT_TIMEOUT * DeviceTimingHistory.MAX_DEFAULT_MULTIPLE);
+    }
+
+    /**
+     * Test the default history store file, and opting out of it.
+     */
+    @Test
+    public void testGetDefaultStoreFile() {
+        String previous = System.getProperty(DeviceTimingHistory.STORE_FILE_PROPERTY);
+        try {
+            System.clearProperty(DeviceTimingHistory.STORE_FILE_PROPERTY);
+            assertEquals(DeviceTimingHistory.getDefaultStoreFile(),
+                    DeviceTimingHistory.DEFAULT_STORE_FILE);
+            System.setProperty(DeviceTimingHistory.STORE_FILE_PROPERTY, "/tmp/history");
+            assertEquals(DeviceTimingHistory.getDefaultStoreFile(), new File("/tmp/history"));
+            System.setProperty(DeviceTimingHistory.STORE_FILE_PROPERTY,
+                    DeviceTimingHistory.NO_STORE_FILE);
+            assertNull(DeviceTimingHistory.getDefaultStoreFile());
+            System.setProperty(DeviceTimingHistory.STORE_FILE_PROPERTY, "");
+            assertNull(DeviceTimingHistory.getDefaultStoreFile());
+        } finally {
+            if (previous == null) {
+                System.clearProperty(DeviceTimingHistory.STORE_FILE_PROPERTY);
+            } else {
+                System.setProperty(DeviceTimingHistory.STORE_FILE_PROPERTY, previous);
+            }
+        }
+    }
+
+    /**
+     * Test that a flushed history is loaded again.
+     */
+    @Test
+    public void testFlush() throws Exception {
+        File storeFile = File.createTempFile("timing-history", ".properties");
+        try {
+            mHistory = new DeviceTimingHistory(storeFile);
+            record(Phase.ONLINE, "serial", "product", 20 * 1000,
+                    DeviceTimingHistory.MIN_SAMPLES);
+            mHistory.flush();
+            DeviceTimingHistory loaded = new DeviceTimingHistory(storeFile);
+            assertEquals(loaded.getTimeout(Phase.ONLINE, "serial", DEFAULT_TIMEOUT), 30 * 1000);
+            assertEquals(loaded.getTimeout(Phase.ONLINE, "other", DEFAULT_TIMEOUT),
+                    DEFAULT_TIMEOUT);
+        } finally {
+            storeFile.delete();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wuba.device;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit tests for {@link TenantAllocationScheduler}.
+ */
+public class TenantAllocationSchedulerTest {
+
+    private static final String TENANT = "tenant";
+
+    private TenantAllocationScheduler mScheduler;
+    private List<String> mAcquired;
+
+    @BeforeMethod
+    public void setUp() {
+        mScheduler = new TenantAllocationScheduler();
+        mAcquired = new ArrayList<String>();
+    }
+
+    /**
+     * Gets a {@link Runnable} recording that the asynchronous request of given name got quota.
+     */
+    private Runnable onAcquired(final String name) {
+        return new Runnable() {
+            public void run() {
+                mAcquired.add(name);
+            }
+        };
+    }
+
+    /**
+     * Test that asynchronous requests wait for quota, and get it in arrival order.
+     */
+    @Test
+    public void testAcquireAsync() throws Exception {
+        mScheduler.setTenantQuota(TENANT, 1);
+        Runnable cancelled = onAcquired("cancelled");
+        mScheduler.acquireAsync(TENANT, onAcquired("a"));
+        mScheduler.acquireAsync(TENANT, onAcquired("b"));
+        mScheduler.acquireAsync(TENANT, cancelled);
+        mScheduler.acquireAsync(TENANT, onAcquired("c"));
+        assertEquals(mAcquired, Arrays.asList("a"));
+        assertTrue(mScheduler.cancelAcquire(TENANT, cancelled));
+        assertFalse(mScheduler.cancelAcquire(TENANT, cancelled));
+        mScheduler.release(TENANT, 1);
+        assertEquals(mAcquired, Arrays.asList("a", "b"));
+        assertFalse(mScheduler.acquire(TENANT, 1, 0));
+        mScheduler.release(TENANT, 1);
+        assertEquals(mAcquired, Arrays.asList("a", "b", "c"));
+    }
+
+    /**
+     * Test that shrinking a quota while its permits are held keeps the tenant within the new
+     * quota, for asynchronous requests too.
+     */
+    @Test
+    public void testSetTenantQuota_shrinkWhileHeld() throws Exception {
+        mScheduler.setTenantQuota(TENANT, 4);
+        assertTrue(mScheduler.acquire(TENANT, 4, 0));
+        mScheduler.setTenantQuota(TENANT, 2);
+        mScheduler.acquireAsync(TENANT, onAcquired("a"));
+        // the tenant holds 3 and 2 devices, still over or at the quota
+        mScheduler.release(TENANT, 1);
+        assertTrue(mAcquired.isEmpty());
+        mScheduler.release(TENANT, 1);
+        assertTrue(mAcquired.isEmpty());
+        assertFalse(mScheduler.acquire(TENANT, 1, 0));
+        // down to 1 device, the waiting request gets the second
+        mScheduler.release(TENANT, 1);
+        assertEquals(mAcquired, Arrays.asList("a"));
+        assertFalse(mScheduler.acquire(TENANT, 1, 0));
+    }
+
+    /**
+     * Test that growing a quota passes the new permits on to waiting asynchronous requests.
+     */
+    @Test
+    public void testSetTenantQuota_grow() throws Exception {
+        mScheduler.setTenantQuota(TENANT, 1);
+        assertTrue(mScheduler.acquire(TENANT, 1, 0));
+        mScheduler.acquireAsync(TENANT, onAcquired("a"));
+        assertTrue(mAcquired.isEmpty());
+        mScheduler.setTenantQuota(TENANT, 2);
+        assertEquals(mAcquired, Arrays.asList("a"));
+        assertFalse(mScheduler.acquire(TENANT, 1, 0));
+    }
+
+    /**
+     * Test that a tenant without a quota is never limited.
+     */
+    @Test
+    public void testNoQuota() throws Exception {
+        assertTrue(mScheduler.acquire("other", 100, 0));
+        mScheduler.acquireAsync("other", onAcquired("a"));
+        assertEquals(mAcquired, Arrays.asList("a"));
+    }
+}
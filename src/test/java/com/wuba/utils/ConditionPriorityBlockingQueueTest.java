@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wuba.utils;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.wuba.utils.ConditionPriorityBlockingQueue.IHandoffListener;
+import com.wuba.utils.ConditionPriorityBlockingQueue.IIndexedMatcher;
+import com.wuba.utils.ConditionPriorityBlockingQueue.IIndexer;
+import com.wuba.utils.ConditionPriorityBlockingQueue.IMatcher;
+import com.wuba.utils.ConditionPriorityBlockingQueue.IPendingPoll;
+
+/**
+ * Unit tests for {@link ConditionPriorityBlockingQueue}.
+ */
+public class ConditionPriorityBlockingQueueTest {
+
+    /** Strings of the form "key:attribute" */
+    private static class ItemIndexer implements IIndexer<String> {
+        public String getKey(String element) {
+            return element.split(":")[0];
+        }
+
+        public Map<String, String> getAttributes(String element) {
+            Map<String, String> attributes = new HashMap<String, String>();
+            String[] parts = element.split(":");
+            attributes.put("attr", parts.length > 1 ? parts[1] : null);
+            return attributes;
+        }
+    }
+
+    private static class AttributeMatcher implements IIndexedMatcher<String> {
+        private final String mAttribute;
+        int mMatchCount = 0;
+
+        AttributeMatcher(String attribute) {
+            mAttribute = attribute;
+        }
+
+        public boolean matches(String element) {
+            mMatchCount++;
+            return element.endsWith(":" + mAttribute);
+        }
+
+        public Collection<String> getKeyConstraint() {
+            return null;
+        }
+
+        public Map<String, Collection<String>> getAttributeConstraints() {
+            Map<String, Collection<String>> constraints = new HashMap<String, Collection<String>>();
+            constraints.put("attr", Collections.singleton(mAttribute));
+            return constraints;
+        }
+    }
+
+    private static class KeyMatcher implements IIndexedMatcher<String> {
+        private final String mKey;
+
+        KeyMatcher(String key) {
+            mKey = key;
+        }
+
+        public boolean matches(String element) {
+            return element.startsWith(mKey + ":");
+        }
+
+        public Collection<String> getKeyConstraint() {
+            return Arrays.asList(mKey);
+        }
+
+        public Map<String, Collection<String>> getAttributeConstraints() {
+            return null;
+        }
+    }
+
+    private ConditionPriorityBlockingQueue<String> mQueue;
+
+    @BeforeMethod
+    public void setUp() {
+        mQueue = new ConditionPriorityBlockingQueue<String>(null, new ItemIndexer());
+    }
+
+    /**
+     * Waits until given number of threads are blocked polling the queue.
+     */
+    private void waitForWaiters(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mQueue.getWaiterCount() < count) {
+            assertTrue(System.currentTimeMillis() < deadline, "waiters did not block");
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Test that an indexed queue keeps FIFO order.
+     */
+    @Test
+    public void testIndexed_fifo() {
+        mQueue.add("b:x");
+        mQueue.add("a:x");
+        mQueue.add("c:y");
+        assertEquals(mQueue.poll(), "b:x");
+        assertEquals(mQueue.poll(new AttributeMatcher("x")), "a:x");
+        assertEquals(mQueue.poll(), "c:y");
+        assertNull(mQueue.poll());
+    }
+
+    /**
+     * Test that only candidates from the matching attribute bucket are evaluated.
+     */
+    @Test
+    public void testIndexed_attributeBucket() {
+        for (int i = 0; i < 100; i++) {
+            mQueue.add(String.format("%d:x", i));
+        }
+        mQueue.add("unknown");
+        mQueue.add("200:y");
+        AttributeMatcher matcher = new AttributeMatcher("y");
+        assertEquals(mQueue.poll(matcher), "200:y");
+        // the matching element, plus the element with unknown attribute
+        assertEquals(matcher.mMatchCount, 2);
+        assertEquals(mQueue.size(), 101);
+    }
+
+    /**
+     * Test key lookup, replacement and removal in an indexed queue.
+     */
+    @Test
+    public void testIndexed_key() {
+        mQueue.add("a:x");
+        mQueue.add("b:x");
+        assertEquals(mQueue.addUnique(new KeyMatcher("a"), "a:y"), "a:x");
+        assertEquals(mQueue.size(), 2);
+        assertFalse(mQueue.contains("a:x"));
+        assertTrue(mQueue.contains("a:y"));
+        assertEquals(mQueue.getCopy(), Arrays.asList("b:x", "a:y"));
+        assertEquals(mQueue.poll(new KeyMatcher("a")), "a:y");
+        assertNull(mQueue.poll(new KeyMatcher("a")));
+        assertTrue(mQueue.remove("b:x"));
+        assertFalse(mQueue.remove("b:x"));
+        assertEquals(mQueue.size(), 0);
+    }
+
+    /**
+     * Test that a comparator takes precedence over insertion order in an indexed queue.
+     */
+    @Test
+    public void testIndexed_comparator() {
+        mQueue = new ConditionPriorityBlockingQueue<String>(new Comparator<String>() {
+            public int compare(String o1, String o2) {
+                return o1.compareTo(o2);
+            }
+        }, new ItemIndexer());
+        mQueue.add("c:x");
+        mQueue.add("a:x");
+        mQueue.add("b:x");
+        assertEquals(mQueue.poll(new IMatcher<String>() {
+            public boolean matches(String element) {
+                return !element.startsWith("a");
+            }
+        }), "b:x");
+        assertEquals(mQueue.poll(), "a:x");
+    }
+
+    /**
+     * Test that adding an element only evaluates the waiters whose constraints accept it.
+     */
+    @Test
+    public void testIndexed_targetedWakeup() throws Exception {
+        final AttributeMatcher matcher = new AttributeMatcher("y");
+        final String[] result = new String[1];
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    result[0] = mQueue.poll(10, TimeUnit.SECONDS, matcher);
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+            }
+        };
+        waiter.start();
+        waitForWaiters(1);
+        for (int i = 0; i < 50; i++) {
+            mQueue.add(String.format("%d:x", i));
+        }
+        assertEquals(matcher.mMatchCount, 0);
+        mQueue.add("100:y");
+        waiter.join(5000);
+        assertEquals(result[0], "100:y");
+        assertEquals(mQueue.size(), 50);
+    }
+
+    /**
+     * Test that a batch poll allocates all elements at once, or none.
+     */
+    @Test
+    public void testIndexed_batch() throws Exception {
+        final AttributeMatcher matcher = new AttributeMatcher("y");
+        mQueue.add("a:y");
+        assertNull(mQueue.poll(2, 100, TimeUnit.MILLISECONDS, matcher));
+        // the partial match must not have been taken
+        assertEquals(mQueue.size(), 1);
+        final List<?>[] result = new List<?>[1];
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    result[0] = mQueue.poll(2, 10, TimeUnit.SECONDS, matcher);
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+            }
+        };
+        waiter.start();
+        waitForWaiters(1);
+        mQueue.add("b:x");
+        mQueue.add("c:y");
+        waiter.join(5000);
+        assertEquals(result[0], Arrays.asList("a:y", "c:y"));
+        assertEquals(mQueue.getCopy(), Arrays.asList("b:x"));
+    }
+
+    /**
+     * Test that an added element is handed to the highest priority waiter, even if it started
+     * waiting later.
+     */
+    @Test
+    public void testPriorityHandoff() throws Exception {
+        final AttributeMatcher matcher = new AttributeMatcher("x");
+        final String[] result = new String[2];
+        Thread[] waiters = new Thread[2];
+        for (int i = 0; i < waiters.length; i++) {
+            final int index = i;
+            waiters[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        result[index] = mQueue.poll(10, TimeUnit.SECONDS, matcher, null, index);
+                    } catch (InterruptedException e) {
+                        // ignore
+                    }
+                }
+            };
+            waiters[i].start();
+            waitForWaiters(i + 1);
+        }
+        mQueue.add("a:x");
+        waiters[1].join(5000);
+        assertEquals(result[1], "a:x");
+        assertNull(result[0]);
+        mQueue.add("b:x");
+        waiters[0].join(5000);
+        assertEquals(result[0], "b:x");
+        assertEquals(mQueue.size(), 0);
+    }
+
+    /**
+     * Test that an asynchronous poll is handed an added element, and can be cancelled before.
+     */
+    @Test
+    public void testPollAsync() {
+        final List<String> received = new ArrayList<String>();
+        IHandoffListener<String> listener = new IHandoffListener<String>() {
+            public void elementAvailable(String element) {
+                received.add(element);
+            }
+        };
+        IPendingPoll cancelledPoll = mQueue.pollAsync(new AttributeMatcher("x"), null, 0,
+                listener);
+        assertTrue(cancelledPoll.cancel());
+        IPendingPoll pendingPoll = mQueue.pollAsync(new AttributeMatcher("x"), null, 0, listener);
+        mQueue.add("a:y");
+        assertTrue(received.isEmpty());
+        mQueue.add("b:x");
+        assertEquals(received, Arrays.asList("b:x"));
+        assertFalse(pendingPoll.cancel());
+        assertEquals(mQueue.getCopy(), Arrays.asList("a:y"));
+    }
+
+    /**
+     * Test that the snapshot is published by each modifying call, and that iterators keep the
+     * contents they were created with.
+     */
+    @Test
+    public void testSnapshot() {
+        mQueue.add("a:x");
+        mQueue.add("b:x");
+        Iterator<String> iterator = mQueue.iterator();
+        assertEquals(mQueue.poll(new KeyMatcher("a")), "a:x");
+        assertEquals(mQueue.getCopy(), Arrays.asList("b:x"));
+        assertEquals(mQueue.addUnique(new KeyMatcher("b"), "b:y"), "b:x");
+        assertEquals(mQueue.getCopy(), Arrays.asList("b:y"));
+        assertEquals(mQueue.size(), 1);
+        assertEquals(iterator.next(), "a:x");
+        assertEquals(iterator.next(), "b:x");
+        assertFalse(iterator.hasNext());
+    }
+
+    /**
+     * Test that the listener of an asynchronous poll is called without the queue lock held, even
+     * when the element is added by a call holding the lock.
+     */
+    @Test
+    public void testPollAsync_addUnique() {
+        final String[] polled = new String[1];
+        final boolean[] blocked = new boolean[1];
+        IHandoffListener<String> listener = new IHandoffListener<String>() {
+            public void elementAvailable(String element) {
+                // another thread can only poll if the queue lock is free
+                Thread poller = new Thread() {
+                    @Override
+                    public void run() {
+                        polled[0] = mQueue.poll(new KeyMatcher("b"));
+                    }
+                };
+                poller.start();
+                try {
+                    poller.join(2000);
+                } catch (InterruptedException e) {
+                    // fall through to the assertion
+                }
+                blocked[0] = poller.isAlive();
+            }
+        };
+        mQueue.add("b:y");
+        mQueue.pollAsync(new AttributeMatcher("x"), null, 0, listener);
+        assertNull(mQueue.addUnique(new KeyMatcher("a"), "a:x"));
+        assertFalse(blocked[0], "listener was called with the queue lock held");
+        assertEquals(polled[0], "b:y");
+    }
+}
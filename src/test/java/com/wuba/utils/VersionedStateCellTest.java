@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wuba.utils;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.wuba.utils.VersionedStateCell.IPredicate;
+
+/**
+ * Unit tests for {@link VersionedStateCell}.
+ */
+public class VersionedStateCellTest {
+
+    private static final IPredicate<String> IS_DONE = new IPredicate<String>() {
+        public boolean apply(String value) {
+            return "done".equals(value);
+        }
+    };
+
+    private VersionedStateCell<String> mCell;
+
+    @BeforeMethod
+    public void setUp() {
+        mCell = new VersionedStateCell<String>("init");
+    }
+
+    /**
+     * Test that every set increments the version.
+     */
+    @Test
+    public void testSet() {
+        assertEquals(mCell.get(), "init");
+        assertEquals(mCell.getVersion(), 0);
+        assertEquals(mCell.set("a"), 1);
+        assertEquals(mCell.set("a"), 2);
+        assertEquals(mCell.get(), "a");
+        assertEquals(mCell.getVersion(), 2);
+    }
+
+    /**
+     * Test that await returns at once if the value already satisfies the predicate.
+     */
+    @Test
+    public void testAwait_satisfied() throws Exception {
+        mCell.set("done");
+        assertTrue(mCell.await(IS_DONE, 0));
+        assertTrue(mCell.awaitValue("done", 0));
+    }
+
+    /**
+     * Test that await times out if the value never satisfies the predicate.
+     */
+    @Test
+    public void testAwait_timeout() throws Exception {
+        long start = System.currentTimeMillis();
+        assertFalse(mCell.await(IS_DONE, 100));
+        assertTrue(System.currentTimeMillis() - start >= 90, "returned before the timeout");
+        assertFalse(mCell.awaitValue("done", 0));
+    }
+
+    /**
+     * Test that await wakes up when another thread sets a satisfying value, and not before.
+     */
+    @Test
+    public void testAwait_set() throws Exception {
+        final AtomicBoolean result = new AtomicBoolean(false);
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    result.set(mCell.await(IS_DONE, 5000));
+                } catch (InterruptedException e) {
+                    // result stays false
+                }
+                done.countDown();
+            }
+        };
+        waiter.start();
+        mCell.set("working");
+        assertEquals(done.getCount(), 1);
+        mCell.set("done");
+        waiter.join(5000);
+        assertEquals(done.getCount(), 0);
+        assertTrue(result.get());
+    }
+
+    /**
+     * Test that awaitChange returns the new version once the value is set.
+     */
+    @Test
+    public void testAwaitChange() throws Exception {
+        final long version = mCell.getVersion();
+        final AtomicLong result = new AtomicLong(-1);
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    result.set(mCell.awaitChange(version, 5000));
+                } catch (InterruptedException e) {
+                    // result stays -1
+                }
+            }
+        };
+        waiter.start();
+        mCell.set("a");
+        waiter.join(5000);
+        assertFalse(waiter.isAlive());
+        assertEquals(result.get(), 1);
+    }
+
+    /**
+     * Test that awaitChange returns at once if the value was set since the given version.
+     */
+    @Test
+    public void testAwaitChange_missed() throws Exception {
+        long version = mCell.getVersion();
+        mCell.set("a");
+        mCell.set("b");
+        assertEquals(mCell.awaitChange(version, 0), 2);
+    }
+
+    /**
+     * Test that awaitChange returns the unchanged version on timeout.
+     */
+    @Test
+    public void testAwaitChange_timeout() throws Exception {
+        mCell.set("a");
+        assertEquals(mCell.awaitChange(1, 50), 1);
+    }
+}